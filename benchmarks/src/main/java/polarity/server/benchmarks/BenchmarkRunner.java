@@ -0,0 +1,26 @@
+package polarity.server.benchmarks;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point for the benchmark jar.
+ * Runs every benchmark (or those matching the given JMH arguments) in throughput mode with the GC profiler
+ * attached, so each result reports both operations per second and allocation rate.
+ * @author Sindusk
+ */
+public class BenchmarkRunner {
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        new Runner(new OptionsBuilder()
+                .parent(cmd)
+                .mode(Mode.Throughput)
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,92 @@
+package polarity.server.benchmarks;
+
+import com.jme3.math.Vector2f;
+import com.jme3.network.HostedConnection;
+import com.jme3.network.Message;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Helpers shared by the headless benchmark harnesses.
+ * @author Sindusk
+ */
+public class BenchmarkSupport {
+    private static final AtomicInteger nextConnectionId = new AtomicInteger();
+
+    /**
+     * Creates a HostedConnection that is not backed by a socket.
+     * Sent messages are counted and discarded, and attributes are stored in memory.
+     * @param sent Counter incremented for every message sent to the connection. May be null.
+     * @return The stub connection.
+     */
+    public static HostedConnection stubConnection(final AtomicInteger sent){
+        final int id = nextConnectionId.getAndIncrement();
+        final HashMap<String, Object> attributes = new HashMap<>();
+        return (HostedConnection) Proxy.newProxyInstance(HostedConnection.class.getClassLoader(),
+                new Class[]{HostedConnection.class}, new InvocationHandler(){
+            public Object invoke(Object proxy, Method method, Object[] args){
+                String name = method.getName();
+                if(name.equals("send")){
+                    if(sent != null){
+                        sent.incrementAndGet();
+                    }
+                    return null;
+                }else if(name.equals("getId")){
+                    return id;
+                }else if(name.equals("setAttribute")){
+                    return attributes.put((String) args[0], args[1]);
+                }else if(name.equals("getAttribute")){
+                    return attributes.get((String) args[0]);
+                }else if(name.equals("hashCode")){
+                    return id;
+                }else if(name.equals("equals")){
+                    return proxy == args[0];
+                }else if(name.equals("toString")){
+                    return "StubConnection["+id+"]";
+                }
+                Class<?> type = method.getReturnType();
+                if(type == boolean.class){
+                    return false;
+                }else if(type == int.class || type == long.class){
+                    return type == int.class ? (Object) 0 : (Object) 0L;
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Creates a message through its serialization constructor, filling any null Vector2f fields with zero vectors.
+     * Every jME message type has a no-argument constructor, so this works without knowing its fields.
+     * @param c Class of the message to create.
+     * @param <T> Type of the message.
+     * @return The new message.
+     */
+    public static <T extends Message> T newMessage(Class<T> c){
+        try{
+            Constructor<T> ctor = c.getDeclaredConstructor();
+            ctor.setAccessible(true);
+            T m = ctor.newInstance();
+            for(Class<?> k = c; k != null && k != Object.class; k = k.getSuperclass()){
+                for(Field f : k.getDeclaredFields()){
+                    if(f.getType() == Vector2f.class && !Modifier.isStatic(f.getModifiers())){
+                        f.setAccessible(true);
+                        if(f.get(m) == null){
+                            f.set(m, new Vector2f());
+                        }
+                    }
+                }
+            }
+            return m;
+        }catch(ReflectiveOperationException e){
+            throw new IllegalStateException("Cannot create "+c.getName(), e);
+        }
+    }
+}
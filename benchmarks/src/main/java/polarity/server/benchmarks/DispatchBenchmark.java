@@ -0,0 +1,59 @@
+package polarity.server.benchmarks;
+
+import com.jme3.network.AbstractMessage;
+import com.jme3.network.HostedConnection;
+import org.openjdk.jmh.annotations.*;
+import polarity.server.network.dispatch.MessageDispatcher;
+import polarity.server.network.dispatch.MessageHandler;
+import polarity.shared.netdata.PingData;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the dispatch of drained messages through a MessageDispatcher.
+ * The dispatcher is used on its own with a stub connection, so no server or socket is needed.
+ * Pings are echoed like the server does. The unhandled message measures the cost of a full dispatch miss.
+ * @author Sindusk
+ */
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DispatchBenchmark {
+    /**
+     * Message type the dispatcher has no handler for.
+     */
+    public static class UnhandledMessage extends AbstractMessage {}
+
+    private MessageDispatcher handler;
+    private HostedConnection source;
+    private final AtomicInteger sent = new AtomicInteger();
+    private PingData ping;
+    private UnhandledMessage unhandled;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        handler = new MessageDispatcher();
+        handler.register(PingData.class, new MessageHandler<PingData>(){
+            public void handle(HostedConnection source, PingData m){
+                source.send(m);
+            }
+        });
+        source = BenchmarkSupport.stubConnection(sent);
+        ping = BenchmarkSupport.newMessage(PingData.class);
+        unhandled = new UnhandledMessage();
+    }
+
+    @Benchmark
+    public int ping(){
+        handler.handle(source, ping);
+        return sent.get();
+    }
+
+    @Benchmark
+    public void unhandled(){
+        handler.handle(source, unhandled);
+    }
+}
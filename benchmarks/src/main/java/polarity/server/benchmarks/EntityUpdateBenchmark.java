@@ -0,0 +1,60 @@
+package polarity.server.benchmarks;
+
+import com.jme3.math.Vector2f;
+import org.openjdk.jmh.annotations.*;
+import polarity.server.monsters.MonsterManager;
+import polarity.server.players.PlayerManager;
+import polarity.server.world.ServerWorld;
+import polarity.shared.character.data.MonsterData;
+import polarity.shared.character.data.PlayerData;
+import polarity.shared.equipment.Equipment;
+import polarity.shared.tools.Sys;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the PlayerManager and MonsterManager update loops at different entity counts.
+ * @author Sindusk
+ */
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class EntityUpdateBenchmark {
+    private static final float TPF = 1f / 64;
+
+    @Param({"100", "1000", "10000"})
+    public int entities;
+
+    private ServerWorld world;
+    private PlayerManager playerManager;
+    private MonsterManager monsterManager;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        world = new ServerWorld(50);
+        Sys.setWorld(world);
+        playerManager = new PlayerManager();
+        playerManager.setMaxPlayers(entities);
+        monsterManager = new MonsterManager();
+        for(int i = 0; i < entities; i++){
+            Vector2f location = new Vector2f(i % 100, i / 100);
+            playerManager.addPlayer(world, new PlayerData(playerManager.findEmptyPlayerID(), "Player"+i, location, new Equipment()));
+            int monsterId = monsterManager.findEmptyMonsterID();
+            if(monsterId != -1){ // The monster ID space is slightly smaller than the largest entity count.
+                monsterManager.addMonster(world, new MonsterData(monsterId, "A Mob", location.clone()));
+            }
+        }
+    }
+
+    @Benchmark
+    public void players(){
+        playerManager.serverUpdate(world, TPF);
+    }
+
+    @Benchmark
+    public void monsters(){
+        monsterManager.serverUpdate(world, TPF);
+    }
+}
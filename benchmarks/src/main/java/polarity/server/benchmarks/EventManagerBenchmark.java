@@ -0,0 +1,74 @@
+package polarity.server.benchmarks;
+
+import com.jme3.network.Server;
+import org.openjdk.jmh.annotations.*;
+import polarity.server.events.EventChain;
+import polarity.server.events.EventManager;
+import polarity.shared.world.GameWorld;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures EventManager.serverUpdate with thousands of live EventChains.
+ * Chains finish after a fixed number of ticks and are replaced, keeping the population steady
+ * so that both the update and the removal of finished chains are measured.
+ * @author Sindusk
+ */
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class EventManagerBenchmark {
+    private static final float TPF = 1f / 64;
+
+    @Param({"1000", "10000"})
+    public int chains;
+
+    @Param({"32"})
+    public int lifetime;
+
+    private EventManager manager;
+    private int spawned;
+
+    /**
+     * Chain that stays pending for a number of ticks before finishing, without needing real events.
+     */
+    public static class TimedChain extends EventChain {
+        private final EventManagerBenchmark owner;
+        private int ticks;
+
+        public TimedChain(EventManagerBenchmark owner, int ticks){
+            this.owner = owner;
+            this.ticks = ticks;
+        }
+        @Override
+        public void execute(Server server, GameWorld world, float tpf){
+            if(--ticks <= 0){
+                finished = true;
+                owner.spawn();
+            }
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup(){
+        manager = new EventManager();
+        spawned = 0;
+        for(int i = 0; i < chains; i++){
+            // Spread lifetimes so chains finish on different ticks.
+            manager.addEventChain(new TimedChain(this, 1 + i % lifetime));
+        }
+    }
+
+    void spawn(){
+        spawned++;
+        manager.addEventChain(new TimedChain(this, lifetime));
+    }
+
+    @Benchmark
+    public int serverUpdate(){
+        manager.serverUpdate(null, null, TPF);
+        return spawned;
+    }
+}
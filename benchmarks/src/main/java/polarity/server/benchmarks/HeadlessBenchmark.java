@@ -0,0 +1,75 @@
+package polarity.server.benchmarks;
+
+import com.jme3.math.Vector2f;
+import com.jme3.renderer.Camera;
+import com.jme3.renderer.RenderManager;
+import com.jme3.renderer.ViewPort;
+import com.jme3.scene.Node;
+import com.jme3.system.NullRenderer;
+import org.openjdk.jmh.annotations.*;
+import polarity.server.players.PlayerManager;
+import polarity.server.world.ServerWorld;
+import polarity.shared.character.Player;
+import polarity.shared.character.data.PlayerData;
+import polarity.shared.equipment.Equipment;
+import polarity.shared.events.ProjectileEvent;
+import polarity.shared.netdata.ProjectileData;
+import polarity.shared.tools.Sys;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares a server frame under the headless jME context with the simulation-only mode.
+ * <p>
+ * headlessContext does what GameServer.update did for every frame: the world update, then the
+ * logical and geometric state update of the root node, then a render pass through a NullRenderer,
+ * as the headless context provides. simulationOnly runs the world update alone.
+ * Projectiles are attached to the world's scene node, which is attached to the root as in the server.
+ * @author Sindusk
+ */
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class HeadlessBenchmark {
+    private static final float TPF = 1f / 64;
+
+    @Param({"100", "1000", "10000"})
+    public int projectiles;
+
+    private ServerWorld world;
+    private Node root;
+    private RenderManager renderManager;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        world = new ServerWorld(50);
+        Sys.setWorld(world);
+        PlayerManager playerManager = new PlayerManager();
+        Player owner = playerManager.addPlayer(world, new PlayerData(playerManager.findEmptyPlayerID(), "Owner", new Vector2f(), new Equipment()));
+        for(int i = 0; i < projectiles; i++){
+            world.addProjectile(new ProjectileEvent(owner, BenchmarkSupport.newMessage(ProjectileData.class)));
+        }
+        root = new Node("Root");
+        if(world.getSceneNode().getParent() == null){
+            root.attachChild(world.getSceneNode());
+        }
+        renderManager = new RenderManager(new NullRenderer());
+        ViewPort viewPort = renderManager.createMainView("Default", new Camera(600, 400));
+        viewPort.attachScene(root);
+    }
+
+    @Benchmark
+    public void headlessContext(){
+        world.serverUpdate(TPF);
+        root.updateLogicalState(TPF);
+        root.updateGeometricState();
+        renderManager.render(TPF, true);
+    }
+
+    @Benchmark
+    public void simulationOnly(){
+        world.serverUpdate(TPF);
+    }
+}
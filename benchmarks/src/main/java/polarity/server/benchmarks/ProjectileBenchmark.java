@@ -0,0 +1,64 @@
+package polarity.server.benchmarks;
+
+import com.jme3.math.Vector2f;
+import org.openjdk.jmh.annotations.*;
+import polarity.server.players.PlayerManager;
+import polarity.server.world.ServerWorld;
+import polarity.shared.character.Player;
+import polarity.shared.character.data.PlayerData;
+import polarity.shared.entity.Projectile;
+import polarity.shared.equipment.Equipment;
+import polarity.shared.events.ProjectileEvent;
+import polarity.shared.netdata.ProjectileData;
+import polarity.shared.tools.Sys;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures ServerWorld.destroyProjectile with many live projectiles in the world.
+ * Each destroyed projectile is replaced by a new one, so the world stays at the same size and every
+ * destroy hits a live projectile, including its removal from the index.
+ * @author Sindusk
+ */
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ProjectileBenchmark {
+    @Param({"100", "1000", "10000"})
+    public int projectiles;
+
+    private ServerWorld world;
+    private Player owner;
+    private int[] hashCodes;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        world = new ServerWorld(50);
+        Sys.setWorld(world);
+        PlayerManager playerManager = new PlayerManager();
+        owner = playerManager.addPlayer(world, new PlayerData(playerManager.findEmptyPlayerID(), "Owner", new Vector2f(), new Equipment()));
+        hashCodes = new int[projectiles];
+        for(int i = 0; i < projectiles; i++){
+            hashCodes[i] = spawn();
+        }
+        next = 0;
+    }
+
+    private int spawn(){
+        Projectile p = world.addProjectile(new ProjectileEvent(owner, BenchmarkSupport.newMessage(ProjectileData.class)));
+        return p.getEvent().getHashCode();
+    }
+
+    @Benchmark
+    public int destroyProjectile(){
+        world.destroyProjectile(hashCodes[next]);
+        hashCodes[next] = spawn();
+        if(++next == hashCodes.length){
+            next = 0;
+        }
+        return world.getProjectileCount();
+    }
+}
@@ -0,0 +1,81 @@
+package polarity.server.benchmarks;
+
+import com.jme3.network.Message;
+import com.jme3.network.serializing.Serializer;
+import com.jme3.network.serializing.serializers.FieldSerializer;
+import org.openjdk.jmh.annotations.*;
+import polarity.server.network.serializing.CompactSerializer;
+import polarity.shared.netdata.ActionData;
+import polarity.shared.netdata.MoveData;
+import polarity.shared.netdata.ProjectileData;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares jME's reflective FieldSerializer with the compact serializers on the hot message types.
+ * Both write into the same reused direct buffer. Time per message is the inverse of the reported
+ * throughput. Bytes written are reported as the "bytes" counter, at the same rate as the messages,
+ * so the size of each message is the bytes score divided by the primary score.
+ * @author Sindusk
+ */
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SerializerBenchmark {
+    @Param({"MoveData", "ProjectileData", "ActionData"})
+    public String type;
+    @Param({"reflective", "compact"})
+    public String serializer;
+
+    /**
+     * Bytes written, counted alongside the benchmark operations.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset(){
+            bytes = 0;
+        }
+    }
+
+    private Serializer s;
+    private Class<? extends Message> c;
+    private Message message;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(32767);
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException{
+        c = type.equals("MoveData") ? MoveData.class : type.equals("ProjectileData") ? ProjectileData.class : ActionData.class;
+        message = BenchmarkSupport.newMessage(c);
+        if(serializer.equals("compact")){
+            s = CompactSerializer.forType(c);
+        }else{
+            s = new FieldSerializer();
+            s.initialize(c);
+        }
+    }
+
+    @Benchmark
+    public int write(Counters counters) throws IOException{
+        buffer.clear();
+        s.writeObject(buffer, message);
+        counters.bytes += buffer.position();
+        return buffer.position();
+    }
+
+    @Benchmark
+    public Object roundTrip(Counters counters) throws IOException{
+        buffer.clear();
+        s.writeObject(buffer, message);
+        counters.bytes += buffer.position();
+        buffer.flip();
+        return s.readObject(buffer, c);
+    }
+}
@@ -0,0 +1,15 @@
+package polarity.server.cluster;
+
+/**
+ * Receives the chat a NodeLink is forwarded by other nodes.
+ * Called on transport threads, so it must not touch game state directly.
+ * @author Sindusk
+ */
+public interface ChatRelay {
+    /**
+     * @param node ID of the node the sender is on.
+     * @param sender Name of the player who sent the message.
+     * @param message Text of the message.
+     */
+    void relay(String node, String sender, String message);
+}
@@ -0,0 +1,38 @@
+package polarity.server.cluster;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Directory of the loopback transports in one JVM, standing in for the network between nodes.
+ * Transports can only reach other transports registered with the same hub. Safe to use from any thread.
+ * @author Sindusk
+ */
+public class LoopbackHub {
+    private static final LoopbackHub DEFAULT = new LoopbackHub();
+
+    protected final ConcurrentHashMap<String, LoopbackTransport> nodes = new ConcurrentHashMap<>();
+
+    /**
+     * @return The hub shared by every server in the JVM.
+     */
+    public static LoopbackHub getDefault(){
+        return DEFAULT;
+    }
+
+    /**
+     * @param transport Transport to register under its node ID.
+     * @return False if another transport already has the ID.
+     */
+    public boolean register(LoopbackTransport transport){
+        return nodes.putIfAbsent(transport.getNode(), transport) == null;
+    }
+    public void unregister(LoopbackTransport transport){
+        nodes.remove(transport.getNode(), transport);
+    }
+    public LoopbackTransport get(String node){
+        return nodes.get(node);
+    }
+    public Iterable<LoopbackTransport> getTransports(){
+        return nodes.values();
+    }
+}
@@ -0,0 +1,88 @@
+package polarity.server.cluster;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Transport between nodes running in the same JVM, for testing a cluster without any external service.
+ * <p>
+ * Payloads are copied and handed to the receiving node on a delivery thread of its own, so nodes see
+ * the same threading and ownership as they would over a network, and payloads from one node arrive in order.
+ * @author Sindusk
+ */
+public class LoopbackTransport implements NodeTransport {
+    protected final LoopbackHub hub;
+    protected final String node;
+    protected final ExecutorService delivery;
+    protected volatile NodeReceiver receiver;
+
+    /**
+     * @param hub Hub to find other nodes through.
+     * @param node ID of this node.
+     */
+    public LoopbackTransport(LoopbackHub hub, final String node){
+        this.hub = hub;
+        this.node = node;
+        delivery = Executors.newSingleThreadExecutor(new ThreadFactory(){
+            public Thread newThread(Runnable r){
+                Thread t = new Thread(r, "Loopback-"+node);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public String getNode(){
+        return node;
+    }
+
+    public void start(NodeReceiver receiver) throws IOException{
+        this.receiver = receiver;
+        if(!hub.register(this)){
+            throw new IOException("Node "+node+" is already in the cluster.");
+        }
+    }
+
+    public boolean send(String node, byte[] payload){
+        LoopbackTransport target = hub.get(node);
+        if(target == null || target == this){
+            return false;
+        }
+        return target.deliver(this.node, payload.clone());
+    }
+
+    public void broadcast(byte[] payload){
+        for(LoopbackTransport target : hub.getTransports()){
+            if(target != this){
+                target.deliver(node, payload.clone());
+            }
+        }
+    }
+
+    public void close(){
+        hub.unregister(this);
+        delivery.shutdownNow();
+    }
+
+    /**
+     * Queues a payload for this node's receiver.
+     * @param from ID of the sending node.
+     * @param payload Copy of the payload.
+     * @return False if this node has been closed.
+     */
+    protected boolean deliver(final String from, final byte[] payload){
+        try{
+            delivery.execute(new Runnable(){
+                public void run(){
+                    receiver.received(from, payload);
+                }
+            });
+            return true;
+        }catch(RejectedExecutionException e){
+            return false;
+        }
+    }
+}
@@ -0,0 +1,358 @@
+package polarity.server.cluster;
+
+import com.jme3.network.HostedConnection;
+import com.jme3.network.Message;
+import com.jme3.network.serializing.Serializer;
+import polarity.server.shard.WorldShard;
+import polarity.shared.character.Player;
+import polarity.shared.character.data.PlayerData;
+import polarity.shared.netdata.updates.MatrixUpdate;
+import polarity.shared.tools.Util;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Link between this server and the other nodes of a cluster.
+ * <p>
+ * Players are handed off by sending their data, inventory included, and their matrix history to the
+ * target node, then closing their connection with the ID of the node to reconnect to. The target keeps
+ * the handoff as a pending arrival until a player with the same name connects to it, then lets them in
+ * without a database load, with the state they left with. Chat is forwarded to every other node.
+ * <p>
+ * Each payload is a type byte followed by its contents, so the link works over any NodeTransport.
+ * A handoff holds serialized messages. Chat holds the name of its sender and the text as strings,
+ * since their player ID means nothing on other nodes.
+ * Received payloads are only decoded on transport threads. Chat is handed to a ChatRelay there, and
+ * arrivals are claimed on the tick thread of the shard the player joins.
+ * <p>
+ * Messages are written with the Serializer, whose registry is global to the JVM. The link only sends
+ * NetData classes, which ServerNetwork registers at startup, and registers nothing of its own, since
+ * every registration is also sent to clients. Nodes must register the same classes in the same order.
+ * @author Sindusk
+ */
+public class NodeLink implements NodeReceiver {
+    // Name of the transport between nodes in the same JVM.
+    public static final String TRANSPORT_LOOPBACK = "loopback";
+
+    // Constants:
+    private static final int MAX_PAYLOAD_SIZE = 65536;
+    private static final long ARRIVAL_TIMEOUT = 60000; // Milliseconds a player has to reconnect to this node.
+    // Payload types, the first byte of every payload.
+    private static final byte PAYLOAD_HANDOFF = 1;
+    private static final byte PAYLOAD_CHAT = 2;
+
+    protected final NodeTransport transport;
+    protected final ChatRelay chat;
+    // Players handed off to this node that have not connected yet, by name.
+    protected final ConcurrentHashMap<String, Arrival> arrivals = new ConcurrentHashMap<>();
+    private final ByteBuffer scratch = ByteBuffer.allocate(MAX_PAYLOAD_SIZE);
+
+    // Metrics:
+    protected final AtomicLong handoffsSent = new AtomicLong();
+    protected final AtomicLong handoffsReceived = new AtomicLong();
+    protected final AtomicLong handoffsFailed = new AtomicLong();
+    protected final AtomicLong arrivalsExpired = new AtomicLong();
+    protected final AtomicLong chatSent = new AtomicLong();
+    protected final AtomicLong chatReceived = new AtomicLong();
+
+    /**
+     * State of a player handed off to this node.
+     */
+    public static class Arrival {
+        protected final String node;
+        protected final PlayerData player;
+        protected final MatrixUpdate[] matrix;
+        protected final long time = System.currentTimeMillis();
+
+        protected Arrival(String node, PlayerData player, MatrixUpdate[] matrix){
+            this.node = node;
+            this.player = player;
+            this.matrix = matrix != null ? matrix : new MatrixUpdate[0];
+        }
+        public String getNode(){
+            return node;
+        }
+        public PlayerData getPlayer(){
+            return player;
+        }
+        public MatrixUpdate[] getMatrix(){
+            return matrix;
+        }
+    }
+
+    /**
+     * @param transport Transport to reach other nodes through. Started by start().
+     * @param chat Relay for chat from other nodes.
+     */
+    public NodeLink(NodeTransport transport, ChatRelay chat){
+        this.transport = transport;
+        this.chat = chat;
+    }
+
+    /**
+     * Creates a transport by name.
+     * @param type "loopback" for nodes in the same JVM, otherwise the name of a NodeTransport class
+     *             with a public constructor taking the ID of the node.
+     * @param node ID of this node.
+     * @return The transport, not yet started.
+     * @throws IOException If the transport could not be created.
+     */
+    public static NodeTransport createTransport(String type, String node) throws IOException{
+        if(type.equals(TRANSPORT_LOOPBACK)){
+            return new LoopbackTransport(LoopbackHub.getDefault(), node);
+        }
+        try{
+            return (NodeTransport) Class.forName(type).getConstructor(String.class).newInstance(node);
+        }catch(ReflectiveOperationException | ClassCastException e){
+            throw new IOException("Unable to create transport "+type+": "+e, e);
+        }
+    }
+
+    public String getNode(){
+        return transport.getNode();
+    }
+    public int getPendingArrivals(){
+        return arrivals.size();
+    }
+    public long getHandoffsSent(){
+        return handoffsSent.get();
+    }
+    public long getHandoffsReceived(){
+        return handoffsReceived.get();
+    }
+    public long getChatSent(){
+        return chatSent.get();
+    }
+    public long getChatReceived(){
+        return chatReceived.get();
+    }
+
+    /**
+     * Joins the cluster.
+     * @throws IOException If the transport could not join it.
+     */
+    public void start() throws IOException{
+        transport.start(this);
+        Util.log("[NodeLink] Joined the cluster as node "+transport.getNode()+".");
+    }
+
+    /**
+     * Hands a player off to another node and disconnects them, telling them which node to reconnect to.
+     * Must be called from the tick thread of the shard they are in. Their ID is released once their
+     * connection has closed, like any other disconnect.
+     * @param shard Shard the player is in.
+     * @param conn Connection of the player.
+     * @param id ID of the player.
+     * @param node ID of the node to move them to.
+     * @return False if they were not in the shard, or the node could not be reached. They stay connected.
+     */
+    public boolean handoff(WorldShard shard, HostedConnection conn, int id, String node){
+        Player player = shard.getPlayers().getPlayer(id);
+        if(player == null){
+            return false;
+        }
+        PlayerData data = player.getData();
+        ArrayList<MatrixUpdate> matrix = shard.getPlayers().takeMatrixHistory(id);
+        if(!sendHandoff(node, data, matrix)){
+            shard.getPlayers().setMatrixHistory(id, matrix);
+            Util.log("[NodeLink] Failed to move player "+id+" ("+data.getName()+") to node "+node+".");
+            return false;
+        }
+        // Saved here as well, so nothing is lost if they never reach the target.
+        shard.getPersistence().markDirty(data);
+        shard.removePlayer(conn);
+        shard.getIngress().unregister(conn); // Anything still queued from them is discarded.
+        conn.close("Transferred to node "+node+".");
+        Util.log("[NodeLink] Player "+id+" ("+data.getName()+") moved to node "+node+".");
+        return true;
+    }
+
+    /**
+     * Sends the state of a player to another node, where it is kept as a pending arrival.
+     * Safe to call from any thread.
+     * @param node ID of the node to send it to.
+     * @param data Data of the player, inventory included.
+     * @param matrix Matrix updates applied to them, oldest first.
+     * @return False if the state could not be serialized or the node could not be reached.
+     */
+    public boolean sendHandoff(String node, PlayerData data, List<MatrixUpdate> matrix){
+        if(node.equals(transport.getNode())){
+            return false;
+        }
+        ArrayList<Message> messages = new ArrayList<>(matrix.size() + 1);
+        messages.add(data);
+        messages.addAll(matrix);
+        byte[] payload = encode(PAYLOAD_HANDOFF, messages);
+        if(payload == null || !transport.send(node, payload)){
+            handoffsFailed.incrementAndGet();
+            return false;
+        }
+        handoffsSent.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Forwards chat to every other node. Safe to call from any thread.
+     * @param sender Name of the player who sent it.
+     * @param message Text of the message.
+     */
+    public void forwardChat(String sender, String message){
+        byte[] payload = encodeChat(sender, message);
+        if(payload != null){
+            transport.broadcast(payload);
+            chatSent.incrementAndGet();
+        }
+    }
+
+    /**
+     * Removes the pending arrival of a player, if one has not expired. Safe to call from any thread.
+     * @param name Name the player connected with.
+     * @return Their state as they left their previous node, or null if they were not handed off here.
+     */
+    public Arrival claimArrival(String name){
+        expireArrivals();
+        return arrivals.remove(name);
+    }
+
+    public void received(String node, byte[] payload){
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        try{
+            byte type = buffer.get();
+            if(type == PAYLOAD_HANDOFF){
+                Object[] messages = readMessages(buffer);
+                PlayerData player = (PlayerData) messages[0];
+                MatrixUpdate[] matrix = new MatrixUpdate[messages.length - 1];
+                System.arraycopy(messages, 1, matrix, 0, matrix.length);
+                expireArrivals();
+                handoffsReceived.incrementAndGet();
+                arrivals.put(player.getName(), new Arrival(node, player, matrix));
+                Util.log("[NodeLink] Expecting player "+player.getName()+" from node "+node+".");
+            }else if(type == PAYLOAD_CHAT){
+                String sender = readString(buffer);
+                String message = readString(buffer);
+                chatReceived.incrementAndGet();
+                chat.relay(node, sender, message); // Not forwarded again, every node receives it from the sender.
+                Util.log("["+node+"] "+sender+": "+message);
+            }else{
+                Util.log("[NodeLink] Unexpected payload type "+type+" from node "+node+".");
+            }
+        }catch(IOException | RuntimeException e){
+            Util.log("[NodeLink] Failed to read payload from node "+node+": "+e);
+        }
+    }
+
+    /**
+     * Drops arrivals of players who did not reconnect in time. Their state was saved by their previous node.
+     */
+    protected void expireArrivals(){
+        long cutoff = System.currentTimeMillis() - ARRIVAL_TIMEOUT;
+        Iterator<Arrival> it = arrivals.values().iterator();
+        while(it.hasNext()){
+            if(it.next().time < cutoff){
+                it.remove();
+                arrivalsExpired.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Builds a payload of serialized messages for the transport. Safe to call from any thread.
+     * @param type Type of the payload.
+     * @param messages Messages to serialize, read back in the same order by readMessages().
+     * @return The payload, or null if the messages could not be serialized.
+     */
+    protected byte[] encode(byte type, List<Message> messages){
+        synchronized(scratch){
+            scratch.clear();
+            try{
+                scratch.put(type);
+                scratch.putShort((short) messages.size());
+                for(int i = 0; i < messages.size(); i++){
+                    Serializer.writeClassAndObject(scratch, messages.get(i));
+                }
+            }catch(IOException | BufferOverflowException e){
+                Util.log("[NodeLink] Failed to serialize a payload of type "+type+": "+e);
+                return null;
+            }
+            return takeScratch();
+        }
+    }
+
+    /**
+     * Builds a chat payload for the transport. Safe to call from any thread.
+     * @param sender Name of the player who sent it.
+     * @param message Text of the message.
+     * @return The payload, or null if it does not fit in one.
+     */
+    protected byte[] encodeChat(String sender, String message){
+        synchronized(scratch){
+            scratch.clear();
+            try{
+                scratch.put(PAYLOAD_CHAT);
+                writeString(scratch, sender);
+                writeString(scratch, message);
+            }catch(IllegalArgumentException | BufferOverflowException e){
+                Util.log("[NodeLink] Failed to write a chat payload: "+e);
+                return null;
+            }
+            return takeScratch();
+        }
+    }
+
+    /**
+     * Copies out what was written to the scratch buffer. Must be called while holding it.
+     * @return The bytes written.
+     */
+    private byte[] takeScratch(){
+        scratch.flip();
+        byte[] bytes = new byte[scratch.remaining()];
+        scratch.get(bytes);
+        return bytes;
+    }
+
+    protected static Object[] readMessages(ByteBuffer buffer) throws IOException{
+        Object[] messages = new Object[buffer.getShort() & 0xffff];
+        for(int i = 0; i < messages.length; i++){
+            messages[i] = Serializer.readClassAndObject(buffer);
+        }
+        return messages;
+    }
+
+    protected static void writeString(ByteBuffer buffer, String s){
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        if(bytes.length > 0xffff){
+            throw new IllegalArgumentException("String of "+bytes.length+" bytes is too long.");
+        }
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+    protected static String readString(ByteBuffer buffer){
+        byte[] bytes = new byte[buffer.getShort() & 0xffff];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Logs link metrics.
+     */
+    public void logStats(){
+        Util.log("[NodeLink] Node "+transport.getNode()+": "+handoffsSent.get()+" handoffs sent ("+handoffsFailed.get()+" failed), "
+                +handoffsReceived.get()+" received ("+arrivalsExpired.get()+" expired, "+arrivals.size()+" pending), "
+                +chatSent.get()+" chat messages sent, "+chatReceived.get()+" received.");
+    }
+
+    /**
+     * Leaves the cluster.
+     */
+    public void close(){
+        transport.close();
+    }
+}
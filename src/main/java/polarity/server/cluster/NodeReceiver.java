@@ -0,0 +1,14 @@
+package polarity.server.cluster;
+
+/**
+ * Receives the payloads a NodeTransport delivers from other nodes.
+ * Called on transport threads, so it must not touch game state directly.
+ * @author Sindusk
+ */
+public interface NodeReceiver {
+    /**
+     * @param node ID of the node that sent the payload.
+     * @param payload The payload, exactly as it was sent. Owned by the receiver.
+     */
+    void received(String node, byte[] payload);
+}
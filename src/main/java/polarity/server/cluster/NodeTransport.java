@@ -0,0 +1,44 @@
+package polarity.server.cluster;
+
+import java.io.IOException;
+
+/**
+ * Carries opaque payloads between the nodes of a cluster.
+ * <p>
+ * Implementations decide how nodes find and reach each other. Delivery is best effort, but payloads
+ * sent from one node to another must arrive in the order they were sent. Methods other than start()
+ * and close() may be called from any thread.
+ * @author Sindusk
+ */
+public interface NodeTransport {
+    /**
+     * @return ID of this node, unique within the cluster.
+     */
+    String getNode();
+
+    /**
+     * Joins the cluster and starts delivering received payloads.
+     * @param receiver Receiver to deliver payloads to.
+     * @throws IOException If the cluster could not be joined.
+     */
+    void start(NodeReceiver receiver) throws IOException;
+
+    /**
+     * Sends a payload to one node.
+     * @param node ID of the node to send to.
+     * @param payload Payload to send. Not modified, and may be reused once this returns.
+     * @return False if the node is unknown or cannot be reached.
+     */
+    boolean send(String node, byte[] payload);
+
+    /**
+     * Sends a payload to every other node.
+     * @param payload Payload to send. Not modified, and may be reused once this returns.
+     */
+    void broadcast(byte[] payload);
+
+    /**
+     * Leaves the cluster. Payloads still queued may be dropped.
+     */
+    void close();
+}
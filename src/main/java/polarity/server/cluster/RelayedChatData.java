@@ -0,0 +1,32 @@
+package polarity.server.cluster;
+
+import com.jme3.network.AbstractMessage;
+import com.jme3.network.serializing.Serializable;
+
+/**
+ * Chat from a player on another node, sent to the clients of this one.
+ * The sender has no player ID here, so they are named instead.
+ * @author Sindusk
+ */
+@Serializable
+public class RelayedChatData extends AbstractMessage {
+    private String node;
+    private String sender;
+    private String message;
+
+    public RelayedChatData(){}  // Empty constructor for serialization.
+    public RelayedChatData(String node, String sender, String message){
+        this.node = node;
+        this.sender = sender;
+        this.message = message;
+    }
+    public String getNode(){
+        return node;
+    }
+    public String getSender(){
+        return sender;
+    }
+    public String getMessage(){
+        return message;
+    }
+}
@@ -0,0 +1,284 @@
+package polarity.server.database;
+
+import com.sun.istack.internal.Nullable;
+import polarity.shared.tools.Util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * A simple bounded pool of JDBC connections.
+ * <p>
+ * Connections handed out by the pool are proxies. Calling close() on them returns the
+ * underlying connection to the pool instead of closing it, so existing code that opens
+ * and closes a connection per query keeps working unchanged.
+ * Idle connections are validated before reuse, and connections above the minimum size
+ * are closed once they have been idle for longer than the idle timeout.
+ * Each connection keeps its own StatementCache, which stays with it while it is idle.
+ * @author Sindusk
+ */
+public class ConnectionPool {
+    // Constants:
+    private static final int VALIDATION_TIMEOUT = 2;            // Seconds allowed for a connection validity check.
+    private static final long ACQUIRE_TIMEOUT = 5000;           // Milliseconds to wait for a free connection.
+    private static final int STATEMENT_CACHE_SIZE = 32;         // Prepared statements kept per connection.
+
+    protected final String connString;
+    protected final String user;
+    protected final String password;
+    protected final int minSize;
+    protected final int maxSize;
+    protected final long idleTimeout;
+
+    // Guarded by this.
+    protected final ArrayDeque<IdleConnection> idle = new ArrayDeque<>();
+    protected int total = 0;
+    protected boolean closed = false;
+
+    /**
+     * A connection sitting in the pool, along with the time it was returned.
+     */
+    protected static class IdleConnection {
+        protected final Connection conn;
+        protected final StatementCache statements;
+        protected final long since;
+
+        protected IdleConnection(Connection conn, StatementCache statements, long since){
+            this.conn = conn;
+            this.statements = statements;
+            this.since = since;
+        }
+    }
+
+    /**
+     * Creates a new pool and opens the minimum number of connections.
+     * @param connString JDBC connection string.
+     * @param user Username to connect with.
+     * @param password Password to connect with.
+     * @param minSize Number of connections kept open at all times.
+     * @param maxSize Maximum number of connections open at once.
+     * @param idleTimeout Milliseconds a connection above the minimum may sit idle before being closed.
+     */
+    public ConnectionPool(String connString, String user, String password, int minSize, int maxSize, long idleTimeout){
+        this.connString = connString;
+        this.user = user;
+        this.password = password;
+        this.maxSize = Math.max(1, maxSize);
+        this.minSize = Math.max(0, Math.min(minSize, this.maxSize));
+        this.idleTimeout = idleTimeout;
+        for(int i = 0; i < this.minSize; i++){
+            Connection conn = open();
+            if(conn == null){
+                break;
+            }
+            synchronized(this){
+                total++;
+                idle.push(new IdleConnection(conn, new StatementCache(conn, STATEMENT_CACHE_SIZE), System.currentTimeMillis()));
+            }
+        }
+    }
+
+    public synchronized int getTotal(){
+        return total;
+    }
+    public synchronized int getIdle(){
+        return idle.size();
+    }
+
+    /**
+     * Takes a connection from the pool, opening a new one if none are idle and the pool is not full.
+     * If the pool is full, waits for a connection to be returned.
+     * @return A pooled connection. Closing it returns it to the pool. Null if none could be obtained.
+     */
+    @Nullable
+    public Connection acquire(){
+        long deadline = System.currentTimeMillis() + ACQUIRE_TIMEOUT;
+        while(true){
+            IdleConnection candidate = null;
+            boolean create = false;
+            synchronized(this){
+                if(closed){
+                    return null;
+                }
+                if(!idle.isEmpty()){
+                    candidate = idle.pop();
+                }else if(total < maxSize){
+                    total++;
+                    create = true;
+                }else{
+                    long wait = deadline - System.currentTimeMillis();
+                    if(wait <= 0){
+                        Util.log("[ConnectionPool] Timed out waiting for a free database connection.");
+                        return null;
+                    }
+                    try{
+                        wait(wait);
+                    }catch(InterruptedException e){
+                        Thread.currentThread().interrupt();
+                        return null;
+                    }
+                    continue;
+                }
+            }
+            if(create){
+                Connection conn = open();
+                if(conn == null){
+                    discard();
+                    return null;
+                }
+                return wrap(conn, new StatementCache(conn, STATEMENT_CACHE_SIZE));
+            }
+            // Validate outside the lock, since it may need a round trip to the server.
+            if(isValid(candidate.conn)){
+                return wrap(candidate.conn, candidate.statements);
+            }
+            closeQuietly(candidate.conn, candidate.statements);
+            discard();
+        }
+    }
+
+    /**
+     * Returns a connection to the pool. Called when a pooled connection proxy is closed.
+     * @param conn The underlying connection.
+     * @param statements Statement cache of the connection.
+     */
+    protected void release(Connection conn, StatementCache statements){
+        statements.releaseAll();
+        statements.setOwner(null);
+        boolean usable;
+        try{
+            usable = !conn.isClosed();
+            if(usable && !conn.getAutoCommit()){
+                // Never hand out a connection with a half finished transaction.
+                conn.rollback();
+                conn.setAutoCommit(true);
+            }
+        }catch(SQLException e){
+            usable = false;
+        }
+        synchronized(this){
+            if(usable && !closed){
+                idle.push(new IdleConnection(conn, statements, System.currentTimeMillis()));
+                notify();
+                return;
+            }
+        }
+        closeQuietly(conn, statements);
+        discard();
+    }
+
+    /**
+     * Closes connections that have been idle longer than the idle timeout, keeping at least the minimum size open.
+     */
+    public void evictIdle(){
+        long cutoff = System.currentTimeMillis() - idleTimeout;
+        ArrayDeque<IdleConnection> evicted = new ArrayDeque<>();
+        synchronized(this){
+            // The oldest connections are at the tail of the deque.
+            Iterator<IdleConnection> it = idle.descendingIterator();
+            while(it.hasNext() && total - evicted.size() > minSize){
+                IdleConnection ic = it.next();
+                if(ic.since > cutoff){
+                    break;
+                }
+                it.remove();
+                evicted.add(ic);
+            }
+            total -= evicted.size();
+        }
+        for(IdleConnection ic : evicted){
+            closeQuietly(ic.conn, ic.statements);
+        }
+    }
+
+    /**
+     * Closes every idle connection and stops handing out new ones.
+     * Connections currently in use are closed when they are returned.
+     */
+    public void close(){
+        ArrayDeque<IdleConnection> toClose;
+        synchronized(this){
+            closed = true;
+            toClose = new ArrayDeque<>(idle);
+            total -= idle.size();
+            idle.clear();
+            notifyAll();
+        }
+        for(IdleConnection ic : toClose){
+            closeQuietly(ic.conn, ic.statements);
+        }
+    }
+
+    @Nullable
+    protected Connection open(){
+        try{
+            return DriverManager.getConnection(connString, user, password);
+        }catch(SQLException e){
+            Util.log(e.getMessage()); // We don't want a full stack trace here. Just the reason why it failed.
+            return null;
+        }
+    }
+    protected synchronized void discard(){
+        total--;
+        notify();
+    }
+    protected boolean isValid(Connection conn){
+        try{
+            return conn.isValid(VALIDATION_TIMEOUT);
+        }catch(SQLException e){
+            return false;
+        }
+    }
+    protected static void closeQuietly(Connection conn, StatementCache statements){
+        statements.close();
+        try{
+            conn.close();
+        }catch(SQLException ignored){ }
+    }
+
+    /**
+     * Wraps a connection in a proxy that returns it to the pool when closed.
+     * Statements prepared through the proxy come from the connection's statement cache.
+     */
+    protected Connection wrap(final Connection conn, final StatementCache statements){
+        Connection proxy = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class[]{Connection.class},
+                new InvocationHandler(){
+                    private boolean returned = false;
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable{
+                        String name = method.getName();
+                        if(method.getDeclaringClass() == Object.class){
+                            return method.invoke(conn, args);
+                        }else if(name.equals("close")){
+                            if(!returned){
+                                returned = true;
+                                release(conn, statements);
+                            }
+                            return null;
+                        }else if(name.equals("isClosed")){
+                            return returned || conn.isClosed();
+                        }else if(returned){
+                            throw new SQLException("Connection has been returned to the pool.");
+                        }else if(name.equals("prepareStatement") && args.length == 1){
+                            return statements.prepare((String) args[0], Statement.NO_GENERATED_KEYS);
+                        }else if(name.equals("prepareStatement") && args.length == 2 && args[1] instanceof Integer){
+                            return statements.prepare((String) args[0], (Integer) args[1]);
+                        }
+                        try{
+                            return method.invoke(conn, args);
+                        }catch(InvocationTargetException e){
+                            throw e.getCause();
+                        }
+                    }
+                });
+        statements.setOwner(proxy);
+        return proxy;
+    }
+}
@@ -1,9 +1,12 @@
 package polarity.server.database;
 
 import com.sun.istack.internal.Nullable;
+import polarity.server.metrics.LatencyHistogram;
 import polarity.shared.tools.Util;
 
 import java.sql.*;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
 
 public class DatabaseManager {
     // Database Name & Creation String
@@ -11,6 +14,9 @@ public class DatabaseManager {
     protected static String SQL_CREATE_DATABASE = "CREATE DATABASE "+DATABASE_NAME;
     protected static String SQL_JDBC = "jdbc:mysql://";
     protected static String COLLATION = "utf8_general_ci";
+    // Options for pooled connections. Multiple statements per query let load-or-create run in one round trip.
+    // Affected rather than found rows are reported, so an insert skipped as a duplicate counts as 0.
+    protected static String POOL_OPTIONS = "?allowMultiQueries=true&useAffectedRows=true";
 
     // Table Names
     public static String TABLE_PLAYERS = "players";
@@ -19,14 +25,18 @@ public class DatabaseManager {
     // Table Creation Strings
     protected static final String CREATE_TABLE_PLAYERS = "CREATE TABLE " + TABLE_PLAYERS +
             "(id int NOT NULL AUTO_INCREMENT," +
-            "name text NOT NULL," +
-            "PRIMARY KEY(id)) COLLATE " + COLLATION;
+            "name varchar(64) NOT NULL," +
+            "x float NOT NULL DEFAULT 0," + // Last saved location
+            "y float NOT NULL DEFAULT 0," +
+            "inventory blob NULL," + // Serialized inventory
+            "PRIMARY KEY(id)," +
+            "UNIQUE KEY players_name (name)) COLLATE " + COLLATION;
     protected static final String CREATE_TABLE_ITEMS = "CREATE TABLE " + TABLE_ITEMS +
             "(id int NOT NULL AUTO_INCREMENT," +
             "name text NOT NULL," +
             "basetype int NOT NULL DEFAULT 0," + // Base type of the item
             "itemclass int NOT NULL DEFAULT 0," + // Class of the item
-            "data1 float NOT NULL DEFALUT 0," +
+            "data1 float NOT NULL DEFAULT 0," +
             "data2 float NOT NULL DEFAULT 0," +
             "data3 float NOT NULL DEFAULT 0," +
             "data4 float NOT NULL DEFAULT 0," +
@@ -40,12 +50,36 @@ public class DatabaseManager {
     protected static String DB_USER = "";
     protected static String DB_PASSWORD = "";
 
+    // Connection pool & asynchronous query executor. Null until initializePool is called.
+    private static final long POOL_IDLE_TIMEOUT = 60000;  // Milliseconds before an idle connection above the minimum is closed.
+    protected static ConnectionPool pool = null;
+    protected static ThreadPoolExecutor executor = null;
+    protected static ScheduledExecutorService maintenance = null;
+    protected static Executor tickExecutor = null;
+    // Time taken by each asynchronous query, including getting a connection. Not including time spent queued.
+    protected static final LatencyHistogram queryLatency = new LatencyHistogram();
+
+    /**
+     * A unit of database work to run on a pooled connection.
+     * @param <T> Type of the result.
+     */
+    public interface Query<T> {
+        T run(Connection conn) throws SQLException;
+    }
+
     /**
      * Checks all the tables that exist in the database to ensure they are properly created.
      */
     protected static void checkTables(){
         checkCreateTable(TABLE_PLAYERS, CREATE_TABLE_PLAYERS);
         checkCreateTable(TABLE_ITEMS, CREATE_TABLE_ITEMS);
+        // Columns added after the initial table layout.
+        checkCreateColumn(TABLE_PLAYERS, "x", "float NOT NULL DEFAULT 0");
+        checkCreateColumn(TABLE_PLAYERS, "y", "float NOT NULL DEFAULT 0");
+        checkCreateColumn(TABLE_PLAYERS, "inventory", "blob NULL");
+        // Player names were an unindexed text column. Lookups by name need a unique index, which needs a bounded type.
+        checkCreateIndex(TABLE_PLAYERS, "players_name", "ALTER TABLE " + TABLE_PLAYERS +
+                " MODIFY name varchar(64) NOT NULL, ADD UNIQUE KEY players_name (name)");
     }
 
     /**
@@ -101,6 +135,9 @@ public class DatabaseManager {
      */
     @Nullable
     public static Connection createConnection(){
+        if(pool != null){
+            return pool.acquire(); // Closing a pooled connection returns it to the pool.
+        }
         return createConnection(DATABASE_NAME);
     }
 
@@ -112,8 +149,8 @@ public class DatabaseManager {
         Connection conn = null;
         Statement stmt = null;
         try {
-            String connString = buildConnectionString(DB_IP, DB_PORT, DATABASE_NAME);
-            conn = DriverManager.getConnection(connString, DB_USER, DB_PASSWORD);
+            conn = createConnection();
+            if (conn == null) return;
             stmt = conn.createStatement();
             stmt.execute(query);
         } catch (SQLException e) {
@@ -140,8 +177,8 @@ public class DatabaseManager {
         PreparedStatement ps = null;
         int id = -1;
         try {
-            String connString = buildConnectionString(DB_IP, DB_PORT, DATABASE_NAME);
-            conn = DriverManager.getConnection(connString, DB_USER, DB_PASSWORD);
+            conn = createConnection();
+            if (conn == null) return id;
             ps = conn.prepareStatement(query, Statement.RETURN_GENERATED_KEYS);
             ps.executeUpdate();
             ResultSet rs = ps.getGeneratedKeys();
@@ -168,7 +205,7 @@ public class DatabaseManager {
      * @return True if it exists, false otherwise.
      */
     private static boolean checkTableExists(String table){
-        Connection conn = createConnection(DATABASE_NAME);
+        Connection conn = createConnection();
         if (conn != null) {
             try {
                 DatabaseMetaData dbm = conn.getMetaData();
@@ -176,6 +213,8 @@ public class DatabaseManager {
                 return tables.next(); // True if table exists, false if table doesn't exist.
             } catch (SQLException e) {
                 e.printStackTrace();
+            } finally {
+                closeConnection(conn);
             }
         }else{
             Util.log(String.format("Connection to check if table \"%s\" exists failed.", table));
@@ -243,6 +282,63 @@ public class DatabaseManager {
         }
     }
 
+    /**
+     * Checks if a column exists in a table. If it does not, it will add the column.
+     * @param table Name of the table to check.
+     * @param column Name of the column to check for.
+     * @param definition SQL column definition used when adding the column.
+     */
+    protected static void checkCreateColumn(String table, String column, String definition){
+        Connection conn = createConnection();
+        if (conn == null){
+            Util.log(String.format("Connection to check if column \"%s.%s\" exists failed.", table, column));
+            return;
+        }
+        boolean exists = false;
+        try {
+            ResultSet columns = conn.getMetaData().getColumns(null, null, table, column);
+            exists = columns.next();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            closeConnection(conn);
+        }
+        if (!exists){
+            Util.log(String.format("Column \"%s.%s\" does not exist. Adding it now.", table, column));
+            executeUpdate("ALTER TABLE " + table + " ADD COLUMN " + column + " " + definition);
+        }
+    }
+
+    /**
+     * Checks if an index exists on a table. If it does not, it will run the given query to add it.
+     * @param table Name of the table to check.
+     * @param index Name of the index to check for.
+     * @param createIndexQuery SQL query to execute to add the index.
+     */
+    protected static void checkCreateIndex(String table, String index, String createIndexQuery){
+        Connection conn = createConnection();
+        if (conn == null){
+            Util.log(String.format("Connection to check if index \"%s.%s\" exists failed.", table, index));
+            return;
+        }
+        boolean exists = false;
+        try {
+            ResultSet indexes = conn.getMetaData().getIndexInfo(null, null, table, false, false);
+            while (!exists && indexes.next()){
+                exists = index.equalsIgnoreCase(indexes.getString("INDEX_NAME"));
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            closeConnection(conn);
+        }
+        if (!exists){
+            // Fails if existing rows have duplicate or over-long names. They must be fixed by hand first.
+            Util.log(String.format("Index \"%s.%s\" does not exist. Adding it now.", table, index));
+            executeUpdate(createIndexQuery);
+        }
+    }
+
     /**
      * Creates the database used for the game via JDBC SQL connection.
      */
@@ -273,4 +369,166 @@ public class DatabaseManager {
             } catch (SQLException ignored) { }
         }
     }
+
+    /**
+     * Starts the connection pool and the executor used for asynchronous queries.
+     * Should be called after a successful connect().
+     * @param minSize Number of connections kept open at all times.
+     * @param maxSize Maximum number of connections open at once.
+     * @param threads Number of threads running asynchronous queries.
+     * @param queueSize Maximum number of asynchronous queries waiting for a thread.
+     */
+    public static void initializePool(int minSize, int maxSize, int threads, int queueSize){
+        pool = new ConnectionPool(buildConnectionString(DB_IP, DB_PORT, DATABASE_NAME) + POOL_OPTIONS, DB_USER, DB_PASSWORD, minSize, maxSize, POOL_IDLE_TIMEOUT);
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory(){
+            private int count = 0;
+            public Thread newThread(Runnable r){
+                Thread t = new Thread(r, "Database-"+(count++));
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        maintenance = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+            public Thread newThread(Runnable r){
+                Thread t = new Thread(r, "Database-Maintenance");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        maintenance.scheduleWithFixedDelay(new Runnable(){
+            public void run(){
+                pool.evictIdle();
+            }
+        }, POOL_IDLE_TIMEOUT, POOL_IDLE_TIMEOUT/2, TimeUnit.MILLISECONDS);
+        Util.log(String.format("Started database pool with %d-%d connections and %d query threads.", minSize, maxSize, threads));
+    }
+
+    /**
+     * Sets the executor used to run callbacks on the tick thread.
+     * @param tick Executor that runs tasks on the tick thread.
+     */
+    public static void setTickExecutor(Executor tick){
+        tickExecutor = tick;
+    }
+    public static Executor getTickExecutor(){
+        return tickExecutor;
+    }
+    public static LatencyHistogram getQueryLatency(){
+        return queryLatency;
+    }
+
+    /**
+     * @return Number of asynchronous queries waiting for a database thread.
+     */
+    public static int getQueuedQueries(){
+        return executor != null ? executor.getQueue().size() : 0;
+    }
+
+    /**
+     * Runs a query on the database executor using a pooled connection.
+     * Completes exceptionally if no connection could be obtained or the executor queue is full.
+     * @param query Query to run.
+     * @param <T> Type of the result.
+     * @return Future completed on a database thread with the result of the query.
+     */
+    public static <T> CompletableFuture<T> supplyAsync(final Query<T> query){
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(new Runnable(){
+                public void run(){
+                    long start = System.nanoTime();
+                    Connection conn = createConnection();
+                    if (conn == null){
+                        future.completeExceptionally(new SQLException("No database connection available."));
+                        return;
+                    }
+                    T result = null;
+                    Throwable error = null;
+                    try {
+                        result = query.run(conn);
+                    } catch (Throwable t) {
+                        error = t;
+                    } finally {
+                        closeConnection(conn);
+                    }
+                    queryLatency.record(System.nanoTime() - start); // Recorded before dependents run.
+                    if (error != null) {
+                        future.completeExceptionally(error);
+                    } else {
+                        future.complete(result);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Runs a query on the database executor and delivers the result on the tick thread.
+     * @param query Query to run.
+     * @param <T> Type of the result.
+     * @return Future whose dependent actions run on the tick thread.
+     */
+    public static <T> CompletableFuture<T> supplyToTick(Query<T> query){
+        return supplyTo(query, tickExecutor);
+    }
+
+    /**
+     * Runs a query on the database executor and delivers the result through the given executor,
+     * such as the task queue of a world shard.
+     * @param query Query to run.
+     * @param target Executor to run dependent actions on.
+     * @param <T> Type of the result.
+     * @return Future whose dependent actions run on the target executor.
+     */
+    public static <T> CompletableFuture<T> supplyTo(Query<T> query, Executor target){
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        supplyAsync(query).whenCompleteAsync(new BiConsumer<T, Throwable>(){
+            public void accept(T value, Throwable error){
+                if (error != null) {
+                    result.completeExceptionally(error);
+                } else {
+                    result.complete(value);
+                }
+            }
+        }, target);
+        return result;
+    }
+
+    /**
+     * Asynchronous version of executeUpdate.
+     * @param query Update query to execute.
+     * @return Future completed once the update has run.
+     */
+    public static CompletableFuture<Void> executeUpdateAsync(final String query){
+        return supplyAsync(new Query<Void>(){
+            public Void run(Connection conn) throws SQLException{
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.execute(query);
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Stops the asynchronous executor, waiting briefly for queued queries, then closes the pool.
+     */
+    public static void shutdown(){
+        if (maintenance != null) maintenance.shutdownNow();
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                    Util.log("Database executor did not finish all queued queries before shutdown.");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (pool != null) pool.close();
+    }
 }
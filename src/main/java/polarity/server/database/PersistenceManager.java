@@ -0,0 +1,261 @@
+package polarity.server.database;
+
+import com.jme3.network.serializing.Serializer;
+import polarity.shared.character.data.PlayerData;
+import polarity.shared.items.Inventory;
+import polarity.server.tools.FieldCodec;
+import polarity.shared.tools.Util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+/**
+ * Write-behind persistence for player state.
+ * <p>
+ * Gameplay code marks players dirty as their state changes. Repeated changes to the same player
+ * are coalesced, and on a timer the dirty set is captured on the tick thread and written on the
+ * database executor as a single JDBC batch inside one transaction.
+ * Each batch only starts once the previous one has committed or failed, so batches commit in order and
+ * older state can never overwrite newer state. Players in a failed batch are captured again on the next
+ * flush, from their current state.
+ * @author Sindusk
+ */
+public class PersistenceManager {
+    // SQL Statements
+    protected static final String SQL_SAVE_PLAYER = "UPDATE " + DatabaseManager.TABLE_PLAYERS +
+            " SET x = ?, y = ?, inventory = COALESCE(?, inventory) WHERE name = ?";
+
+    private static final int MAX_INVENTORY_SIZE = 65535; // Size of a blob column.
+    private static final long FINAL_FLUSH_WAIT = 10; // Seconds to wait for a batch in flight before the final save.
+
+    protected final float flushInterval;
+    protected float timer = 0;
+
+    // Dirty players by name. Only touched on the tick thread.
+    protected final LinkedHashMap<String, PlayerData> dirty = new LinkedHashMap<>();
+    // Players from failed flushes, filled by database threads.
+    protected final ConcurrentLinkedQueue<PlayerData> retry = new ConcurrentLinkedQueue<>();
+    // Last batch handed to the database, completed once it has committed or its players were queued for a retry.
+    protected CompletableFuture<Integer> inFlight = CompletableFuture.completedFuture(0);
+
+    /**
+     * Immutable copy of a player's state, safe to hand to a database thread.
+     * Also holds the player's data, which database threads never read, so a failed row can be captured again.
+     */
+    protected static class PlayerRow {
+        protected final PlayerData data;
+        protected final String name;
+        protected final float x;
+        protected final float y;
+        protected final byte[] inventory;
+
+        protected PlayerRow(PlayerData data, String name, float x, float y, byte[] inventory){
+            this.data = data;
+            this.name = name;
+            this.x = x;
+            this.y = y;
+            this.inventory = inventory;
+        }
+    }
+
+    /**
+     * @param flushInterval Seconds between flushes.
+     */
+    public PersistenceManager(float flushInterval){
+        this.flushInterval = flushInterval;
+    }
+
+    /**
+     * Marks a player as needing to be saved. Must be called from the tick thread.
+     * @param data Data of the player that changed.
+     */
+    public void markDirty(PlayerData data){
+        if(data != null){
+            dirty.put(data.getName(), data);
+        }
+    }
+
+    public int getDirtyCount(){
+        return dirty.size();
+    }
+
+    /**
+     * Advances the flush timer, flushing when it elapses. Must be called from the tick thread.
+     * @param tpf Time since the last update, in seconds.
+     */
+    public void update(float tpf){
+        timer += tpf;
+        if(timer >= flushInterval){
+            timer = 0;
+            flush();
+        }
+    }
+
+    /**
+     * Writes every dirty player on the database executor, once the previous batch has finished.
+     * Must be called from the tick thread.
+     * @return Future completed once the batch has been committed.
+     */
+    public CompletableFuture<Integer> flush(){
+        final ArrayList<PlayerRow> rows = capture();
+        if(rows.isEmpty()){
+            return CompletableFuture.completedFuture(0);
+        }
+        CompletableFuture<Integer> future = inFlight.thenCompose(new Function<Integer, CompletionStage<Integer>>(){
+            public CompletionStage<Integer> apply(Integer previous){
+                return DatabaseManager.supplyAsync(new DatabaseManager.Query<Integer>(){
+                    public Integer run(Connection conn) throws SQLException{
+                        return writeBatch(conn, rows);
+                    }
+                });
+            }
+        });
+        inFlight = future.exceptionally(new Function<Throwable, Integer>(){
+            public Integer apply(Throwable error){
+                Util.log(String.format("Failed to save %d players, retrying next flush: %s", rows.size(), error.getMessage()));
+                for(PlayerRow row : rows){
+                    retry.add(row.data);
+                }
+                return 0;
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Writes every dirty player on the calling thread. Used for the final save on shutdown, once the tick has stopped.
+     * Waits for the batch in flight first, so it cannot commit after the final save and overwrite it.
+     */
+    public void flushNow(){
+        try{
+            inFlight.get(FINAL_FLUSH_WAIT, TimeUnit.SECONDS);
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }catch(ExecutionException | TimeoutException e){
+            Util.log("Gave up waiting for the last save before the final save: "+e);
+        }
+        ArrayList<PlayerRow> rows = capture();
+        if(rows.isEmpty()){
+            return;
+        }
+        Connection conn = DatabaseManager.createConnection();
+        if(conn == null){
+            Util.log(String.format("Failed to save %d players on shutdown: No database connection.", rows.size()));
+            return;
+        }
+        try{
+            int saved = writeBatch(conn, rows);
+            Util.log(String.format("Saved %d players.", saved));
+        }catch(SQLException e){
+            Util.log(String.format("Failed to save %d players on shutdown: %s", rows.size(), e.getMessage()));
+        }finally{
+            try{
+                conn.close();
+            }catch(SQLException ignored){ }
+        }
+    }
+
+    /**
+     * Copies the current state of every dirty player and every player awaiting a retry, then clears the dirty set.
+     */
+    protected ArrayList<PlayerRow> capture(){
+        PlayerData failed;
+        while((failed = retry.poll()) != null){
+            if(!dirty.containsKey(failed.getName())){
+                dirty.put(failed.getName(), failed);
+            }
+        }
+        ArrayList<PlayerRow> rows = new ArrayList<>(dirty.size());
+        for(PlayerData data : dirty.values()){
+            rows.add(new PlayerRow(data, data.getName(), data.getLocation().x, data.getLocation().y, encode(data.getInventory())));
+        }
+        dirty.clear();
+        return rows;
+    }
+
+    /**
+     * Serializes an inventory for storage, with the names of its classes and fields, so it can still be read
+     * after the network registrations change. See FieldCodec.
+     * @param inv Inventory to serialize.
+     * @return The serialized inventory, or null if it could not be serialized.
+     */
+    protected byte[] encode(Inventory inv){
+        if(inv == null){
+            return null;
+        }
+        byte[] bytes;
+        try{
+            bytes = FieldCodec.encode(inv);
+        }catch(IOException | RuntimeException e){
+            Util.log("Failed to serialize inventory: "+e);
+            return null;
+        }
+        if(bytes.length > MAX_INVENTORY_SIZE){
+            Util.log("Failed to serialize inventory: "+bytes.length+" bytes is over the limit of "+MAX_INVENTORY_SIZE+".");
+            return null;
+        }
+        return bytes;
+    }
+
+    /**
+     * Decodes an inventory serialized by encode().
+     * Inventories saved before the FieldCodec was used are read with the network Serializer, which only works
+     * while the registrations match the ones they were written with. They are rewritten on the next save.
+     * @param bytes Serialized inventory.
+     * @return The inventory, or null if it could not be read.
+     */
+    public static Inventory decode(byte[] bytes){
+        if(bytes == null){
+            return null;
+        }
+        try{
+            if(FieldCodec.isEncoded(bytes)){
+                return (Inventory) FieldCodec.decode(bytes);
+            }
+            return (Inventory) Serializer.readClassAndObject(ByteBuffer.wrap(bytes));
+        }catch(IOException | RuntimeException e){
+            Util.log("Failed to deserialize inventory: "+e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes all rows as one batch inside a single transaction.
+     * @param conn Connection to write with.
+     * @param rows Rows to write.
+     * @return Number of rows written.
+     * @throws SQLException If the batch fails. The transaction is rolled back.
+     */
+    protected static int writeBatch(Connection conn, ArrayList<PlayerRow> rows) throws SQLException{
+        conn.setAutoCommit(false);
+        try(PreparedStatement ps = conn.prepareStatement(SQL_SAVE_PLAYER)){
+            for(PlayerRow row : rows){
+                ps.setFloat(1, row.x);
+                ps.setFloat(2, row.y);
+                ps.setBytes(3, row.inventory);
+                ps.setString(4, row.name);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+            conn.commit();
+            return rows.size();
+        }catch(SQLException e){
+            conn.rollback();
+            throw e;
+        }finally{
+            conn.setAutoCommit(true);
+        }
+    }
+}
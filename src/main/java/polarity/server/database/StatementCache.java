@@ -0,0 +1,179 @@
+package polarity.server.database;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used cache of prepared statements for a single pooled connection.
+ * <p>
+ * Statements handed out are proxies. Closing one clears its parameters and returns it to the cache
+ * instead of closing it, so code that prepares and closes a statement per query reuses the same
+ * statement on every call. If a statement is requested while its cached copy is still open, an
+ * uncached statement is prepared instead. Only used by one thread at a time, along with its connection.
+ * @author Sindusk
+ */
+public class StatementCache {
+    protected final Connection conn;
+    protected final int capacity;
+    protected final LinkedHashMap<String, CachedStatement> statements;
+    // Pooled connection proxy currently handed out for conn. Reported by getConnection().
+    protected Connection owner;
+
+    // Metrics
+    protected long hits = 0;
+    protected long misses = 0;
+
+    /**
+     * A cached statement and its proxy.
+     */
+    protected class CachedStatement implements InvocationHandler {
+        protected final PreparedStatement statement;
+        protected final PreparedStatement proxy;
+        protected boolean inUse = false;
+        protected boolean evicted = false;
+
+        protected CachedStatement(PreparedStatement statement){
+            this.statement = statement;
+            this.proxy = (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                    new Class[]{PreparedStatement.class}, this);
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable{
+            String name = method.getName();
+            if(method.getDeclaringClass() == Object.class){
+                return method.invoke(statement, args);
+            }else if(name.equals("close")){
+                if(inUse){
+                    release(this);
+                }
+                return null;
+            }else if(name.equals("isClosed")){
+                return !inUse || statement.isClosed();
+            }else if(name.equals("getConnection")){
+                return owner; // Never the underlying connection, so closing it still returns it to the pool.
+            }else if(!inUse){
+                throw new SQLException("Statement has been closed.");
+            }
+            try{
+                return method.invoke(statement, args);
+            }catch(InvocationTargetException e){
+                throw e.getCause();
+            }
+        }
+    }
+
+    /**
+     * @param conn Underlying connection to prepare statements on.
+     * @param capacity Maximum number of statements kept prepared.
+     */
+    public StatementCache(Connection conn, final int capacity){
+        this.conn = conn;
+        this.capacity = capacity;
+        this.statements = new LinkedHashMap<String, CachedStatement>(16, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest){
+                if(size() <= capacity){
+                    return false;
+                }
+                evict(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    public void setOwner(Connection owner){
+        this.owner = owner;
+    }
+    public long getHits(){
+        return hits;
+    }
+    public long getMisses(){
+        return misses;
+    }
+
+    /**
+     * Gets a prepared statement, reusing a cached one if it is free.
+     * @param sql SQL of the statement.
+     * @param autoGeneratedKeys Statement.RETURN_GENERATED_KEYS or Statement.NO_GENERATED_KEYS.
+     * @return The statement. Closing it returns it to the cache.
+     * @throws SQLException If the statement could not be prepared.
+     */
+    public PreparedStatement prepare(String sql, int autoGeneratedKeys) throws SQLException{
+        String key = autoGeneratedKeys + ":" + sql;
+        CachedStatement cached = statements.get(key);
+        if(cached != null){
+            if(cached.inUse){
+                return conn.prepareStatement(sql, autoGeneratedKeys); // Already open, so this one is not cached.
+            }
+            hits++;
+            cached.inUse = true;
+            return cached.proxy;
+        }
+        misses++;
+        cached = new CachedStatement(conn.prepareStatement(sql, autoGeneratedKeys));
+        cached.inUse = true;
+        statements.put(key, cached);
+        return cached.proxy;
+    }
+
+    /**
+     * Returns every statement left open to the cache. Called when the connection goes back to the pool.
+     */
+    public void releaseAll(){
+        for(CachedStatement cached : new ArrayList<>(statements.values())){ // Release may drop broken statements.
+            if(cached.inUse){
+                release(cached);
+            }
+        }
+    }
+
+    /**
+     * Closes every cached statement. Called when the connection is closed.
+     */
+    public void close(){
+        Iterator<CachedStatement> it = statements.values().iterator();
+        while(it.hasNext()){
+            closeQuietly(it.next().statement);
+            it.remove();
+        }
+    }
+
+    protected void release(CachedStatement cached){
+        cached.inUse = false;
+        try{
+            ResultSet rs = cached.statement.getResultSet();
+            if(rs != null){
+                rs.close();
+            }
+            cached.statement.clearParameters();
+            cached.statement.clearBatch();
+        }catch(SQLException e){
+            cached.evicted = true; // Unusable, so drop it.
+            statements.values().remove(cached);
+        }
+        if(cached.evicted){
+            closeQuietly(cached.statement);
+        }
+    }
+    protected void evict(CachedStatement cached){
+        cached.evicted = true;
+        if(!cached.inUse){
+            closeQuietly(cached.statement);
+        }
+    }
+    protected static void closeQuietly(PreparedStatement statement){
+        try{
+            statement.close();
+        }catch(SQLException ignored){ }
+    }
+}
@@ -28,19 +28,30 @@ public class EventChain {
         return finished;
     }
 
+    /**
+     * Advances every pending event and executes those that are due.
+     * Executed events are removed in a single compacting pass instead of one shift per removal.
+     */
     public void execute(Server server, GameWorld world, float tpf){
-        int i = 0;
-        while(i < chain.size()){
-            Event event = chain.get(i);
+        int write = 0;
+        int size = chain.size();
+        for(int read = 0; read < size; read++){
+            Event event = chain.get(read);
             event.addTime(tpf);
             if(event.shouldExecute()){
                 event.resetStart();
                 event.execute(server, world);
-                chain.remove(i);
             }else{
-                i++;
+                chain.set(write++, event);
             }
         }
+        // Keep any events added to the chain while executing.
+        for(int i = size; i < chain.size(); i++){
+            chain.set(write++, chain.get(i));
+        }
+        for(int i = chain.size()-1; i >= write; i--){
+            chain.remove(i);
+        }
         if(chain.isEmpty()){
             finished = true;
         }
@@ -16,17 +16,31 @@ public class EventManager {
         chains = new ArrayList<>();
     }
     
+    /**
+     * Executes every chain, removing finished ones in the same pass.
+     * Live chains are compacted towards the front of the list and the finished tail is
+     * trimmed from the end, so removal is O(1) per chain rather than a shift of the whole list.
+     * Chains added while executing are picked up in the same pass.
+     */
     public void serverUpdate(Server server, GameWorld world, float tpf){
-        int i = 0;
-        while(i < chains.size()){
-            if(!chains.get(i).isFinished()){
-                chains.get(i).execute(server, world, tpf);
-            }else{
-                chains.remove(i);
+        int write = 0;
+        for(int read = 0; read < chains.size(); read++){
+            EventChain chain = chains.get(read);
+            if(!chain.isFinished()){
+                chain.execute(server, world, tpf);
             }
-            i++;
+            if(!chain.isFinished()){
+                chains.set(write++, chain);
+            }
+        }
+        for(int i = chains.size()-1; i >= write; i--){
+            chains.remove(i);
         }
     }
+
+    public int getChainCount(){
+        return chains.size();
+    }
     
     public void addEventChain(EventChain chain){
         chains.add(chain);
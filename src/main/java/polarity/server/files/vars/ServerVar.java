@@ -11,7 +11,40 @@ public enum ServerVar {
     DatabaseIp("dbip", "127.0.0.1"),
     DatabasePort("dbport", "3306"),
     DatabaseUser("dbuser", "user"),
-    DatabasePassword("dbpassword", "password");
+    DatabasePassword("dbpassword", "password"),
+    MaxCatchUpTicks("maxCatchUpTicks", "4"),
+    ParallelUpdate("parallelUpdate", "false"),
+    UpdateThreads("updateThreads", "0"),
+    InterestRadius("interestRadius", "64"),
+    DatabasePoolMin("dbPoolMin", "2"),
+    DatabasePoolMax("dbPoolMax", "8"),
+    DatabaseThreads("dbThreads", "4"),
+    DatabaseQueueSize("dbQueueSize", "256"),
+    PersistInterval("persistInterval", "30"),
+    ChunkCacheSize("chunkCacheMB", "64"),
+    ChunkGenerationBudget("chunkGenerationBudget", "4"),
+    ChunkStorePath("chunkStore", "chunks"),
+    PregenRadius("pregenRadius", "8"),
+    IngressQueueSize("ingressQueueSize", "256"),
+    IngressRate("ingressRate", "256"),
+    IngressBurst("ingressBurst", "512"),
+    IngressPerTick("ingressPerTick", "2048"),
+    ClientBandwidth("clientBandwidthKB", "256"),
+    CompactSerializers("compactSerializers", "false"),
+    LoginConcurrency("loginConcurrency", "4"),
+    LoginQueueSize("loginQueueSize", "64"),
+    MetricsPort("metricsPort", "9464"),
+    MetricsJmx("metricsJmx", "true"),
+    TickBudget("tickBudgetMs", "25"),
+    FlightRecorderTicks("flightRecorderTicks", "512"),
+    FlightRecorderPath("flightRecorderPath", "recordings"),
+    SimulationOnly("simulationOnly", "false"),
+    ClusterNode("clusterNode", ""),
+    ClusterTransport("clusterTransport", "loopback"),
+    SnapshotBatching("snapshotBatching", "false"),
+    Port("port", "6143"),
+    ClusterChat("clusterChat", "false"),
+    DevCommands("devCommands", "false");
     
     protected String var;
     protected String value;
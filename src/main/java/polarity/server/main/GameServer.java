@@ -4,22 +4,41 @@ import com.jme3.math.Vector2f;
 import com.jme3.scene.Node;
 import com.jme3.system.AppSettings;
 import com.jme3.system.JmeContext;
+import polarity.server.cluster.NodeLink;
 import polarity.server.database.DatabaseManager;
+import polarity.server.database.PersistenceManager;
 import polarity.server.events.EventManager;
 import polarity.server.files.ServerProperties;
+import polarity.server.files.vars.ServerVar;
 import polarity.server.input.ServerInputHandler;
+import polarity.server.metrics.Gauge;
+import polarity.server.metrics.GcMonitor;
+import polarity.server.metrics.MetricsMBean;
+import polarity.server.metrics.MetricsRegistry;
+import polarity.server.metrics.MetricsServer;
+import polarity.server.metrics.TickMetrics;
 import polarity.server.monsters.MonsterManager;
 import polarity.server.network.ServerNetwork;
 import polarity.server.players.PlayerManager;
+import polarity.server.recorder.FlightRecorder;
+import polarity.server.shard.WorldShard;
+import polarity.server.tick.ParallelUpdater;
+import polarity.server.tick.RangeTask;
+import polarity.server.tick.TickPhase;
+import polarity.server.tick.TickScheduler;
+import polarity.server.tick.TickTask;
 import polarity.server.world.ServerWorld;
-import polarity.shared.ai.AIManager;
+import polarity.server.world.chunks.ChunkService;
 import polarity.shared.hud.advanced.FPSCounter;
 import polarity.shared.main.GameApplication;
 import polarity.shared.netdata.ServerStatusData;
 import polarity.shared.tools.Sys;
 import polarity.shared.tools.Util;
 
-import java.util.concurrent.Callable;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -60,20 +79,34 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 public class GameServer extends GameApplication {
     // Constants:
     private static final String SERVER_PROPERTIES_FILENAME  = "server.properties";
+    private static final int TICK_RATE = 64;
+    private static final int FLIGHT_RECORDER_HANDLERS = 8; // Slowest handlers kept per tick.
 
     // Instance variables:
     protected static GameServer Instance = null;
-    protected PlayerManager playerManager = new PlayerManager();
-    protected MonsterManager monsterManager = new MonsterManager();
     protected ServerInputHandler inputHandler;
     protected ServerNetwork serverNetwork;
     protected ServerProperties properties = new ServerProperties(SERVER_PROPERTIES_FILENAME);
     protected ServerStatusData status = new ServerStatusData();
-    
-    protected AIManager aiManager;
-    protected EventManager eventManager;
 
-    protected FPSCounter fpsCounter;
+    // The world and everything in it. Ticked by update(), and the world shared code sees through Sys.
+    protected WorldShard shard;
+    protected NodeLink link; // Null when not part of a cluster.
+
+    protected FPSCounter fpsCounter; // Null in simulation-only mode.
+    // When set, the scene graph is never updated or rendered and nothing is built for display.
+    protected boolean simulationOnly = false;
+    protected ParallelUpdater parallelUpdater; // Null when running in serial mode.
+    // Cleared if a parallel update changes shared state, after which updates run serially.
+    protected volatile boolean parallelSafe = true;
+
+    // Metrics. The endpoints are null when disabled.
+    protected MetricsRegistry metrics;
+    protected TickMetrics tickMetrics;
+    protected GcMonitor gcMonitor;
+    protected MetricsServer metricsServer;
+    protected MetricsMBean metricsBean;
+    protected FlightRecorder recorder;
     
     // Getters for Nodes:
     public Node getGUI(){
@@ -83,11 +116,32 @@ public class GameServer extends GameApplication {
         return root;
     }
     public EventManager getEventManager(){
-        return eventManager;
+        return shard.getEvents();
     }
     public ServerProperties getProperties(){
         return properties;
     }
+    public TickScheduler getScheduler(){
+        return shard.getScheduler();
+    }
+    public PersistenceManager getPersistence(){
+        return shard.getPersistence();
+    }
+    public ChunkService getChunkService(){
+        return shard.getChunkService();
+    }
+    public WorldShard getShard(){
+        return shard;
+    }
+    public NodeLink getLink(){
+        return link;
+    }
+    public MetricsRegistry getMetrics(){
+        return metrics;
+    }
+    public boolean isSimulationOnly(){
+        return simulationOnly;
+    }
     
     public static void main(String[] args){
         Instance = new GameServer();
@@ -100,7 +154,7 @@ public class GameServer extends GameApplication {
         settings = new AppSettings(true);
         settings.setSamples(0);
         settings.setVSync(false);
-        settings.setFrameRate(64); // Server tickrate
+        settings.setFrameRate(TICK_RATE); // Server tickrate
         //settings.setRenderer(AppSettings.LWJGL_OPENGL1);
         settings.setResolution(600, 400);
         settings.setTitle("Polarity Server");
@@ -115,6 +169,7 @@ public class GameServer extends GameApplication {
         // Initialize properties
         properties.load();
         properties.loadSettings(status);
+        simulationOnly = Boolean.parseBoolean(properties.getVar(ServerVar.SimulationOnly.getVar()));
 
         // Read database properties and initialize database connection.
         String dbip = properties.getVar("dbip");
@@ -128,8 +183,19 @@ public class GameServer extends GameApplication {
             Instance.stop();
             return;
         }
+        DatabaseManager.initializePool(
+                Integer.parseInt(properties.getVar(ServerVar.DatabasePoolMin.getVar())),
+                Integer.parseInt(properties.getVar(ServerVar.DatabasePoolMax.getVar())),
+                Integer.parseInt(properties.getVar(ServerVar.DatabaseThreads.getVar())),
+                Integer.parseInt(properties.getVar(ServerVar.DatabaseQueueSize.getVar())));
+        DatabaseManager.setTickExecutor(new Executor(){
+            public void execute(Runnable task){
+                enqueue(Executors.callable(task));
+            }
+        });
 
-        // Initialize Player Manager.
+        // Initialize shard
+        shard = new WorldShard(properties, status.getMaxPlayers(), TICK_RATE);
         
         // Initialize input handler
         Util.log("[GameServer] <initialize> Creating InputHandler...", 1);
@@ -137,66 +203,336 @@ public class GameServer extends GameApplication {
         
         // Start server network
         Util.log("[GameServer] <initialize> Starting Network...", 1);
-        serverNetwork = new ServerNetwork(this, playerManager, monsterManager);
+        serverNetwork = new ServerNetwork(this, shard);
         Sys.setNetwork(serverNetwork);
         
         // Custom Initialize
-        world = new ServerWorld(50);
+        shard.initializeWorld();
+        world = shard.getWorld();
         Sys.setWorld(world);
-        world.generateStart();
-        aiManager = new AIManager();
-        eventManager = new EventManager();
         
-        fpsCounter = new FPSCounter(gui, new Vector2f(30, Sys.height-30), 30);
+        if(simulationOnly){
+            Util.log("[GameServer] <initialize> Running simulation only. The scene graph will not be updated or rendered.", 1);
+        }else{
+            fpsCounter = new FPSCounter(gui, new Vector2f(30, Sys.height-30), 30);
+        }
+
+        // Initialize tick schedulers
+        if(Boolean.parseBoolean(properties.getVar(ServerVar.ParallelUpdate.getVar()))){
+            if(!simulationOnly){
+                // Entity updates move their own scene nodes, which the render pass reads on this thread.
+                Util.log("[GameServer] <initialize> Parallel entity updates need simulation-only mode. Updating serially.", 1);
+            }else{
+                parallelUpdater = new ParallelUpdater(Integer.parseInt(properties.getVar(ServerVar.UpdateThreads.getVar())));
+                Util.log("[GameServer] <initialize> Using parallel entity updates with "+parallelUpdater.getWorkers()+" workers.", 1);
+            }
+        }
+        initializeTickTasks();
+        initializeLink();
+        initializeMetrics();
+        initializeRecorder();
     }
 
-    @Override
-    public void update() {
-        super.update(); // makes sure to execute AppTasks
-        if(speed == 0 || paused){   // If the client is paused, do not update.
+    /**
+     * Joins the cluster named by the server properties, if any. Players can then be handed off
+     * to the other nodes, and chat is shared with them. Runs alone if the cluster cannot be joined.
+     */
+    protected void initializeLink(){
+        String node = properties.getVar(ServerVar.ClusterNode.getVar());
+        if(node.isEmpty()){
             return;
         }
-        final float tpf = timer.getTimePerFrame() * speed;
-        if(timer.getTimePerFrame() >= 1){
-            Util.log("Server is chugging: "+timer.getTimePerFrame());
+        try{
+            NodeLink started = new NodeLink(NodeLink.createTransport(properties.getVar(ServerVar.ClusterTransport.getVar()), node), serverNetwork);
+            started.start();
+            link = started;
+            serverNetwork.setLink(link);
+        }catch(IOException e){
+            Util.log("[GameServer] <initializeLink> Unable to join the cluster as node "+node+", running alone: "+e.getMessage());
         }
-        
-        // Update States:
-        stateManager.update(tpf);
-        
-        // Custom updates
-        fpsCounter.update(tpf);
-        
-        enqueue(new Callable<Void>(){
-            public Void call() throws Exception{
-                aiManager.serverUpdate(getWorld(), monsterManager.getMonsters(), tpf);
-                return null;
+    }
+
+    /**
+     * Starts the flight recorder, which keeps the recent history of every tick and dumps it when a tick runs long.
+     */
+    protected void initializeRecorder(){
+        long budget = (long) (Double.parseDouble(properties.getVar(ServerVar.TickBudget.getVar())) * 1000000);
+        recorder = new FlightRecorder(Integer.parseInt(properties.getVar(ServerVar.FlightRecorderTicks.getVar())),
+                FLIGHT_RECORDER_HANDLERS, shard.getScheduler().getStepNanos(), budget,
+                new File(properties.getVar(ServerVar.FlightRecorderPath.getVar())));
+        recorder.addCount("players", new Gauge(){
+            public double get(){
+                return shard.getPlayers().getPlayerCount();
+            }
+        });
+        recorder.addCount("monsters", new Gauge(){
+            public double get(){
+                return shard.getMonsters().getMonsterCount();
+            }
+        });
+        recorder.addCount("projectiles", new Gauge(){
+            public double get(){
+                return shard.getWorld().getProjectileCount();
+            }
+        });
+        recorder.addCount("inbound", new Gauge(){
+            public double get(){
+                return shard.getIngress().getQueued();
+            }
+        });
+        shard.getScheduler().addListener(recorder);
+        shard.getDispatcher().setListener(recorder);
+    }
+
+    /**
+     * Registers the server metrics and starts the endpoints that expose them.
+     * Subsystems record into their own counters and histograms. The registry only reads them when scraped.
+     */
+    protected void initializeMetrics(){
+        metrics = new MetricsRegistry("polarity_");
+        tickMetrics = new TickMetrics();
+        shard.getScheduler().addListener(tickMetrics);
+        gcMonitor = new GcMonitor();
+        gcMonitor.start();
+
+        // Tick timings
+        metrics.histogram("tick_seconds", "Time taken by each simulation tick.", null, null, tickMetrics.getTicks());
+        for(TickPhase phase : TickPhase.values()){
+            metrics.histogram("tick_phase_seconds", "Time taken by each phase of a tick.", "phase", phase.getName(), tickMetrics.getPhase(phase));
+        }
+        metrics.counter("ticks_total", "Simulation ticks run.", null, null, new Gauge(){
+            public double get(){
+                return shard.getScheduler().getTickCount();
             }
         });
-        enqueue(new Callable<Void>(){
-            public Void call() throws Exception{
-                playerManager.serverUpdate((ServerWorld)getWorld(), tpf);
-                return null;
+
+        // Queues
+        metrics.gauge("queued_tasks", "Work waiting to be done, per queue.", "queue", "database", new Gauge(){
+            public double get(){
+                return DatabaseManager.getQueuedQueries();
             }
         });
-        enqueue(new Callable<Void>(){
-            public Void call() throws Exception{
-                monsterManager.serverUpdate((ServerWorld)getWorld(), tpf);
-                return null;
+        metrics.gauge("queued_tasks", "Work waiting to be done, per queue.", "queue", "inbound", new Gauge(){
+            public double get(){
+                return shard.getIngress().getQueued();
             }
         });
-        enqueue(new Callable<Void>(){
-            public Void call() throws Exception{
-                eventManager.serverUpdate(serverNetwork.getServer(), getWorld(), tpf);
-                return null;
+        metrics.gauge("queued_tasks", "Work waiting to be done, per queue.", "queue", "logins", new Gauge(){
+            public double get(){
+                return shard.getLogins().getWaiting();
             }
         });
-        enqueue(new Callable<Void>(){
-            public Void call() throws Exception{
-                world.serverUpdate(tpf);
-                return null;
+        metrics.gauge("queued_tasks", "Work waiting to be done, per queue.", "queue", "chunks", new Gauge(){
+            public double get(){
+                return shard.getChunkService().getPendingCount();
             }
         });
+        metrics.gauge("queued_tasks", "Work waiting to be done, per queue.", "queue", "persistence", new Gauge(){
+            public double get(){
+                return shard.getPersistence().getDirtyCount();
+            }
+        });
+
+        // Network
+        metrics.counter("messages_received_total", "Messages received, per type.", "type", serverNetwork.getInbound());
+        metrics.counter("messages_sent_total", "Messages queued or broadcast to clients, per type.", "type", shard.getSnapshots().getOutbound());
+        if(link != null){
+            metrics.counter("node_handoffs_total", "Players moved between nodes, per direction.", "direction", "sent", new Gauge(){
+                public double get(){
+                    return link.getHandoffsSent();
+                }
+            });
+            metrics.counter("node_handoffs_total", "Players moved between nodes, per direction.", "direction", "received", new Gauge(){
+                public double get(){
+                    return link.getHandoffsReceived();
+                }
+            });
+            metrics.counter("node_chat_total", "Chat messages exchanged with other nodes, per direction.", "direction", "sent", new Gauge(){
+                public double get(){
+                    return link.getChatSent();
+                }
+            });
+            metrics.counter("node_chat_total", "Chat messages exchanged with other nodes, per direction.", "direction", "received", new Gauge(){
+                public double get(){
+                    return link.getChatReceived();
+                }
+            });
+        }
+
+        // Database
+        metrics.histogram("db_query_seconds", "Time taken by each asynchronous database query.", null, null, DatabaseManager.getQueryLatency());
+
+        // Entities
+        metrics.gauge("entities", "Live entities, per kind.", "kind", "players", new Gauge(){
+            public double get(){
+                return shard.getPlayers().getPlayerCount();
+            }
+        });
+        metrics.gauge("entities", "Live entities, per kind.", "kind", "monsters", new Gauge(){
+            public double get(){
+                return shard.getMonsters().getMonsterCount();
+            }
+        });
+        metrics.gauge("entities", "Live entities, per kind.", "kind", "awake_monsters", new Gauge(){
+            public double get(){
+                return shard.getMonsters().getAwakeCount();
+            }
+        });
+        metrics.gauge("entities", "Live entities, per kind.", "kind", "projectiles", new Gauge(){
+            public double get(){
+                return shard.getWorld().getProjectileCount();
+            }
+        });
+
+        // JVM
+        metrics.histogram("gc_pause_seconds", "Duration of each garbage collection.", null, null, gcMonitor.getPauses());
+
+        int port = Integer.parseInt(properties.getVar(ServerVar.MetricsPort.getVar()));
+        if(port > 0){
+            metricsServer = new MetricsServer(metrics);
+            try{
+                metricsServer.start(port);
+            }catch(IOException e){
+                Util.log("[GameServer] Failed to start the metrics endpoint on port "+port+": "+e.getMessage());
+                metricsServer = null;
+            }
+        }
+        if(Boolean.parseBoolean(properties.getVar(ServerVar.MetricsJmx.getVar()))){
+            metricsBean = new MetricsMBean(metrics);
+            try{
+                metricsBean.register("polarity.server:type=Metrics");
+            }catch(Exception e){
+                Util.log("[GameServer] Failed to register the metrics MBean: "+e.getMessage());
+                metricsBean = null;
+            }
+        }
+    }
+
+    /**
+     * Binds each subsystem update of the shard to its phase in the tick scheduler.
+     * Tasks are created once here so that ticking does not allocate.
+     */
+    protected void initializeTickTasks(){
+        final TickScheduler scheduler = shard.getScheduler();
+        final ServerWorld serverWorld = shard.getWorld();
+        final PlayerManager playerManager = shard.getPlayers();
+        final MonsterManager monsterManager = shard.getMonsters();
+        scheduler.setTask(TickPhase.Input, new TickTask(){
+            public void tick(float tpf){
+                shard.drainInbound();
+            }
+        });
+        scheduler.setTask(TickPhase.AI, new TickTask(){
+            public void tick(float tpf){
+                // Only monsters near a player can acquire a target, so the rest are left out.
+                shard.getAI().serverUpdate(serverWorld, monsterManager.collectAwake(shard.getInterest()), tpf);
+            }
+        });
+        if(parallelUpdater == null){
+            scheduler.setTask(TickPhase.Players, new TickTask(){
+                public void tick(float tpf){
+                    playerManager.serverUpdate(serverWorld, tpf);
+                }
+            });
+            scheduler.setTask(TickPhase.Monsters, new TickTask(){
+                public void tick(float tpf){
+                    monsterManager.serverUpdate(serverWorld, tpf);
+                }
+            });
+        }else{
+            // Each phase is split into one chunk per worker, and run() only returns once every chunk is done.
+            // While chunks run, an update may only change the entity it was given: its data, its vectors
+            // and its own scene node. The world is read-only, so projectiles are queued rather than added
+            // or removed. If the entity list or the world's scene graph changed anyway, the phase was not
+            // safe to run in parallel, and every later update runs serially on the tick thread.
+            final RangeTask playerRange = new RangeTask(){
+                public void run(int from, int to, float tpf){
+                    playerManager.serverUpdate(serverWorld, from, to, tpf);
+                }
+            };
+            final RangeTask monsterRange = new RangeTask(){
+                public void run(int from, int to, float tpf){
+                    monsterManager.serverUpdate(serverWorld, from, to, tpf);
+                }
+            };
+            scheduler.setTask(TickPhase.Players, new TickTask(){
+                public void tick(float tpf){
+                    if(!parallelSafe){
+                        playerManager.serverUpdate(serverWorld, tpf);
+                        return;
+                    }
+                    serverWorld.beginReadOnly();
+                    parallelUpdater.run(playerRange, playerManager.getPlayerCount(), tpf);
+                    checkParallelUpdate(serverWorld.endReadOnly(), "player");
+                }
+            });
+            scheduler.setTask(TickPhase.Monsters, new TickTask(){
+                public void tick(float tpf){
+                    if(!parallelSafe){
+                        monsterManager.serverUpdate(serverWorld, tpf);
+                        return;
+                    }
+                    serverWorld.beginReadOnly();
+                    parallelUpdater.run(monsterRange, monsterManager.getMonsterCount(), tpf);
+                    checkParallelUpdate(serverWorld.endReadOnly(), "monster");
+                }
+            });
+        }
+        scheduler.setTask(TickPhase.Events, new TickTask(){
+            public void tick(float tpf){
+                shard.getEvents().serverUpdate(serverNetwork.getServer(), serverWorld, tpf);
+            }
+        });
+        scheduler.setTask(TickPhase.World, new TickTask(){
+            public void tick(float tpf){
+                serverWorld.serverUpdate(tpf);
+                monsterManager.releaseRemoved(); // Every phase that can remove monsters has run.
+                shard.getChunkService().update();
+                shard.getPersistence().update(tpf);
+            }
+        });
+        scheduler.setTask(TickPhase.Snapshot, new TickTask(){
+            public void tick(float tpf){
+                shard.getSnapshots().flush();
+            }
+        });
+    }
+
+    /**
+     * Switches to serial updates if a parallel phase changed state that workers may not touch.
+     * @param unchanged Result of ServerWorld.endReadOnly() for the phase.
+     * @param phase Name of the phase, for the log.
+     */
+    protected void checkParallelUpdate(boolean unchanged, String phase){
+        if(!unchanged && parallelSafe){
+            parallelSafe = false;
+            Util.log("[GameServer] The parallel "+phase+" update changed the world's entities or scene graph. Updating serially from now on.");
+        }
+    }
+
+    @Override
+    public void update() {
+        super.update(); // makes sure to execute AppTasks
+        if(speed == 0 || paused){   // If the client is paused, do not update.
+            return;
+        }
+        final float tpf = timer.getTimePerFrame() * speed;
+        
+        // Update States:
+        stateManager.update(tpf);
+        
+        // Custom updates
+        if(fpsCounter != null){
+            fpsCounter.update(tpf);
+        }
+        
+        // Run all simulation ticks that are due. Each tick starts by handling the messages queued by the network.
+        shard.getScheduler().advance(tpf);
+        recorder.frameCompleted(); // Dumps outside of tick timing if a tick ran over budget.
+
+        if(simulationOnly){
+            return; // Nothing reads the scene graph, so skip updating and rendering it.
+        }
 
         // Update logical and geometric states:
         updateNodeStates(tpf);
@@ -207,7 +543,32 @@ public class GameServer extends GameApplication {
     
     @Override
     public void destroy(){
+        if(parallelUpdater != null){
+            parallelUpdater.stop();
+        }
+        if(link != null){
+            link.close(); // Leave the cluster before the last players are saved.
+        }
         serverNetwork.stop();
+        if(metricsServer != null){
+            metricsServer.stop();
+        }
+        if(metricsBean != null){
+            metricsBean.unregister();
+        }
+        if(gcMonitor != null){
+            gcMonitor.stop();
+        }
+        if(link != null){
+            link.logStats();
+        }
+        shard.logStats();
+        if(recorder != null){
+            recorder.logStats();
+            recorder.close();
+        }
+        shard.close(); // Final save of everyone still connected, written before the pool shuts down.
+        DatabaseManager.shutdown();
         super.destroy();
     }
 }
@@ -0,0 +1,10 @@
+package polarity.server.metrics;
+
+/**
+ * A value read whenever metrics are collected.
+ * Called from the metrics threads, so it should only read fields, not change anything.
+ * @author Sindusk
+ */
+public interface Gauge {
+    double get();
+}
@@ -0,0 +1,59 @@
+package polarity.server.metrics;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+
+/**
+ * Records the duration of every garbage collection reported by the JVM.
+ * <p>
+ * Durations come from the collectors' notifications, which HotSpot sends after each collection.
+ * For the young generation collectors these are stop-the-world pauses. Concurrent collectors
+ * report the whole cycle, which overstates the pause they caused.
+ * @author Sindusk
+ */
+public class GcMonitor implements NotificationListener {
+    protected final LatencyHistogram pauses = new LatencyHistogram();
+    protected final ArrayList<NotificationEmitter> emitters = new ArrayList<>();
+
+    public LatencyHistogram getPauses(){
+        return pauses;
+    }
+
+    /**
+     * Starts listening to every collector that sends notifications.
+     */
+    public void start(){
+        for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()){
+            if(gc instanceof NotificationEmitter){
+                NotificationEmitter emitter = (NotificationEmitter) gc;
+                emitter.addNotificationListener(this, null, null);
+                emitters.add(emitter);
+            }
+        }
+    }
+
+    public void stop(){
+        for(NotificationEmitter emitter : emitters){
+            try{
+                emitter.removeNotificationListener(this);
+            }catch(ListenerNotFoundException ignored){ }
+        }
+        emitters.clear();
+    }
+
+    public void handleNotification(Notification notification, Object handback){
+        if(!notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)){
+            return;
+        }
+        GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+        pauses.record(info.getGcInfo().getDuration() * 1000000L); // Reported in milliseconds.
+    }
+}
@@ -0,0 +1,93 @@
+package polarity.server.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size latency histogram with log-linear buckets, in the style of HdrHistogram.
+ * <p>
+ * Every power of two is split into 32 linear sub-buckets, so any recorded value is reported
+ * within about 3% of its true value, from a single nanosecond up to centuries. Recording is
+ * lock-free and does not allocate, so it can be done from any thread, including the tick thread.
+ * Values are cumulative for the life of the histogram.
+ * @author Sindusk
+ */
+public class LatencyHistogram {
+    // Constants:
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    protected final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    protected final AtomicLong count = new AtomicLong();
+    protected final AtomicLong sum = new AtomicLong();
+    protected final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a single value.
+     * @param nanos Value to record, in nanoseconds. Negative values are recorded as zero.
+     */
+    public void record(long nanos){
+        if(nanos < 0){
+            nanos = 0;
+        }
+        counts.incrementAndGet(index(nanos));
+        count.incrementAndGet();
+        sum.addAndGet(nanos);
+        long current = max.get();
+        while(nanos > current && !max.compareAndSet(current, nanos)){
+            current = max.get();
+        }
+    }
+
+    public long getCount(){
+        return count.get();
+    }
+    public long getSum(){
+        return sum.get();
+    }
+    public long getMax(){
+        return max.get();
+    }
+    public double getMean(){
+        long n = count.get();
+        return n > 0 ? (double) sum.get() / n : 0;
+    }
+
+    /**
+     * Gets the value below which the given fraction of recorded values fall.
+     * @param quantile Fraction between 0 and 1.
+     * @return Upper bound of the bucket holding the quantile, in nanoseconds. 0 if nothing has been recorded.
+     */
+    public long getQuantile(double quantile){
+        long n = count.get();
+        if(n == 0){
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(quantile * n));
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++){
+            seen += counts.get(i);
+            if(seen >= target){
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get(); // Counts were recorded while scanning.
+    }
+
+    protected static int index(long value){
+        if(value < SUB_BUCKETS << 1){
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return (shift << SUB_BITS) + (int) (value >>> shift);
+    }
+    protected static long upperBound(int index){
+        if(index < SUB_BUCKETS << 1){
+            return index;
+        }
+        int shift = (index >> SUB_BITS) - 1;
+        long mantissa = index - ((long) shift << SUB_BITS);
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
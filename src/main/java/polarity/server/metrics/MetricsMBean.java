@@ -0,0 +1,85 @@
+package polarity.server.metrics;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+/**
+ * Exposes a MetricsRegistry over JMX as a read-only MBean, with one attribute per flattened value.
+ * Attributes appear as subsystems register metrics and as new message types are seen, so the
+ * attribute list is rebuilt on every request for the MBean info.
+ * @author Sindusk
+ */
+public class MetricsMBean implements DynamicMBean {
+    protected final MetricsRegistry registry;
+    protected ObjectName objectName;
+
+    public MetricsMBean(MetricsRegistry registry){
+        this.registry = registry;
+    }
+
+    /**
+     * Registers the MBean with the platform MBean server.
+     * @param name Object name to register under, such as "polarity.server:type=Metrics".
+     * @throws JMException If the name is invalid or already taken.
+     */
+    public void register(String name) throws JMException{
+        objectName = new ObjectName(name);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+    }
+
+    /**
+     * Removes the MBean from the platform MBean server, if it was registered.
+     */
+    public void unregister(){
+        if(objectName == null){
+            return;
+        }
+        try{
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        }catch(JMException ignored){ }
+        objectName = null;
+    }
+
+    public Object getAttribute(String attribute) throws AttributeNotFoundException{
+        Double value = registry.toMap().get(attribute);
+        if(value == null){
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    public AttributeList getAttributes(String[] attributes){
+        Map<String, Double> values = registry.toMap();
+        AttributeList list = new AttributeList();
+        for(String attribute : attributes){
+            Double value = values.get(attribute);
+            if(value != null){
+                list.add(new Attribute(attribute, value));
+            }
+        }
+        return list;
+    }
+
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException{
+        throw new AttributeNotFoundException("Metrics are read-only: "+attribute.getName());
+    }
+
+    public AttributeList setAttributes(AttributeList attributes){
+        return new AttributeList(); // Nothing can be set.
+    }
+
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException{
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    public MBeanInfo getMBeanInfo(){
+        Map<String, Double> values = registry.toMap();
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+        int i = 0;
+        for(String name : values.keySet()){
+            attributes[i++] = new MBeanAttributeInfo(name, "double", name, true, false, false);
+        }
+        return new MBeanInfo(getClass().getName(), "Polarity server metrics.", attributes, null, null, null);
+    }
+}
@@ -0,0 +1,215 @@
+package polarity.server.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Holds every metric the server exposes and renders them for the metrics endpoints.
+ * <p>
+ * The registry does not own any values. Each series reads from a Gauge, LatencyHistogram or
+ * TypeCounter kept by the subsystem it measures, so recording never goes through the registry.
+ * Series are grouped into families by name, and are rendered in the order they were registered.
+ * Latencies are recorded in nanoseconds and exposed in seconds.
+ * @author Sindusk
+ */
+public class MetricsRegistry {
+    // Constants:
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    protected final String prefix;
+    protected final CopyOnWriteArrayList<Family> families = new CopyOnWriteArrayList<>();
+
+    /**
+     * A named group of series sharing a type and help text.
+     */
+    protected static class Family {
+        protected final String name;
+        protected final String help;
+        protected final String type;
+        protected final CopyOnWriteArrayList<Series> series = new CopyOnWriteArrayList<>();
+
+        protected Family(String name, String help, String type){
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    /**
+     * A single source of values within a family. Exactly one of the sources is set.
+     */
+    protected static class Series {
+        protected final String label;   // Label name, or null for an unlabelled series.
+        protected final String value;   // Label value.
+        protected final Gauge gauge;
+        protected final LatencyHistogram histogram;
+        protected final TypeCounter types;
+
+        protected Series(String label, String value, Gauge gauge, LatencyHistogram histogram, TypeCounter types){
+            this.label = label;
+            this.value = value;
+            this.gauge = gauge;
+            this.histogram = histogram;
+            this.types = types;
+        }
+    }
+
+    /**
+     * @param prefix Prefix added to the name of every metric, such as "polarity_".
+     */
+    public MetricsRegistry(String prefix){
+        this.prefix = prefix;
+    }
+
+    /**
+     * Adds a value that can go up and down.
+     * @param name Name of the metric, without the prefix.
+     * @param help Description of the metric.
+     * @param label Label name, or null if the metric has a single series.
+     * @param value Label value of this series.
+     * @param gauge Source of the value.
+     */
+    public void gauge(String name, String help, String label, String value, Gauge gauge){
+        add(name, help, "gauge", new Series(label, value, gauge, null, null));
+    }
+
+    /**
+     * Adds a value that only goes up, such as a total count.
+     * @param name Name of the metric, without the prefix. Should end in "_total".
+     * @param help Description of the metric.
+     * @param label Label name, or null if the metric has a single series.
+     * @param value Label value of this series.
+     * @param gauge Source of the value.
+     */
+    public void counter(String name, String help, String label, String value, Gauge gauge){
+        add(name, help, "counter", new Series(label, value, gauge, null, null));
+    }
+
+    /**
+     * Adds a counter with one series per class seen by a TypeCounter.
+     * @param name Name of the metric, without the prefix. Should end in "_total".
+     * @param help Description of the metric.
+     * @param label Label name to put the class name in.
+     * @param types Source of the counts.
+     */
+    public void counter(String name, String help, String label, TypeCounter types){
+        add(name, help, "counter", new Series(label, null, null, null, types));
+    }
+
+    /**
+     * Adds a latency histogram, exposed as a summary of quantiles in seconds.
+     * @param name Name of the metric, without the prefix. Should end in "_seconds".
+     * @param help Description of the metric.
+     * @param label Label name, or null if the metric has a single series.
+     * @param value Label value of this series.
+     * @param histogram Source of the values.
+     */
+    public void histogram(String name, String help, String label, String value, LatencyHistogram histogram){
+        add(name, help, "summary", new Series(label, value, null, histogram, null));
+    }
+
+    protected synchronized void add(String name, String help, String type, Series s){
+        String full = prefix + name;
+        for(Family f : families){
+            if(f.name.equals(full)){
+                if(!f.type.equals(type)){
+                    throw new IllegalArgumentException("Metric "+full+" is already registered as a "+f.type+".");
+                }
+                f.series.add(s);
+                return;
+            }
+        }
+        Family f = new Family(full, help, type);
+        f.series.add(s);
+        families.add(f);
+    }
+
+    /**
+     * Renders every metric in the Prometheus text exposition format.
+     * @return The rendered metrics.
+     */
+    public String toPrometheus(){
+        StringBuilder sb = new StringBuilder(4096);
+        for(Family f : families){
+            sb.append("# HELP ").append(f.name).append(' ').append(f.help).append('\n');
+            sb.append("# TYPE ").append(f.name).append(' ').append(f.type).append('\n');
+            for(Series s : f.series){
+                if(s.types != null){
+                    for(Map.Entry<String, Long> e : s.types.snapshot().entrySet()){
+                        line(sb, f.name, s.label, e.getKey(), null, null, e.getValue());
+                    }
+                }else if(s.histogram != null){
+                    LatencyHistogram h = s.histogram;
+                    for(double q : QUANTILES){
+                        line(sb, f.name, s.label, s.value, "quantile", Double.toString(q), h.getQuantile(q) / NANOS_PER_SECOND);
+                    }
+                    line(sb, f.name+"_sum", s.label, s.value, null, null, h.getSum() / NANOS_PER_SECOND);
+                    line(sb, f.name+"_count", s.label, s.value, null, null, h.getCount());
+                }else{
+                    line(sb, f.name, s.label, s.value, null, null, s.gauge.get());
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    protected static void line(StringBuilder sb, String name, String label, String value, String label2, String value2, double v){
+        sb.append(name);
+        if(label != null || label2 != null){
+            sb.append('{');
+            if(label != null){
+                sb.append(label).append("=\"").append(escape(value)).append('"');
+            }
+            if(label2 != null){
+                sb.append(label != null ? "," : "").append(label2).append("=\"").append(value2).append('"');
+            }
+            sb.append('}');
+        }
+        sb.append(' ');
+        if(v == Math.rint(v) && Math.abs(v) < 1e15){
+            sb.append((long) v);
+        }else{
+            sb.append(v);
+        }
+        sb.append('\n');
+    }
+    protected static String escape(String s){
+        return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * Flattens every metric into named values, for tools that cannot read labels or summaries.
+     * Labelled series are named "family.value", and histograms are split into count, mean,
+     * quantiles and max in milliseconds.
+     * @return Current values, in registration order.
+     */
+    public Map<String, Double> toMap(){
+        LinkedHashMap<String, Double> values = new LinkedHashMap<>();
+        for(Family f : families){
+            String base = f.name.substring(prefix.length());
+            for(Series s : f.series){
+                if(s.types != null){
+                    for(Map.Entry<String, Long> e : s.types.snapshot().entrySet()){
+                        values.put(base+"."+e.getKey(), (double) e.getValue());
+                    }
+                    continue;
+                }
+                String name = s.label != null ? base+"."+s.value : base;
+                if(s.histogram != null){
+                    LatencyHistogram h = s.histogram;
+                    values.put(name+".count", (double) h.getCount());
+                    values.put(name+".meanMs", h.getMean() / 1e6);
+                    values.put(name+".p50Ms", h.getQuantile(0.5) / 1e6);
+                    values.put(name+".p99Ms", h.getQuantile(0.99) / 1e6);
+                    values.put(name+".p999Ms", h.getQuantile(0.999) / 1e6);
+                    values.put(name+".maxMs", h.getMax() / 1e6);
+                }else{
+                    values.put(name, s.gauge.get());
+                }
+            }
+        }
+        return values;
+    }
+}
@@ -0,0 +1,80 @@
+package polarity.server.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import polarity.shared.tools.Util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Minimal HTTP server answering GET /metrics with the registry in Prometheus text format.
+ * Listens on the loopback interface only, and serves requests on a single daemon thread,
+ * so scraping never touches the tick thread.
+ * @author Sindusk
+ */
+public class MetricsServer {
+    // Constants:
+    private static final String PATH = "/metrics";
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    protected final MetricsRegistry registry;
+    protected HttpServer server;
+    protected ExecutorService executor;
+
+    public MetricsServer(MetricsRegistry registry){
+        this.registry = registry;
+    }
+
+    /**
+     * Starts listening.
+     * @param port Port to listen on.
+     * @throws IOException If the port could not be bound.
+     */
+    public void start(int port) throws IOException{
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory(){
+            public Thread newThread(Runnable r){
+                Thread t = new Thread(r, "Metrics-HTTP");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        server.setExecutor(executor);
+        server.createContext(PATH, new HttpHandler(){
+            public void handle(HttpExchange exchange) throws IOException{
+                try{
+                    if(!exchange.getRequestMethod().equals("GET")){
+                        exchange.sendResponseHeaders(405, -1);
+                        return;
+                    }
+                    byte[] body = registry.toPrometheus().getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+                    exchange.sendResponseHeaders(200, body.length);
+                    try(OutputStream out = exchange.getResponseBody()){
+                        out.write(body);
+                    }
+                }finally{
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+        Util.log("[MetricsServer] Serving metrics at http://"+server.getAddress().getHostString()+":"+port+PATH);
+    }
+
+    public void stop(){
+        if(server != null){
+            server.stop(0);
+            executor.shutdownNow();
+            server = null;
+        }
+    }
+}
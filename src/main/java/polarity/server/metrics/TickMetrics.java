@@ -0,0 +1,34 @@
+package polarity.server.metrics;
+
+import polarity.server.tick.TickListener;
+import polarity.server.tick.TickPhase;
+
+/**
+ * Records the duration of every tick, and of each of its phases, into latency histograms.
+ * @author Sindusk
+ */
+public class TickMetrics implements TickListener {
+    protected final LatencyHistogram ticks = new LatencyHistogram();
+    protected final LatencyHistogram[] phases = new LatencyHistogram[TickPhase.values().length];
+
+    public TickMetrics(){
+        for(int i = 0; i < phases.length; i++){
+            phases[i] = new LatencyHistogram();
+        }
+    }
+
+    public LatencyHistogram getTicks(){
+        return ticks;
+    }
+    public LatencyHistogram getPhase(TickPhase phase){
+        return phases[phase.ordinal()];
+    }
+
+    public void phaseCompleted(TickPhase phase, long nanos){
+        phases[phase.ordinal()].record(nanos);
+    }
+
+    public void tickCompleted(long tick, long nanos){
+        ticks.record(nanos);
+    }
+}
@@ -0,0 +1,43 @@
+package polarity.server.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts events per class, such as messages per NetData type. Safe to use from any thread.
+ * Only the first event of each class allocates.
+ * @author Sindusk
+ */
+public class TypeCounter {
+    protected final ConcurrentHashMap<Class<?>, AtomicLong> counts = new ConcurrentHashMap<>();
+
+    public void increment(Class<?> c){
+        AtomicLong counter = counts.get(c);
+        if(counter == null){
+            AtomicLong created = new AtomicLong();
+            counter = counts.putIfAbsent(c, created);
+            if(counter == null){
+                counter = created;
+            }
+        }
+        counter.incrementAndGet();
+    }
+
+    public long get(Class<?> c){
+        AtomicLong counter = counts.get(c);
+        return counter != null ? counter.get() : 0;
+    }
+
+    /**
+     * @return Count of every class seen so far, keyed and sorted by simple class name.
+     */
+    public Map<String, Long> snapshot(){
+        TreeMap<String, Long> result = new TreeMap<>();
+        for(Map.Entry<Class<?>, AtomicLong> e : counts.entrySet()){
+            result.put(e.getKey().getSimpleName(), e.getValue().get());
+        }
+        return result;
+    }
+}
@@ -1,31 +1,94 @@
 package polarity.server.monsters;
 
 import com.jme3.network.HostedConnection;
+import polarity.server.network.interest.InterestManager;
+import polarity.server.tools.IdAllocator;
 import polarity.server.world.ServerWorld;
 import polarity.shared.character.Monster;
+import polarity.shared.character.data.MonsterData;
 import polarity.shared.monsters.MonsterMediator;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.BitSet;
 
+/**
+ * Server side of the monster list: hands out monster IDs and runs the monsters' updates.
+ * <p>
+ * Monsters stay the shared library's Monster objects, each holding its own data and scene node.
+ * The AI, the projectile hit test and the clients' messages all read those objects directly,
+ * so any copy of their state kept in arrays here would go unseen by them.
+ * @author Sindusk
+ */
 public class MonsterManager extends MonsterMediator {
+    private static final int MAX_MONSTERS = 9999;
+
+    protected final IdAllocator ids = new IdAllocator(MAX_MONSTERS);
+    // IDs of Monster objects spawned here. The shared code removes them without notice, so these are
+    // checked against the monsterID map to find the IDs to release.
+    protected final BitSet spawned = new BitSet(MAX_MONSTERS);
+    protected int spawnedCount = 0;
+    // Monsters within reach of a player this tick, refilled by collectAwake().
+    protected final ArrayList<Monster> awake = new ArrayList<>();
+
     public MonsterManager(){
         super(); // Call MonsterMediator constructor.
     }
 
-    // TODO: Prevent copy with PlayerManager.
-    // Finds an empty ID slot for the given idList.
-    public int findEmptyID(HashMap<Integer,Integer> idList, int limit){
-        int i = 0;
-        while(i < limit || limit == -1){
-            if(!idList.containsKey(i)){
-                return i;
+    /**
+     * Reserves an empty monster ID.
+     * IDs of removed monsters are normally released once per tick by releaseRemoved(). It runs again
+     * here when the allocator is out, in case monsters were removed since.
+     * @return The reserved ID, or -1 if every ID is in use.
+     */
+    public int findEmptyMonsterID(){
+        int id = ids.acquire();
+        if(id == -1 && releaseRemoved() > 0){
+            id = ids.acquire();
+        }
+        return id;
+    }
+
+    /**
+     * Releases the IDs of Monster objects the shared code has removed since the last call.
+     * Only walks the spawned IDs when fewer monsters are left than were spawned, so it costs
+     * nothing on ticks where no monster was removed. Must be called from the tick thread.
+     * @return Number of IDs released.
+     */
+    public int releaseRemoved(){
+        if(monsters.size() >= spawnedCount){
+            return 0;
+        }
+        int released = 0;
+        for(int id = spawned.nextSetBit(0); id >= 0; id = spawned.nextSetBit(id+1)){
+            if(!monsterID.containsKey(id)){
+                spawned.clear(id);
+                ids.release(id);
+                released++;
             }
-            i++;
         }
-        return -1;
+        spawnedCount -= released;
+        return released;
     }
-    public int findEmptyMonsterID(){
-        return findEmptyID(monsterID, 9999);
+
+    /**
+     * Spawns a monster, tracking its ID so it is released once the monster is removed.
+     * @param world World to add the monster to.
+     * @param data Data of the monster.
+     */
+    public void spawn(ServerWorld world, MonsterData data){
+        addMonster(world, data);
+        if(!spawned.get(data.getID())){
+            spawned.set(data.getID());
+            spawnedCount++;
+        }
+    }
+
+    /**
+     * Returns a monster ID to the pool of free IDs.
+     * @param id ID to release.
+     */
+    public void releaseMonsterID(int id){
+        ids.release(id);
     }
 
     public void sendMonsterData(HostedConnection conn){
@@ -35,8 +98,39 @@ public class MonsterManager extends MonsterMediator {
     }
 
     public void serverUpdate(ServerWorld world, float tpf){
-        for(Monster monster : monsters){
-            monster.serverUpdate(world, tpf);
+        serverUpdate(world, 0, getMonsterCount(), tpf);
+    }
+
+    // Updates monsters in the index range [from, to). Used to split the update across threads.
+    public void serverUpdate(ServerWorld world, int from, int to, float tpf){
+        for(int i = from; i < to; i++){
+            monsters.get(i).serverUpdate(world, tpf);
         }
     }
+
+    /**
+     * Collects the monsters within the interest radius of at least one player, using the players' grid
+     * as the broad phase. A monster outside every radius has no player to acquire as a target, so
+     * the AI only needs to run on these. Must be called from the tick thread.
+     * @param interest Interest manager holding the grid of players.
+     * @return The awake monsters. Reused, so only valid until the next call.
+     */
+    public ArrayList<Monster> collectAwake(InterestManager interest){
+        awake.clear();
+        for(int i = 0; i < monsters.size(); i++){
+            Monster monster = monsters.get(i);
+            if(interest.isWatched(monster.getData().getLocation())){
+                awake.add(monster);
+            }
+        }
+        return awake;
+    }
+
+    public int getAwakeCount(){
+        return awake.size();
+    }
+
+    public int getMonsterCount(){
+        return monsters.size();
+    }
 }
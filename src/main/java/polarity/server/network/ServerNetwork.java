@@ -1,21 +1,28 @@
 package polarity.server.network;
 
-import com.jme3.math.Vector2f;
 import com.jme3.network.*;
 import com.jme3.network.serializing.Serializer;
-import com.jme3.scene.Node;
-import polarity.server.database.DatabaseManager;
+import polarity.server.cluster.ChatRelay;
+import polarity.server.cluster.NodeLink;
+import polarity.server.cluster.RelayedChatData;
 import polarity.server.events.EventChain;
+import polarity.server.files.vars.ServerVar;
 import polarity.server.main.GameServer;
-import polarity.server.monsters.MonsterManager;
+import polarity.server.metrics.TypeCounter;
+import polarity.server.network.dispatch.MessageHandler;
+import polarity.server.network.dispatch.MessageValidator;
+import polarity.server.network.ingress.IngressManager;
+import polarity.server.network.serializing.CompactSerializer;
+import polarity.server.network.snapshot.Lane;
+import polarity.server.network.snapshot.SnapshotAckData;
+import polarity.server.network.snapshot.SnapshotData;
 import polarity.server.players.PlayerManager;
+import polarity.server.shard.WorldShard;
 import polarity.shared.character.Player;
 import polarity.shared.character.data.MonsterData;
 import polarity.shared.character.data.PlayerData;
 import polarity.shared.equipment.Equipment;
 import polarity.shared.events.ProjectileEvent;
-import polarity.shared.items.Inventory;
-import polarity.shared.items.creation.ItemFactory;
 import polarity.shared.netdata.*;
 import polarity.shared.netdata.requests.ChunkRequest;
 import polarity.shared.netdata.testing.MonsterCreateData;
@@ -23,29 +30,57 @@ import polarity.shared.netdata.updates.MatrixUpdate;
 import polarity.shared.network.GameNetwork;
 import polarity.shared.network.NetData;
 import polarity.shared.spellforge.SpellMatrix;
-import polarity.shared.tools.DevCheats;
 import polarity.shared.tools.Util;
 
 import java.io.IOException;
-import java.sql.*;
-import java.util.concurrent.Callable;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
 
 /**
  * 
  * @author Sindusk
  */
-public class ServerNetwork extends GameNetwork {
+public class ServerNetwork extends GameNetwork implements ChatRelay {
+    // Connection attribute holding a player ID reserved during the handshake.
+    private static final String ATTRIBUTE_RESERVED_ID = "reservedId";
+    // Connection attribute holding the ID of the player that joined on it. Set on the tick thread once they are added.
+    private static final String ATTRIBUTE_PLAYER_ID = "playerId";
+    // Connection attribute holding the ID the player joins with, set as soon as their PlayerData is accepted.
+    // Only read by the validators, since the network threads cannot wait for the tick thread to set the player ID.
+    private static final String ATTRIBUTE_JOINING_ID = "joiningId";
+    // Chat prefix of the testing command that moves a player to another node. Only accepted with devCommands set.
+    private static final String COMMAND_NODE = "/node ";
+
     // Important variables:
     private ServerListener listener = new ServerListener();
     protected final GameServer app;
     protected Server server;
+    protected final WorldShard shard;
+    protected final boolean devCommands; // True to accept testing commands in chat from any player.
+    protected final boolean relayChat; // True if clients can read RelayedChatData.
+    // Message classes the listener has been added for.
+    protected final HashSet<Class<?>> listened = new HashSet<>();
+    // Messages received, per class, before validation. Read by the metrics threads.
+    protected final TypeCounter inbound = new TypeCounter();
+    // Link to the other nodes of the cluster. Null when the server runs alone.
+    protected volatile NodeLink link;
     
-    public ServerNetwork(GameServer app, PlayerManager playerManager, MonsterManager monsterManager){
-        super(playerManager, monsterManager);
+    /**
+     * Starts the server and handles every connection in the given shard.
+     * @param app The application.
+     * @param shard The shard hosted by the server.
+     */
+    public ServerNetwork(GameServer app, WorldShard shard){
+        super(shard.getPlayers(), shard.getMonsters());
         this.app = app;
+        this.shard = shard;
+        devCommands = Boolean.parseBoolean(app.getProperties().getVar(ServerVar.DevCommands.getVar()));
+        relayChat = Boolean.parseBoolean(app.getProperties().getVar(ServerVar.ClusterChat.getVar()));
         try {
-            server = Network.createServer(6143);
+            server = Network.createServer(Integer.parseInt(app.getProperties().getVar(ServerVar.Port.getVar())));
             registerSerials();
+            listener.registerHandlers(shard);
             server.addConnectionListener(listener);
             server.start();
         }catch (IOException ex){
@@ -56,16 +91,71 @@ public class ServerNetwork extends GameNetwork {
     public Server getServer(){
         return server;
     }
-    
-    private void registerClass(Class c){
-        Serializer.registerClass(c);
-        server.addMessageListener(listener, c);
+    public MessageListener<HostedConnection> getListener(){
+        return listener;
+    }
+    public TypeCounter getInbound(){
+        return inbound;
+    }
+    public NodeLink getLink(){
+        return link;
+    }
+    /**
+     * Sets the link to the other nodes of the cluster. Call before the server starts accepting players.
+     * @param link The started link.
+     */
+    public void setLink(NodeLink link){
+        this.link = link;
     }
+    
     private void registerSerials(){
+        // The hot messages can use the compact encoding, but only if clients register it as well.
+        boolean compact = Boolean.parseBoolean(app.getProperties().getVar(ServerVar.CompactSerializers.getVar()));
         for(NetData d : NetData.values()){
-            registerClass(d.c);
+            CompactSerializer cs = compact ? CompactSerializer.forType(d.c) : null;
+            if(cs != null && !cs.matchesLayout()){
+                Util.log("[ServerNetwork] "+d.c.getSimpleName()+" has changed since its compact serializer was written. Using the default serializer.");
+                cs = null;
+            }
+            if(cs != null){
+                Serializer.registerClass(d.c, cs); // Same ID as registerClass(d.c) would give.
+            }else{
+                Serializer.registerClass(d.c);
+            }
+        }
+        // Batching messages. Registered after NetData so existing serializer IDs are unchanged, and only when
+        // enabled: registrations are sent to every client, and clients without these classes cannot apply them.
+        if(isBatching()){
+            Serializer.registerClass(SnapshotData.class);
+            Serializer.registerClass(SnapshotAckData.class);
+        }
+        // Chat from other nodes. Registered last for the same reason.
+        if(relayChat){
+            Serializer.registerClass(RelayedChatData.class);
         }
     }
+
+    /**
+     * @return True if outbound messages are bundled into snapshots, which clients must be able to read.
+     */
+    public boolean isBatching(){
+        return Boolean.parseBoolean(app.getProperties().getVar(ServerVar.SnapshotBatching.getVar()));
+    }
+
+    /**
+     * Registers the handler for a message class in the shard. Only classes with a handler are listened for.
+     * @param shard Shard whose dispatcher the handler is registered in.
+     * @param c Message class. Must already be registered with the Serializer.
+     * @param validator Check run on the network thread before each message of the class is queued.
+     * @param handler Handler called on the tick thread for each message of the class.
+     * @param <T> Type of message.
+     */
+    public <T extends Message> void addHandler(WorldShard shard, Class<T> c, MessageValidator<? super T> validator, MessageHandler<? super T> handler){
+        if(listened.add(c)){
+            server.addMessageListener(listener, c);
+        }
+        shard.getDispatcher().register(c, validator, handler);
+    }
     
     public void stop(){
         server.close();
@@ -73,23 +163,68 @@ public class ServerNetwork extends GameNetwork {
     
     public void send(Message m){
         if(server != null){
+            shard.getSnapshots().getOutbound().increment(m.getClass());
             server.broadcast(m);
         }
     }
     
+    /**
+     * Broadcasts chat from a player on another node to every client here, if they can read it.
+     * A ChatMessage cannot carry it, since clients resolve its owner as a player ID on this node.
+     * Otherwise it is only logged, by the link. Safe to call from any thread.
+     * @param node ID of the node the sender is on.
+     * @param sender Name of the player who sent the message.
+     * @param message Text of the message.
+     */
+    public void relay(String node, String sender, String message){
+        if(relayChat){
+            send(new RelayedChatData(node, sender, message));
+        }
+    }
+
+    /**
+     * Receives messages on the network threads and handles them on the tick thread.
+     * <p>
+     * messageReceived() only validates a message and queues it in the ingress of the shard.
+     * Everything that touches game state happens in the handlers registered in registerHandlers(),
+     * which the shard's dispatcher calls when its inbound queues are drained.
+     */
     private class ServerListener implements MessageListener<HostedConnection>, ConnectionListener{
         public void connectionAdded(Server server, HostedConnection conn) {
-            // Nothing needed here.
+            shard.getIngress().register(conn);
         }
-        public void connectionRemoved(Server server, HostedConnection conn) {
-            int id = playerMediator.removePlayer(conn);
+        public void connectionRemoved(Server server, final HostedConnection conn) {
+            shard.execute(new Runnable(){
+                public void run(){
+                    ConnectionClosed(shard, conn);
+                }
+            });
+            conn.close("Disconnected");
+        }
+        /**
+         * Removes everything belonging to a closed connection. Called on the tick thread.
+         * @param shard Shard the connection was handled in.
+         * @param conn The closed connection.
+         */
+        private void ConnectionClosed(WorldShard shard, HostedConnection conn){
+            Integer playerId = conn.getAttribute(ATTRIBUTE_PLAYER_ID);
+            Integer reserved = conn.getAttribute(ATTRIBUTE_RESERVED_ID);
+            PlayerManager players = shard.getPlayers();
+            Player p = playerId != null ? players.getPlayer(playerId) : null;
+            shard.getIngress().unregister(conn); // Anything still queued from them is discarded.
+            shard.getLogins().cancel(conn);
+            int id = shard.removePlayer(conn);
+            if(id != -1 || reserved != null){
+                // Return the ID to the pool. Also covers players who left before finishing the handshake.
+                players.releasePlayerID(id != -1 ? id : reserved);
+            }
             if(id == -1){
                 return;
             }
-            Player p = playerMediator.getPlayer(id);
-            server.broadcast(new DisconnectData(id));
-            conn.close("Disconnected");
-            Util.log("[Connection Removed] Player "+id+" ("+p.getName()+") has disconnected.");
+            if(p != null){
+                shard.getPersistence().markDirty(p.getData()); // Save their final state.
+            }
+            Util.log("[Connection Removed] Player "+id+" ("+(p != null ? p.getName() : "unknown")+") has disconnected.");
         }
         
         // HANDSHAKING PROCESS BEGINS
@@ -102,63 +237,64 @@ public class ServerNetwork extends GameNetwork {
          * If the checks pass, this will send an ID back to the player for connection.
          * @param d Data from the message.
          */
-        private void ConnectMessage(final HostedConnection source, final ConnectData d){
+        private void ConnectMessage(final WorldShard shard, final HostedConnection source, final ConnectData d){
             Util.log("[ServerNetwork] <ConnectMessage> Recieving new connection...", 1);
-            if(d.getVersion().equals(app.getVersion())){    // Ensures application versions match
-                app.enqueue(new Callable<Void>(){
-                    public Void call() throws Exception{
-                        int id = ((PlayerManager)playerMediator).findEmptyPlayerID();    // Find an empty slot for the player, if one exists
-                        if(id != -1){ // If an empty slot exists
-                            if(app.getProperties().getVar("serverPlayerData").equals("true")){ // If using server-based data.
-                                PlayerData pd = null; // Will be loaded with information if the player exists.
-                                Connection conn = DatabaseManager.createConnection();
-                                if (conn != null){
-                                    PreparedStatement stmt = null;
-                                    try{
-                                        stmt = conn.prepareStatement(PlayerManager.SQL_LOAD_PLAYER);
-                                        stmt.setString(1, d.getName());
-                                        ResultSet rs = stmt.executeQuery();
-                                        if (rs.next()){
-                                            stmt.close();
-                                            conn.close();
-                                            Util.log(String.format("Found database entry for player %s.", d.getName()));
-                                            // Obtain all the relevant data from the ResultSet.
-                                            String name = rs.getString("name");
-                                            pd = new PlayerData(id, name, new Vector2f(0, 0), new Equipment());
-                                        }else{
-                                            stmt.close();
-                                            conn.close();
-                                            Util.log(String.format("No database entry found for player %s. Creating new one now...", d.getName()));
-                                            int playerId = PlayerManager.createPlayerDatabaseEntry(d.getName());
-                                            Util.log(String.format("Added player %s with id %d to the table %s.", d.getName(), playerId, DatabaseManager.TABLE_PLAYERS));
-                                        }
-                                    }catch (SQLException ignored) { }
-                                }else{
-                                    Util.log("Failed to connect to database to receive player data.");
-                                }
-                                if (pd == null){ // If we couldn't find the player in the database, make a new default PlayerData instance.
-                                    pd = new PlayerData(id, d.getName(), new Vector2f(0, 0), new Equipment());
-                                }
-                                Inventory inv = new Inventory();
-                                // Adds some randomly generated items to the inventory for testing
-                                for(int i = 0; i < 40; i++){
-                                    inv.add(ItemFactory.randomItem(inv, (int) Util.scaledRandFloat(1, 100)));
-                                }
-                                pd.setInventory(inv);
-                                source.send(new PlayerConnectionData(id, pd));
-                            }else{
-                                source.send(new PlayerIDData(id));
-                            }
-                        }else{
-                            source.close("Server is full.");
-                        }
-                        return null;
-                    }
-                });
-            }else{  // Decline connection if the client version does not match
-                Util.log("[Connect Message] ERROR: Client has incorrect version. A player was denied connection.");
-                source.close("Invalid Version. [Client: "+d.getVersion()+"] [Server: "+app.getVersion()+"]");
+            // The version has already been checked in validate().
+            if(source.getAttribute(ATTRIBUTE_RESERVED_ID) != null){
+                return; // Already has a slot.
+            }
+            if(!shard.getLogins().admit()){
+                source.close("Server is busy, please try again shortly.");
+                return;
+            }
+            NodeLink.Arrival arrival = link != null ? link.claimArrival(d.getName()) : null;
+            if(arrival != null){
+                ArrivalMessage(shard, source, arrival.getPlayer(), Arrays.asList(arrival.getMatrix()), "node "+arrival.getNode());
+                return;
+            }
+            int id = shard.getPlayers().findEmptyPlayerID();    // Reserve an empty slot for the player, if one exists
+            if(id != -1){ // If an empty slot exists
+                source.setAttribute(ATTRIBUTE_RESERVED_ID, id);
+                if(app.getProperties().getVar("serverPlayerData").equals("true")){ // If using server-based data.
+                    shard.getLogins().add(source, id, d.getName()); // Loaded on the database executor, see LoginQueue.
+                }else{
+                    source.send(new PlayerIDData(id));
+                }
+            }else{
+                source.close("Server is full.");
+            }
+        }
+
+        /**
+         * Lets in a player handed off from another node, with the state they left it with.
+         * <p>
+         * They keep their ID if it is free here, along with their matrices. Otherwise they are given a new ID
+         * and their matrices are reset, since every recorded update names the old one. Either way the client
+         * then sends back its PlayerData, like a player loaded from the database.
+         * @param pd Data of the player as they left.
+         * @param matrix Matrix updates they had applied, oldest first.
+         * @param origin Node they came from, for the log.
+         */
+        private void ArrivalMessage(final WorldShard shard, final HostedConnection source, PlayerData pd, List<MatrixUpdate> matrix, String origin){
+            PlayerManager players = shard.getPlayers();
+            int oldId = pd.getID();
+            int id = players.reservePlayerID(oldId);
+            if(id != -1){
+                players.setMatrixHistory(id, matrix);
+            }else{
+                id = players.findEmptyPlayerID();
+                if(id == -1){
+                    source.close("Server is full.");
+                    return;
+                }
+                PlayerData moved = new PlayerData(id, pd.getName(), pd.getLocation(), new Equipment());
+                moved.setInventory(pd.getInventory());
+                pd = moved;
+                Util.log("[ServerNetwork] <ArrivalMessage> ID "+oldId+" is taken, matrices of "+pd.getName()+" were reset.");
             }
+            source.setAttribute(ATTRIBUTE_RESERVED_ID, id);
+            shard.getSnapshots().queue(source, new PlayerConnectionData(id, pd), Lane.Bulk); // Carries the whole inventory.
+            Util.log("[ServerNetwork] <ArrivalMessage> Player "+id+" ("+pd.getName()+") arrived from "+origin+".");
         }
 
         // SSPD off - The player sends back his player data for the server to add, then send to all other players
@@ -168,70 +304,71 @@ public class ServerNetwork extends GameNetwork {
          * This contains all the data for the player themselves, such as character stats, location, etc.
          * @param d The data of the message.
          */
-        private void PlayerMessage(final HostedConnection source, final PlayerData d){
+        private void PlayerMessage(final WorldShard shard, final HostedConnection source, final PlayerData d){
             Util.log("[ServerNetwork] <PlayerMessage> Player "+d.getID()+" (v"+app.getVersion()+") connected successfully.");
-            app.enqueue(new Callable<Void>(){
-                public Void call() throws Exception{
-                    Player player = playerMediator.addPlayer(app.getWorld(), d);
-                    player.setConnection(source);
-                    player.initializeMatrixArray(new Node());
-                    DevCheats.initPlayerMatrix(source, d.getID(), player.getMatrix(0));
-                    server.broadcast(Filters.notEqualTo(source), d);
-                    app.getWorld().sendData(source);
-                    ((PlayerManager)playerMediator).sendPlayerData(source);
-                    ((MonsterManager)monsterMediator).sendMonsterData(source);
-                    return null;
-                }
-            });
+            shard.addPlayer(source, d);
+            source.setAttribute(ATTRIBUTE_PLAYER_ID, d.getID());
         }
         
         // HANDSHAKING PROCESS ENDS
         // SPELL MATRIX
         
-        private void MatrixUpdateMessage(final HostedConnection source, final MatrixUpdate d){
-            app.enqueue(new Callable<Void>(){
-                public Void call() throws Exception{
-                    source.send(d);
-                    playerMediator.updateMatrix(d);
-                    return null;
-                }
-            });
+        private void MatrixUpdateMessage(final WorldShard shard, final HostedConnection source, final MatrixUpdate d){
+            source.send(d);
+            shard.getPlayers().updateMatrix(d);
+            Integer playerId = source.getAttribute(ATTRIBUTE_PLAYER_ID);
+            shard.getPlayers().recordMatrixUpdate(playerId, d); // Replayed if they move to another node.
         }
         
         // END SPELL MATRIX
         // ACTION
         
-        private void ActionMessage(final HostedConnection source, final ActionData d){
-            app.enqueue(new Callable<Void>(){
-                public Void call() throws Exception{
-                    Player owner = playerMediator.getPlayer(d.getID());
-                    SpellMatrix matrix = owner.getMatrix(d.getSlot());
-                    EventChain events = new EventChain(d.getStart(), d.getTarget());
-                    events.addEvents(matrix.calculateEvents(source, d));
-                    app.getEventManager().addEventChain(events);
-                    return null;
-                }
-            });
+        private void ActionMessage(final WorldShard shard, final HostedConnection source, final ActionData d){
+            Player owner = shard.getPlayers().getPlayer(d.getID());
+            if(owner == null){
+                return;
+            }
+            SpellMatrix matrix;
+            try{
+                matrix = owner.getMatrix(d.getSlot()); // Only the shared Player knows how many matrices it has.
+            }catch(IndexOutOfBoundsException e){
+                return;
+            }
+            if(matrix == null){
+                return;
+            }
+            EventChain events = new EventChain(d.getStart(), d.getTarget());
+            events.addEvents(matrix.calculateEvents(source, d));
+            shard.getEvents().addEventChain(events);
         }
         
         // END ACTION
         // WORLD
         
-        private void ChunkRequestMessage(final HostedConnection source, final ChunkRequest d){
-            app.enqueue(new Callable<Void>(){
-                public Void call() throws Exception{
-                    source.send(app.getWorld().requestChunk(d));
-                    return null;
-                }
-            });
+        private void ChunkRequestMessage(final WorldShard shard, final HostedConnection source, final ChunkRequest d){
+            shard.getChunkService().request(source, d); // Served from the cache or queued for generation.
         }
         
         // END WORLD
         // BEGIN CHAT
         
-        private void ChatMessage(final HostedConnection source, final ChatMessage d){
-            server.broadcast(Filters.notEqualTo(source), d);
-            Util.log(getOwner(d.getOwner()).getName()+": "+d.getMessage());
+        private void ChatMessage(final WorldShard shard, final HostedConnection source, final ChatMessage d){
+            if(devCommands && d.getMessage().startsWith(COMMAND_NODE)){
+                NodeCommand(shard, source, d.getMessage());
+                return;
+            }
+            Integer playerId = source.getAttribute(ATTRIBUTE_PLAYER_ID);
+            Player player = playerId != null ? shard.getPlayers().getPlayer(playerId) : null;
+            if(player == null){
+                return;
+            }
+            String sender = player.getName();
+            // Only players who can see the sender have their PlayerData, so only they can resolve the owner.
+            shard.getInterest().sendToObservers(playerId, d);
+            if(link != null){
+                link.forwardChat(sender, d.getMessage()); // And by every node.
+            }
+            Util.log(sender+": "+d.getMessage());
         }
         
         // END CHAT
@@ -241,17 +378,18 @@ public class ServerNetwork extends GameNetwork {
          * This method is mainly used to broadcast the movement
          * @param d Data from the message.
          */
-        private void MoveMessage(final HostedConnection source, final MoveData d){
-            app.enqueue(new Callable<Void>(){
-                public Void call() throws Exception{
-                    playerMediator.updateLocation(d);
-                    server.broadcast(Filters.notEqualTo(source), d);
-                    return null;
-                }
-            });
+        private void MoveMessage(final WorldShard shard, final HostedConnection source, final MoveData d){
+            shard.getPlayers().updateLocation(d);
+            Player player = shard.getPlayers().getPlayer(d.getID());
+            if(player != null){
+                shard.getPersistence().markDirty(player.getData());
+            }
+            shard.getInterest().updateLocation(d.getID(), d.getLocation());
+            shard.getInterest().sendStateToObservers(d.getID(), d);
         }
         /**
          * Ping data is empty, simply used as a timing device.
+         * Answered when drained, so the round trip includes the wait for the next tick.
          * @param d Data from the message.
          */
         private void PingMessage(HostedConnection source, PingData d){
@@ -263,63 +401,252 @@ public class ServerNetwork extends GameNetwork {
          * Holds all data required to reproduce the projectile.
          * @param d The data of the message.
          */
-        private void ProjectileMessage(final ProjectileData d){
-            app.enqueue(new Callable<Void>(){
-                public Void call() throws Exception{
-                    app.getWorld().addProjectile(new ProjectileEvent(getOwner(d.getOwner()), d));
-                    server.broadcast(d);
-                    return null;
-                }
-            });
+        private void ProjectileMessage(final WorldShard shard, final ProjectileData d){
+            Player owner = shard.getPlayers().getPlayer(d.getOwner());
+            if(owner == null){
+                return;
+            }
+            ProjectileEvent attack = new ProjectileEvent(owner, d);
+            shard.getWorld().addProjectile(attack);
+            shard.getInterest().sendNear(attack.getStart(), d, null);
         }
-        private void SoundMessage(SoundLocationalData d){
-            server.broadcast(d);
+        private void SoundMessage(final WorldShard shard, final SoundLocationalData d){
+            shard.getInterest().sendNear(d.getLocation(), d, null);
+        }
+        
+        /**
+         * Recieved when a client has applied a snapshot.
+         * @param d Data from the message.
+         */
+        private void SnapshotAckMessage(final WorldShard shard, final HostedConnection source, final SnapshotAckData d){
+            shard.getSnapshots().ack(source, d.getSequence());
         }
         
         // TESTING
         
-        private void MobCreateMessage(final MonsterCreateData d){
-            app.enqueue(new Callable<Void>(){
-                public Void call() throws Exception{
-                    MonsterData data = new MonsterData(((MonsterManager)monsterMediator).findEmptyMonsterID(), "A Mob", d.getLocation());
-                    monsterMediator.addMonster(app.getWorld(), data);
-                    server.broadcast(data);
-                    return null;
-                }
-            });
+        private void MobCreateMessage(final WorldShard shard, final MonsterCreateData d){
+            int id = shard.getMonsters().findEmptyMonsterID();
+            if(id == -1){
+                Util.log("[ServerNetwork] No free monster ID, mob not created.", 1);
+                return;
+            }
+            MonsterData data = new MonsterData(id, "A Mob", d.getLocation());
+            shard.getMonsters().spawn(shard.getWorld(), data);
+            shard.getInterest().sendNear(d.getLocation(), data, null);
+        }
+
+        /**
+         * Moves the sender to another node. Sent in chat as "/node id".
+         * Any player can send it, so it is only accepted on servers with devCommands set.
+         * @param message The chat message.
+         */
+        private void NodeCommand(final WorldShard shard, final HostedConnection source, final String message){
+            Integer playerId = source.getAttribute(ATTRIBUTE_PLAYER_ID);
+            String node = message.substring(COMMAND_NODE.length()).trim();
+            if(link != null && playerId != null && !node.isEmpty()){
+                link.handoff(shard, source, playerId, node);
+            }
         }
         
         // END TESTING
+
+        /**
+         * Logs every NetData type the dispatcher has no handler for, which clients cannot send.
+         * @param shard Shard whose handlers are checked.
+         */
+        private void logUnhandled(WorldShard shard){
+            StringBuilder sb = new StringBuilder();
+            for(NetData d : NetData.values()){
+                if(!shard.getDispatcher().getTypes().contains(d.c)){
+                    sb.append(sb.length() > 0 ? ", " : "").append(d.c.getSimpleName());
+                }
+            }
+            if(sb.length() > 0){
+                Util.log("[ServerNetwork] Not accepted from clients: "+sb+".", 1);
+            }
+        }
+
+        // VALIDATION
+        // Run on the network threads before a message is queued, so they may only read connection
+        // attributes and immutable state. Registered with each handler in registerHandlers().
+
+        /**
+         * Accepts every message. Used for messages clients may send before joining.
+         */
+        private final MessageValidator<Message> anyone = new MessageValidator<Message>(){
+            public boolean validate(HostedConnection source, Message m){
+                return true;
+            }
+        };
+        /**
+         * Accepts messages from players who have joined. Anything accepted after their PlayerData
+         * is queued behind it, so it is handled once they have been added.
+         */
+        private final MessageValidator<Message> joined = new MessageValidator<Message>(){
+            public boolean validate(HostedConnection source, Message m){
+                return source.getAttribute(ATTRIBUTE_JOINING_ID) != null;
+            }
+        };
+        /**
+         * Declines clients with another version or an invalid name.
+         */
+        private final MessageValidator<ConnectData> connect = new MessageValidator<ConnectData>(){
+            public boolean validate(HostedConnection source, ConnectData d){
+                if(!d.getVersion().equals(app.getVersion())){  // Decline connection if the client version does not match
+                    Util.log("[Connect Message] ERROR: Client has incorrect version. A player was denied connection.");
+                    source.close("Invalid Version. [Client: "+d.getVersion()+"] [Server: "+app.getVersion()+"]");
+                    return false;
+                }
+                if(d.getName() == null || d.getName().isEmpty() || d.getName().length() > PlayerManager.MAX_NAME_LENGTH){
+                    source.close("Invalid name.");
+                    return false;
+                }
+                return true;
+            }
+        };
+        /**
+         * Players may only join once, with the ID reserved for them. Messages of a connection can arrive
+         * on more than one network thread, so the check and the claim are done as one step.
+         */
+        private final MessageValidator<PlayerData> join = new MessageValidator<PlayerData>(){
+            public boolean validate(HostedConnection source, PlayerData d){
+                synchronized(source){
+                    Integer reserved = source.getAttribute(ATTRIBUTE_RESERVED_ID);
+                    if(source.getAttribute(ATTRIBUTE_JOINING_ID) != null || reserved == null || reserved != d.getID()){
+                        return false;
+                    }
+                    source.setAttribute(ATTRIBUTE_JOINING_ID, reserved);
+                    return true;
+                }
+            }
+        };
+        /**
+         * Players may only move as themselves.
+         */
+        private final MessageValidator<MoveData> move = new MessageValidator<MoveData>(){
+            public boolean validate(HostedConnection source, MoveData d){
+                Integer playerId = source.getAttribute(ATTRIBUTE_JOINING_ID);
+                return playerId != null && d.getID() == playerId;
+            }
+        };
+        /**
+         * Players may only act as themselves, with one of their matrices. The upper bound of the slot
+         * is checked by the handler, since only the player knows how many matrices it has.
+         */
+        private final MessageValidator<ActionData> act = new MessageValidator<ActionData>(){
+            public boolean validate(HostedConnection source, ActionData d){
+                Integer playerId = source.getAttribute(ATTRIBUTE_JOINING_ID);
+                return playerId != null && d.getID() == playerId && d.getSlot() >= 0;
+            }
+        };
+        /**
+         * Players may only chat as themselves.
+         */
+        private final MessageValidator<ChatMessage> chat = new MessageValidator<ChatMessage>(){
+            public boolean validate(HostedConnection source, ChatMessage d){
+                Integer playerId = source.getAttribute(ATTRIBUTE_JOINING_ID);
+                return playerId != null && playerId.intValue() == d.getOwner() && d.getMessage() != null;
+            }
+        };
+        /**
+         * Players may only fire their own projectiles.
+         */
+        private final MessageValidator<ProjectileData> shoot = new MessageValidator<ProjectileData>(){
+            public boolean validate(HostedConnection source, ProjectileData d){
+                Integer playerId = source.getAttribute(ATTRIBUTE_JOINING_ID);
+                return playerId != null && playerId.intValue() == d.getOwner();
+            }
+        };
+
+        // END VALIDATION
         
         public void messageReceived(HostedConnection source, Message m) {
+            inbound.increment(m.getClass());
+            IngressManager ingress = shard.getIngress();
+            if(!shard.getDispatcher().validate(source, m)){
+                ingress.reject();
+                return;
+            }
+            if(!ingress.offer(source, m) && m instanceof PlayerData){ // Otherwise handled at the start of the next tick.
+                source.setAttribute(ATTRIBUTE_JOINING_ID, null); // Dropped, so they may send it again.
+            }
+        }
+
+        /**
+         * Registers a handler for every message type the server accepts in the dispatcher of the shard,
+         * along with the check each message of the type must pass to be queued.
+         * Messages of any other type are rejected on arrival.
+         * @param shard Shard the handlers act on.
+         */
+        private void registerHandlers(final WorldShard shard){
             // Handshaking
-            if(m instanceof ConnectData){   // Version Checking
-                ConnectMessage(source, (ConnectData) m);
-            }else if(m instanceof PlayerData){
-                PlayerMessage(source, (PlayerData) m);
+            addHandler(shard, ConnectData.class, connect, new MessageHandler<ConnectData>(){
+                public void handle(HostedConnection source, ConnectData m){
+                    ConnectMessage(shard, source, m);
+                }
+            });
+            addHandler(shard, PlayerData.class, join, new MessageHandler<PlayerData>(){
+                public void handle(HostedConnection source, PlayerData m){
+                    PlayerMessage(shard, source, m);
+                }
+            });
             // Spell Matrix
-            }else if(m instanceof MatrixUpdate){
-                MatrixUpdateMessage(source, (MatrixUpdate) m);
+            addHandler(shard, MatrixUpdate.class, joined, new MessageHandler<MatrixUpdate>(){
+                public void handle(HostedConnection source, MatrixUpdate m){
+                    MatrixUpdateMessage(shard, source, m);
+                }
+            });
             // Actions
-            }else if(m instanceof ActionData){
-                ActionMessage(source, (ActionData) m);
+            addHandler(shard, ActionData.class, act, new MessageHandler<ActionData>(){
+                public void handle(HostedConnection source, ActionData m){
+                    ActionMessage(shard, source, m);
+                }
+            });
             // World
-            }else if(m instanceof ChatMessage){
-                ChatMessage(source, (ChatMessage) m);
-            }else if(m instanceof ChunkRequest){
-                ChunkRequestMessage(source, (ChunkRequest) m);
-            }else if(m instanceof MoveData){
-                MoveMessage(source, (MoveData) m);
-            }else if(m instanceof PingData){
-                PingMessage(source, (PingData) m);
-            }else if (m instanceof ProjectileData){
-                ProjectileMessage((ProjectileData) m);
-            }else if(m instanceof SoundLocationalData){
-                SoundMessage((SoundLocationalData) m);
-            // Testing
-            }else if(m instanceof MonsterCreateData){
-                MobCreateMessage((MonsterCreateData) m);
+            addHandler(shard, ChatMessage.class, chat, new MessageHandler<ChatMessage>(){
+                public void handle(HostedConnection source, ChatMessage m){
+                    ChatMessage(shard, source, m);
+                }
+            });
+            addHandler(shard, ChunkRequest.class, anyone, new MessageHandler<ChunkRequest>(){
+                public void handle(HostedConnection source, ChunkRequest m){
+                    ChunkRequestMessage(shard, source, m);
+                }
+            });
+            addHandler(shard, MoveData.class, move, new MessageHandler<MoveData>(){
+                public void handle(HostedConnection source, MoveData m){
+                    MoveMessage(shard, source, m);
+                }
+            });
+            addHandler(shard, PingData.class, anyone, new MessageHandler<PingData>(){
+                public void handle(HostedConnection source, PingData m){
+                    PingMessage(source, m);
+                }
+            });
+            addHandler(shard, ProjectileData.class, shoot, new MessageHandler<ProjectileData>(){
+                public void handle(HostedConnection source, ProjectileData m){
+                    ProjectileMessage(shard, m);
+                }
+            });
+            addHandler(shard, SoundLocationalData.class, joined, new MessageHandler<SoundLocationalData>(){
+                public void handle(HostedConnection source, SoundLocationalData m){
+                    SoundMessage(shard, m);
+                }
+            });
+            if(isBatching()){
+                addHandler(shard, SnapshotAckData.class, anyone, new MessageHandler<SnapshotAckData>(){
+                    public void handle(HostedConnection source, SnapshotAckData m){
+                        SnapshotAckMessage(shard, source, m);
+                    }
+                });
             }
+            // Testing
+            addHandler(shard, MonsterCreateData.class, joined, new MessageHandler<MonsterCreateData>(){
+                public void handle(HostedConnection source, MonsterCreateData m){
+                    MobCreateMessage(shard, m);
+                }
+            });
+            logUnhandled(shard);
         }
     }
 }
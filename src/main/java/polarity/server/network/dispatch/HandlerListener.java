@@ -0,0 +1,14 @@
+package polarity.server.network.dispatch;
+
+/**
+ * Receives the time taken by every message handler the MessageDispatcher runs.
+ * Called on the tick thread once per message, so it must be cheap and must not allocate.
+ * @author Sindusk
+ */
+public interface HandlerListener {
+    /**
+     * @param type Class of the message that was handled.
+     * @param nanos Time the handler took, in nanoseconds.
+     */
+    void handlerCompleted(Class<?> type, long nanos);
+}
@@ -0,0 +1,182 @@
+package polarity.server.network.dispatch;
+
+import com.jme3.network.HostedConnection;
+import com.jme3.network.Message;
+import polarity.server.network.ingress.InboundHandler;
+import polarity.shared.tools.Util;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Set;
+
+/**
+ * Hands each message to the handler registered for its class, keeping per-type counters.
+ * <p>
+ * Lookups are a single map access. A message whose class has no handler of its own is given
+ * to the handler of its nearest registered superclass; the result is remembered, so that walk
+ * happens once per class. Must only be used from the tick thread, except for validate().
+ * <p>
+ * Each class can also have a validator, which validate() runs on the network thread before the
+ * message is queued. Only messages of a registered class pass.
+ * <p>
+ * Handlers run on clients' messages, so a handler that throws is counted as a failure of its type
+ * instead of taking the tick down with it.
+ * @author Sindusk
+ */
+public class MessageDispatcher implements InboundHandler {
+    protected final HashMap<Class<?>, Route> routes = new HashMap<>();
+    // Every class dispatched so far, mapped to its route. Null routes mark classes with no handler.
+    protected final HashMap<Class<?>, Route> resolved = new HashMap<>();
+    protected long unhandled = 0;
+    protected HandlerListener listener; // May be null.
+
+    /**
+     * A registered handler and its counters.
+     */
+    protected static class Route {
+        protected final Class<?> type;
+        protected final MessageHandler handler;
+        protected final MessageValidator validator; // May be null.
+        protected long count = 0;
+        protected long nanos = 0;
+        protected long maxNanos = 0;
+        protected long failures = 0;
+
+        protected Route(Class<?> type, MessageHandler handler, MessageValidator validator){
+            this.type = type;
+            this.handler = handler;
+            this.validator = validator;
+        }
+    }
+
+    /**
+     * Registers the handler for a message class, replacing any previous one. Every message of the class is valid.
+     * @param c Message class.
+     * @param handler Handler for messages of the class.
+     * @param <T> Type of message.
+     */
+    public <T extends Message> void register(Class<T> c, MessageHandler<? super T> handler){
+        register(c, null, handler);
+    }
+
+    /**
+     * Registers the validator and handler for a message class, replacing any previous ones.
+     * Must be done before messages are received, since validate() reads the routes without locking.
+     * @param c Message class.
+     * @param validator Check run before messages of the class are queued, or null to accept all of them.
+     * @param handler Handler for messages of the class.
+     * @param <T> Type of message.
+     */
+    public <T extends Message> void register(Class<T> c, MessageValidator<? super T> validator, MessageHandler<? super T> handler){
+        routes.put(c, new Route(c, handler, validator));
+        resolved.clear();
+    }
+
+    /**
+     * Sets the listener given the time taken by each handler, replacing any previous one.
+     * @param listener Listener to set, or null to remove it.
+     */
+    public void setListener(HandlerListener listener){
+        this.listener = listener;
+    }
+
+    /**
+     * @return Every message class with a registered handler.
+     */
+    public Set<Class<?>> getTypes(){
+        return routes.keySet();
+    }
+    public long getCount(Class<?> c){
+        Route r = routes.get(c);
+        return r != null ? r.count : 0;
+    }
+    public long getNanos(Class<?> c){
+        Route r = routes.get(c);
+        return r != null ? r.nanos : 0;
+    }
+    public long getMaxNanos(Class<?> c){
+        Route r = routes.get(c);
+        return r != null ? r.maxNanos : 0;
+    }
+    public long getFailures(Class<?> c){
+        Route r = routes.get(c);
+        return r != null ? r.failures : 0;
+    }
+    public long getUnhandled(){
+        return unhandled;
+    }
+
+    /**
+     * Runs the validator registered for the exact class of a message. Safe to call from any thread.
+     * @param source Connection the message came from.
+     * @param m The message.
+     * @return True if the message should be queued. False if it failed its check or its class has no handler.
+     */
+    @SuppressWarnings("unchecked")
+    public boolean validate(HostedConnection source, Message m){
+        Route r = routes.get(m.getClass());
+        return r != null && (r.validator == null || r.validator.validate(source, m));
+    }
+
+    @SuppressWarnings("unchecked")
+    public void handle(HostedConnection source, Message m){
+        Route r = resolve(m.getClass());
+        if(r == null){
+            unhandled++;
+            return;
+        }
+        long start = System.nanoTime();
+        try{
+            r.handler.handle(source, m);
+        }catch(RuntimeException e){
+            r.failures++;
+            if(r.failures == 1){ // Later failures are only counted, so a client cannot flood the log.
+                Util.log("[MessageDispatcher] "+r.type.getSimpleName()+" handler failed. Further failures are counted in the stats.");
+                Util.log(e);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        r.count++;
+        r.nanos += elapsed;
+        if(elapsed > r.maxNanos){
+            r.maxNanos = elapsed;
+        }
+        if(listener != null){
+            listener.handlerCompleted(m.getClass(), elapsed);
+        }
+    }
+
+    protected Route resolve(Class<?> c){
+        Route r = resolved.get(c);
+        if(r != null || resolved.containsKey(c)){
+            return r;
+        }
+        for(Class<?> k = c; k != null && r == null; k = k.getSuperclass()){
+            r = routes.get(k);
+        }
+        resolved.put(c, r);
+        return r;
+    }
+
+    /**
+     * Logs the counters of every message type that has been handled, busiest first.
+     */
+    public void logStats(){
+        ArrayList<Route> sorted = new ArrayList<>(routes.values());
+        sorted.sort(new Comparator<Route>(){
+            public int compare(Route a, Route b){
+                return Long.compare(b.nanos, a.nanos);
+            }
+        });
+        for(Route r : sorted){
+            if(r.count > 0){
+                Util.log(String.format("[MessageDispatcher] %s: %d handled, %d failed, %.1f us average, %.1f us max.",
+                        r.type.getSimpleName(), r.count, r.failures, r.nanos / 1000.0 / r.count, r.maxNanos / 1000.0));
+            }
+        }
+        if(unhandled > 0){
+            Util.log("[MessageDispatcher] "+unhandled+" messages had no handler.");
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package polarity.server.network.dispatch;
+
+import com.jme3.network.HostedConnection;
+import com.jme3.network.Message;
+
+/**
+ * Handles one type of message. Called on the tick thread.
+ * @param <T> Type of message handled.
+ * @author Sindusk
+ */
+public interface MessageHandler<T extends Message> {
+    void handle(HostedConnection source, T m);
+}
@@ -0,0 +1,17 @@
+package polarity.server.network.dispatch;
+
+import com.jme3.network.HostedConnection;
+import com.jme3.network.Message;
+
+/**
+ * Checks one type of message before it is queued. Called on the network threads, so it may only
+ * read connection attributes and immutable state.
+ * @param <T> Type of message checked.
+ * @author Sindusk
+ */
+public interface MessageValidator<T extends Message> {
+    /**
+     * @return True if the message should be queued for its handler.
+     */
+    boolean validate(HostedConnection source, T m);
+}
@@ -0,0 +1,12 @@
+package polarity.server.network.ingress;
+
+import com.jme3.network.HostedConnection;
+import com.jme3.network.Message;
+
+/**
+ * Handles a message drained from an inbound queue. Called on the tick thread.
+ * @author Sindusk
+ */
+public interface InboundHandler {
+    void handle(HostedConnection source, Message m);
+}
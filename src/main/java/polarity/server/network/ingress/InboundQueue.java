@@ -0,0 +1,69 @@
+package polarity.server.network.ingress;
+
+import com.jme3.network.Message;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free queue of messages with many producers and a single consumer.
+ * <p>
+ * Producers (network threads) claim a slot by advancing the tail, then publish the message into it.
+ * The consumer (tick thread) takes messages in order, stopping at a slot that has been claimed but not
+ * yet published. Neither side allocates.
+ * @author Sindusk
+ */
+public class InboundQueue {
+    protected final AtomicReferenceArray<Message> slots;
+    protected final int mask;
+    protected final AtomicLong tail = new AtomicLong();
+    protected volatile long head = 0; // Only written by the consumer.
+
+    /**
+     * @param capacity Minimum number of messages the queue can hold. Rounded up to a power of two.
+     */
+    public InboundQueue(int capacity){
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        slots = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+    }
+
+    /**
+     * Adds a message to the queue. Safe to call from any thread.
+     * @param m Message to add.
+     * @return False if the queue is full.
+     */
+    public boolean offer(Message m){
+        long t;
+        do{
+            t = tail.get();
+            if(t - head > mask){
+                return false;
+            }
+        }while(!tail.compareAndSet(t, t + 1));
+        slots.lazySet((int) t & mask, m);
+        return true;
+    }
+
+    /**
+     * Takes the oldest message from the queue. Must only be called from the consumer thread.
+     * @return The message, or null if no message is ready.
+     */
+    public Message poll(){
+        int index = (int) head & mask;
+        Message m = slots.get(index);
+        if(m == null){
+            return null;
+        }
+        slots.lazySet(index, null);
+        head = head + 1;
+        return m;
+    }
+
+    public int size(){
+        return (int) (tail.get() - head);
+    }
+    public int getCapacity(){
+        return mask + 1;
+    }
+}
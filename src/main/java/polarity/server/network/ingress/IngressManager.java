@@ -0,0 +1,203 @@
+package polarity.server.network.ingress;
+
+import com.jme3.network.HostedConnection;
+import com.jme3.network.Message;
+import polarity.shared.tools.Util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves messages from the network threads to the tick thread.
+ * <p>
+ * Every connection has its own inbound queue and rate limit. Network threads offer messages that have
+ * already been validated; anything over the connection's rate or queue size is dropped there. Once per
+ * tick the tick thread drains the queues round-robin, one message per connection per round, up to a
+ * fixed number of messages in total. Whatever is left waits for the next tick.
+ * @author Sindusk
+ */
+public class IngressManager {
+    private static final String ATTRIBUTE_INBOUND = "inbound";
+
+    protected final int queueSize;
+    protected final double rate;
+    protected final double burst;
+    protected final int maxPerTick;
+
+    // Copied on change, so the tick thread can iterate it without locking.
+    protected volatile Inbound[] inbounds = new Inbound[0];
+    protected int start = 0;
+
+    // Metrics
+    protected final AtomicLong rejected = new AtomicLong();
+    protected final AtomicLong limited = new AtomicLong();
+    protected final AtomicLong overflowed = new AtomicLong();
+    protected long drained = 0;
+
+    /**
+     * Inbound state of a single connection.
+     */
+    protected static class Inbound {
+        protected final HostedConnection conn;
+        protected final InboundQueue queue;
+        // Token bucket, only touched by network threads.
+        protected double tokens;
+        protected long lastRefill;
+
+        protected Inbound(HostedConnection conn, int queueSize, double burst){
+            this.conn = conn;
+            this.queue = new InboundQueue(queueSize);
+            this.tokens = burst;
+            this.lastRefill = System.nanoTime();
+        }
+
+        protected synchronized boolean acquire(double rate, double burst){
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - lastRefill) * rate / 1e9);
+            lastRefill = now;
+            if(tokens < 1){
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+    }
+
+    /**
+     * @param queueSize Maximum number of messages waiting per connection.
+     * @param rate Messages per second each connection may send.
+     * @param burst Messages each connection may send at once after being idle.
+     * @param maxPerTick Maximum number of messages handled per tick across all connections.
+     */
+    public IngressManager(int queueSize, double rate, double burst, int maxPerTick){
+        this.queueSize = queueSize;
+        this.rate = rate;
+        this.burst = Math.max(1, burst);
+        this.maxPerTick = Math.max(1, maxPerTick);
+    }
+
+    public long getRejected(){
+        return rejected.get();
+    }
+    public long getLimited(){
+        return limited.get();
+    }
+    public long getOverflowed(){
+        return overflowed.get();
+    }
+    public long getDrained(){
+        return drained;
+    }
+
+    /**
+     * @return Number of messages waiting across every connection. Safe to call from any thread.
+     */
+    public int getQueued(){
+        int queued = 0;
+        for(Inbound in : inbounds){
+            queued += in.queue.size();
+        }
+        return queued;
+    }
+
+    /**
+     * Gives a connection an inbound queue. Messages from connections that are not registered are dropped.
+     * @param conn Connection to register.
+     */
+    public synchronized void register(HostedConnection conn){
+        Inbound in = new Inbound(conn, queueSize, burst);
+        conn.setAttribute(ATTRIBUTE_INBOUND, in);
+        Inbound[] next = new Inbound[inbounds.length + 1];
+        System.arraycopy(inbounds, 0, next, 0, inbounds.length);
+        next[inbounds.length] = in;
+        inbounds = next;
+    }
+
+    /**
+     * Removes a connection's inbound queue, discarding anything still in it.
+     * @param conn Connection to unregister.
+     */
+    public synchronized void unregister(HostedConnection conn){
+        Inbound in = conn.getAttribute(ATTRIBUTE_INBOUND);
+        if(in == null){
+            return;
+        }
+        conn.setAttribute(ATTRIBUTE_INBOUND, null);
+        Inbound[] next = new Inbound[inbounds.length - 1];
+        int n = 0;
+        for(Inbound i : inbounds){
+            if(i != in && n < next.length){
+                next[n++] = i;
+            }
+        }
+        inbounds = next;
+    }
+
+    /**
+     * Counts a message that failed validation.
+     */
+    public void reject(){
+        rejected.incrementAndGet();
+    }
+
+    /**
+     * Queues a validated message for the tick thread. Called from network threads.
+     * @param conn Connection the message came from.
+     * @param m The message.
+     * @return False if the message was dropped.
+     */
+    public boolean offer(HostedConnection conn, Message m){
+        Inbound in = conn.getAttribute(ATTRIBUTE_INBOUND);
+        if(in == null){
+            return false;
+        }
+        if(!in.acquire(rate, burst)){
+            limited.incrementAndGet();
+            return false;
+        }
+        if(!in.queue.offer(m)){
+            overflowed.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Hands queued messages to a handler. Must be called from the tick thread.
+     * @param handler Handler to give each message to.
+     * @return Number of messages handled.
+     */
+    public int drain(InboundHandler handler){
+        Inbound[] current = inbounds;
+        int n = current.length;
+        if(n == 0){
+            return 0;
+        }
+        // Rotate the first connection each tick, so no one is always last when the budget runs out.
+        int first = start % n;
+        start = first + 1;
+        int count = 0;
+        boolean any = true;
+        while(any && count < maxPerTick){
+            any = false;
+            for(int i = 0; i < n && count < maxPerTick; i++){
+                Inbound in = current[(first + i) % n];
+                Message m = in.queue.poll();
+                if(m != null){
+                    handler.handle(in.conn, m);
+                    count++;
+                    any = true;
+                }
+            }
+        }
+        drained += count;
+        return count;
+    }
+
+    /**
+     * Logs ingress metrics.
+     */
+    public void logStats(){
+        Util.log(String.format("[IngressManager] %d handled, %d rejected, %d rate limited, %d dropped on full queues.",
+                drained, rejected.get(), limited.get(), overflowed.get()));
+    }
+}
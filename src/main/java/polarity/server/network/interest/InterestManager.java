@@ -0,0 +1,245 @@
+package polarity.server.network.interest;
+
+import com.jme3.math.Vector2f;
+import com.jme3.network.HostedConnection;
+import com.jme3.network.Message;
+import polarity.server.network.snapshot.SnapshotManager;
+import polarity.server.network.snapshot.StateUpdate;
+import polarity.server.players.PlayerManager;
+import polarity.server.world.spatial.SpatialHash;
+import polarity.shared.character.Player;
+import polarity.shared.netdata.DisconnectData;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+
+/**
+ * Area of interest management for connected players.
+ * <p>
+ * Players are kept in a SpatialHash with cells the size of the interest radius,
+ * so everything within range of a point is found in the surrounding 3x3 cells.
+ * Each player keeps the set of other players it can currently see. When that set changes,
+ * PlayerData is sent for players entering view and DisconnectData for players leaving it.
+ * All messages are queued into the per-tick snapshot of the receiving connection.
+ * Must only be used from the tick thread.
+ * @author Sindusk
+ */
+public class InterestManager {
+    // Players leave view slightly further out than they enter it, to prevent flickering at the edge.
+    private static final float LEAVE_SCALE = 1.2f;
+
+    protected final PlayerManager playerManager;
+    protected final SnapshotManager snapshots;
+    protected final float radius;
+    protected final float radiusSq;
+    protected final float leaveRadiusSq;
+    protected final SpatialHash<Viewer> grid;
+    protected final HashMap<Integer, Viewer> viewers = new HashMap<>();
+
+    // Scratch list, reused between calls.
+    private final ArrayList<Viewer> nearby = new ArrayList<>();
+
+    /**
+     * A connected player tracked by the interest grid.
+     */
+    protected static class Viewer {
+        protected final int id;
+        protected final HostedConnection conn;
+        protected float x, y;
+        protected final HashSet<Integer> visible = new HashSet<>();
+
+        protected Viewer(int id, HostedConnection conn){
+            this.id = id;
+            this.conn = conn;
+        }
+    }
+
+    public InterestManager(PlayerManager playerManager, SnapshotManager snapshots, float radius){
+        this.playerManager = playerManager;
+        this.snapshots = snapshots;
+        this.radius = radius;
+        this.radiusSq = radius*radius;
+        this.leaveRadiusSq = radiusSq*LEAVE_SCALE*LEAVE_SCALE;
+        this.grid = new SpatialHash<>(radius);
+    }
+
+    public float getRadius(){
+        return radius;
+    }
+
+    /**
+     * Starts tracking a player and sends the initial enter notifications both ways.
+     * @param id ID of the player.
+     * @param conn Connection of the player.
+     * @param location Current location of the player.
+     */
+    public void addViewer(int id, HostedConnection conn, Vector2f location){
+        Viewer v = new Viewer(id, conn);
+        v.x = location.x;
+        v.y = location.y;
+        viewers.put(id, v);
+        grid.put(id, v, v.x, v.y);
+        refresh(v);
+    }
+
+    /**
+     * Stops tracking a player, notifying every player that could see it.
+     * @param id ID of the player to remove.
+     */
+    public void removeViewer(int id){
+        Viewer v = viewers.remove(id);
+        if(v == null){
+            return;
+        }
+        grid.remove(id);
+        DisconnectData leave = new DisconnectData(id);
+        for(Integer other : v.visible){
+            Viewer o = viewers.get(other);
+            if(o != null){
+                o.visible.remove(id);
+                snapshots.queue(o.conn, leave);
+                snapshots.forget(o.conn, id);
+            }
+        }
+        v.visible.clear();
+        snapshots.remove(v.conn);
+    }
+
+    /**
+     * Updates the location of a player, moving it between cells and refreshing its view as needed.
+     * @param id ID of the player that moved.
+     * @param location New location of the player.
+     */
+    public void updateLocation(int id, Vector2f location){
+        Viewer v = viewers.get(id);
+        if(v == null){
+            return;
+        }
+        v.x = location.x;
+        v.y = location.y;
+        grid.put(id, v, v.x, v.y); // Only touches the grid when they change cells.
+        refresh(v);
+    }
+
+    /**
+     * Sends a message to every player that can currently see the given player.
+     * @param id ID of the source player.
+     * @param m Message to send.
+     */
+    public void sendToObservers(int id, Message m){
+        Viewer v = viewers.get(id);
+        if(v == null){
+            return;
+        }
+        for(Integer other : v.visible){
+            Viewer o = viewers.get(other);
+            if(o != null){
+                snapshots.queue(o.conn, m);
+            }
+        }
+    }
+
+    /**
+     * Queues a state update of the given player to every player that can currently see it.
+     * Repeated states within a tick are coalesced, and unchanged states are delta compressed away.
+     * @param id ID of the source player, also used as the state key.
+     * @param m State message.
+     */
+    public void sendStateToObservers(int id, Message m){
+        Viewer v = viewers.get(id);
+        if(v == null || v.visible.isEmpty()){
+            return;
+        }
+        StateUpdate state = snapshots.encodeState(id, m);
+        for(Integer other : v.visible){
+            Viewer o = viewers.get(other);
+            if(o != null){
+                snapshots.queueState(o.conn, state);
+            }
+        }
+    }
+
+    /**
+     * Sends a message to every player within the interest radius of a location.
+     * @param location Location the message originates from.
+     * @param m Message to send.
+     * @param exclude Connection to skip, or null to send to everyone in range.
+     */
+    public void sendNear(Vector2f location, Message m, HostedConnection exclude){
+        grid.query(location.x, location.y, radius, nearby);
+        for(int i = 0; i < nearby.size(); i++){
+            Viewer v = nearby.get(i);
+            if(v.conn != exclude){
+                snapshots.queue(v.conn, m);
+            }
+        }
+        nearby.clear();
+    }
+
+    /**
+     * Checks if any player is within the interest radius of a location, through the grid.
+     * Used as the broad phase of AI target acquisition, since nothing further out can be seen or targeted.
+     * @param location Location to check.
+     * @return True if at least one player is in range.
+     */
+    public boolean isWatched(Vector2f location){
+        return grid.any(location.x, location.y, radius);
+    }
+
+    /**
+     * Recomputes the visible set of a player, sending enter and leave notifications for any changes.
+     * Visibility is kept symmetric, so the other player's set is updated at the same time.
+     * @param v Viewer to refresh.
+     */
+    protected void refresh(Viewer v){
+        // Enter: everyone within the radius who isn't visible yet.
+        grid.query(v.x, v.y, radius, nearby);
+        for(int i = 0; i < nearby.size(); i++){
+            Viewer o = nearby.get(i);
+            if(o == v){
+                continue;
+            }
+            if(v.visible.add(o.id)){
+                sendData(o.id, v.conn);
+            }
+            if(o.visible.add(v.id)){
+                sendData(v.id, o.conn);
+            }
+        }
+        nearby.clear();
+        // Leave: everyone visible who is now beyond the leave radius.
+        Iterator<Integer> it = v.visible.iterator();
+        while(it.hasNext()){
+            Integer other = it.next();
+            Viewer o = viewers.get(other);
+            if(o == null){
+                it.remove();
+                continue;
+            }
+            float dx = o.x - v.x;
+            float dy = o.y - v.y;
+            if(dx*dx + dy*dy > leaveRadiusSq){
+                it.remove();
+                snapshots.queue(v.conn, new DisconnectData(o.id));
+                snapshots.forget(v.conn, o.id);
+                if(o.visible.remove(v.id)){
+                    snapshots.queue(o.conn, new DisconnectData(v.id));
+                    snapshots.forget(o.conn, v.id);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends the PlayerData of the given player to a connection.
+     */
+    protected void sendData(int id, HostedConnection conn){
+        Player p = playerManager.getPlayer(id);
+        if(p != null){
+            snapshots.queue(conn, p.getData());
+            snapshots.forget(conn, id);
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package polarity.server.network.login;
+
+import com.jme3.math.Vector2f;
+import com.jme3.network.HostedConnection;
+import polarity.server.database.DatabaseManager;
+import polarity.server.database.PersistenceManager;
+import polarity.server.network.snapshot.Lane;
+import polarity.server.network.snapshot.SnapshotManager;
+import polarity.server.players.PlayerManager;
+import polarity.server.players.PlayerRecord;
+import polarity.shared.character.data.PlayerData;
+import polarity.shared.equipment.Equipment;
+import polarity.shared.items.Inventory;
+import polarity.shared.items.creation.ItemFactory;
+import polarity.shared.netdata.PlayerConnectionData;
+import polarity.shared.tools.Util;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
+
+/**
+ * Runs the database part of the login handshake without holding up the tick thread.
+ * <p>
+ * A login arrives here with its player ID already reserved and waits in a bounded queue. Each tick,
+ * waiting logins are started until a fixed number are in flight. A started login loads or creates the
+ * player and decodes their stored inventory on the database executor. Their PlayerConnectionData is
+ * built on the tick thread, along with the starting items of players with no stored inventory, since
+ * the shared item factory and random number generator are not thread safe. When the queue is full,
+ * new logins are refused. Must only be used from the tick thread, which the given executor delivers results to.
+ * @author Sindusk
+ */
+public class LoginQueue {
+    protected final SnapshotManager snapshots;
+    protected final Executor tick;
+    protected final int concurrency;
+    protected final int capacity;
+    protected final ArrayDeque<Login> waiting = new ArrayDeque<>();
+    protected final HashMap<Integer, Login> active = new HashMap<>();
+
+    // Metrics
+    protected long completed = 0;
+    protected long refused = 0;
+    protected long totalNanos = 0;
+
+    /**
+     * A login waiting for, or going through, the database.
+     */
+    protected static class Login {
+        protected final HostedConnection conn;
+        protected final int id;
+        protected final String name;
+        protected final long queuedAt = System.nanoTime();
+        protected boolean cancelled = false;
+
+        protected Login(HostedConnection conn, int id, String name){
+            this.conn = conn;
+            this.id = id;
+            this.name = name;
+        }
+    }
+
+    /**
+     * The stored state of a player, as read on the database executor.
+     */
+    protected static class Loaded {
+        protected final PlayerRecord record;
+        protected final Inventory inventory; // Null if none is stored.
+
+        protected Loaded(PlayerRecord record){
+            this.record = record;
+            this.inventory = PersistenceManager.decode(record.getInventory());
+        }
+    }
+
+    /**
+     * @param snapshots Outbound buffers to send the result through.
+     * @param tick Executor that runs tasks on the tick thread.
+     * @param concurrency Maximum number of logins going through the database at once.
+     * @param capacity Maximum number of logins waiting to start.
+     */
+    public LoginQueue(SnapshotManager snapshots, Executor tick, int concurrency, int capacity){
+        this.snapshots = snapshots;
+        this.tick = tick;
+        this.concurrency = Math.max(1, concurrency);
+        this.capacity = capacity;
+    }
+
+    public int getWaiting(){
+        return waiting.size();
+    }
+    public int getActive(){
+        return active.size();
+    }
+    public long getCompleted(){
+        return completed;
+    }
+    public long getRefused(){
+        return refused;
+    }
+
+    /**
+     * Checks if another login can be queued. Counts a refusal if not.
+     * @return True if there is room in the queue.
+     */
+    public boolean admit(){
+        if(waiting.size() >= capacity){
+            refused++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Queues a login. Call admit() first.
+     * @param conn Connection logging in.
+     * @param id Player ID reserved for them.
+     * @param name Name they logged in with.
+     */
+    public void add(HostedConnection conn, int id, String name){
+        waiting.add(new Login(conn, id, name));
+    }
+
+    /**
+     * Drops any login from a connection that has closed. Results still in flight are discarded.
+     * @param conn The closed connection.
+     */
+    public void cancel(HostedConnection conn){
+        Iterator<Login> it = waiting.iterator();
+        while(it.hasNext()){
+            if(it.next().conn == conn){
+                it.remove();
+            }
+        }
+        Login login = active.get(conn.getId());
+        if(login != null){
+            login.cancelled = true;
+        }
+    }
+
+    /**
+     * Starts waiting logins while there is room for more in flight.
+     */
+    public void update(){
+        while(active.size() < concurrency && !waiting.isEmpty()){
+            start(waiting.poll());
+        }
+    }
+
+    protected void start(final Login login){
+        active.put(login.conn.getId(), login);
+        DatabaseManager.supplyTo(new DatabaseManager.Query<Loaded>(){
+            public Loaded run(Connection conn) throws SQLException{
+                return new Loaded(PlayerManager.loadOrCreatePlayer(conn, login.name));
+            }
+        }, tick).whenComplete(new BiConsumer<Loaded, Throwable>(){
+            public void accept(Loaded loaded, Throwable error){
+                active.remove(login.conn.getId());
+                if(login.cancelled){
+                    return;
+                }
+                if(error != null){
+                    Util.log("Failed to load player data for "+login.name+": "+error.getMessage());
+                    loaded = new Loaded(new PlayerRecord(login.name, 0, 0, null)); // Fall back to a default PlayerData instance.
+                }
+                PlayerConnectionData data = createConnectionData(login.id, loaded.record, loaded.inventory);
+                snapshots.queue(login.conn, data, Lane.Bulk); // Carries the whole inventory.
+                completed++;
+                totalNanos += System.nanoTime() - login.queuedAt;
+            }
+        });
+    }
+
+    /**
+     * Builds the data sent to a player once they are logged in. Must be called from the tick thread,
+     * since players without an inventory are given random starting items.
+     * @param id Player ID reserved for them.
+     * @param record Their stored state.
+     * @param inv Their stored inventory, or null to give them starting items.
+     * @return Their connection data.
+     */
+    public static PlayerConnectionData createConnectionData(int id, PlayerRecord record, Inventory inv){
+        PlayerData pd = new PlayerData(id, record.getName(), new Vector2f(record.getX(), record.getY()), new Equipment());
+        if(inv == null){
+            inv = new Inventory();
+            // Adds some randomly generated items to the inventory for testing
+            for(int i = 0; i < 40; i++){
+                inv.add(ItemFactory.randomItem(inv, (int) Util.scaledRandFloat(1, 100)));
+            }
+        }
+        pd.setInventory(inv);
+        return new PlayerConnectionData(id, pd);
+    }
+
+    /**
+     * Logs login metrics.
+     */
+    public void logStats(){
+        Util.log(String.format("[LoginQueue] %d logins completed (%.1f ms average), %d refused, %d waiting, %d in flight.",
+                completed, completed > 0 ? totalNanos / 1e6 / completed : 0.0, refused, waiting.size(), active.size()));
+    }
+}
@@ -0,0 +1,36 @@
+package polarity.server.network.serializing;
+
+import com.jme3.math.Vector2f;
+import polarity.shared.netdata.ActionData;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Compact serializer for ActionData: the player ID, the matrix slot used, and where the action starts and is aimed.
+ * @author Sindusk
+ */
+public class ActionDataSerializer extends CompactSerializer {
+    public ActionDataSerializer(){
+        super(ActionData.class, 4);
+    }
+
+    @Override
+    public void writeObject(ByteBuffer buffer, Object object) throws IOException{
+        ActionData d = (ActionData) object;
+        writeVarInt(buffer, d.getID());
+        writeVarInt(buffer, d.getSlot());
+        writeVector(buffer, d.getStart());
+        writeVector(buffer, d.getTarget());
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T readObject(ByteBuffer data, Class<T> c) throws IOException{
+        int id = readVarInt(data);
+        int slot = readVarInt(data);
+        Vector2f start = readVector(data);
+        Vector2f target = readVector(data);
+        return (T) new ActionData(id, slot, start, target);
+    }
+}
@@ -0,0 +1,143 @@
+package polarity.server.network.serializing;
+
+import com.jme3.math.Vector2f;
+import com.jme3.network.serializing.Serializer;
+import polarity.shared.netdata.ActionData;
+import polarity.shared.netdata.MoveData;
+import polarity.shared.netdata.ProjectileData;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+
+/**
+ * Base of the compact serializers for high-frequency messages.
+ * <p>
+ * Each subclass writes one message type by hand, through its getters and constructor, so writing
+ * and reading use no reflection and writing does not allocate. Integers are zigzag varints and
+ * vectors are fixed-point varints at 1/QUANTIZATION of a unit.
+ * <p>
+ * A hand-written serializer silently drops any field added to its message later, so the number of
+ * fields it writes is checked against the class once, when it is registered. The encoding is lossy
+ * for Vector2f, and both ends of a connection must register the same serializers for the same
+ * classes, in the same order.
+ * @author Sindusk
+ */
+public abstract class CompactSerializer extends Serializer {
+    // Vector components are rounded to the nearest 1/QUANTIZATION of a unit.
+    public static final float QUANTIZATION = 256f;
+
+    protected final Class<?> type;
+    protected final int fieldCount;
+
+    /**
+     * @param type Class this serializer writes.
+     * @param fieldCount Number of fields of the class that it writes.
+     */
+    protected CompactSerializer(Class<?> type, int fieldCount){
+        this.type = type;
+        this.fieldCount = fieldCount;
+    }
+
+    /**
+     * Gets the compact serializer for a message class.
+     * @param c Message class.
+     * @return A new serializer for the class, or null if it has none.
+     */
+    public static CompactSerializer forType(Class<?> c){
+        if(c == MoveData.class){
+            return new MoveDataSerializer();
+        }else if(c == ProjectileData.class){
+            return new ProjectileDataSerializer();
+        }else if(c == ActionData.class){
+            return new ActionDataSerializer();
+        }
+        return null;
+    }
+
+    public Class<?> getType(){
+        return type;
+    }
+
+    /**
+     * Checks that the class has as many serialized fields as this serializer writes.
+     * Uses reflection, so it is only meant to be called once, at registration.
+     * @return False if the class has changed since the serializer was written.
+     */
+    public boolean matchesLayout(){
+        int count = 0;
+        for(Class<?> k = type; k != null && k != Object.class; k = k.getSuperclass()){
+            for(Field f : k.getDeclaredFields()){
+                int mod = f.getModifiers();
+                if(!Modifier.isStatic(mod) && !Modifier.isTransient(mod)){
+                    count++;
+                }
+            }
+        }
+        return count == fieldCount;
+    }
+
+    /**
+     * Writes a vector as a presence byte followed by two quantized varints.
+     */
+    public static void writeVector(ByteBuffer buffer, Vector2f v){
+        if(v == null){
+            buffer.put((byte) 0);
+            return;
+        }
+        buffer.put((byte) 1);
+        writeVarInt(buffer, Math.round(v.x * QUANTIZATION));
+        writeVarInt(buffer, Math.round(v.y * QUANTIZATION));
+    }
+    public static Vector2f readVector(ByteBuffer data) throws IOException{
+        if(data.get() == 0){
+            return null;
+        }
+        float x = readVarInt(data) / QUANTIZATION;
+        float y = readVarInt(data) / QUANTIZATION;
+        return new Vector2f(x, y);
+    }
+
+    /**
+     * Writes an int as a zigzag varint: 1 byte for values in [-64, 63], at most 5 bytes.
+     */
+    public static void writeVarInt(ByteBuffer buffer, int value){
+        int v = (value << 1) ^ (value >> 31);
+        while((v & ~0x7F) != 0){
+            buffer.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        buffer.put((byte) v);
+    }
+    public static int readVarInt(ByteBuffer data) throws IOException{
+        int v = 0;
+        for(int shift = 0; shift < 35; shift += 7){
+            byte b = data.get();
+            v |= (b & 0x7F) << shift;
+            if((b & 0x80) == 0){
+                return (v >>> 1) ^ -(v & 1);
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+    public static void writeVarLong(ByteBuffer buffer, long value){
+        long v = (value << 1) ^ (value >> 63);
+        while((v & ~0x7FL) != 0){
+            buffer.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        buffer.put((byte) v);
+    }
+    public static long readVarLong(ByteBuffer data) throws IOException{
+        long v = 0;
+        for(int shift = 0; shift < 70; shift += 7){
+            byte b = data.get();
+            v |= (long) (b & 0x7F) << shift;
+            if((b & 0x80) == 0){
+                return (v >>> 1) ^ -(v & 1);
+            }
+        }
+        throw new IOException("Malformed varlong");
+    }
+}
@@ -0,0 +1,32 @@
+package polarity.server.network.serializing;
+
+import com.jme3.math.Vector2f;
+import polarity.shared.netdata.MoveData;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Compact serializer for MoveData: the player ID and their location.
+ * @author Sindusk
+ */
+public class MoveDataSerializer extends CompactSerializer {
+    public MoveDataSerializer(){
+        super(MoveData.class, 2);
+    }
+
+    @Override
+    public void writeObject(ByteBuffer buffer, Object object) throws IOException{
+        MoveData d = (MoveData) object;
+        writeVarInt(buffer, d.getID());
+        writeVector(buffer, d.getLocation());
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T readObject(ByteBuffer data, Class<T> c) throws IOException{
+        int id = readVarInt(data);
+        Vector2f location = readVector(data);
+        return (T) new MoveData(id, location);
+    }
+}
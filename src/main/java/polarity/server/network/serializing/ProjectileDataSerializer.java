@@ -0,0 +1,34 @@
+package polarity.server.network.serializing;
+
+import com.jme3.math.Vector2f;
+import polarity.shared.netdata.ProjectileData;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Compact serializer for ProjectileData: the owner's player ID, and where the projectile starts and is aimed.
+ * @author Sindusk
+ */
+public class ProjectileDataSerializer extends CompactSerializer {
+    public ProjectileDataSerializer(){
+        super(ProjectileData.class, 3);
+    }
+
+    @Override
+    public void writeObject(ByteBuffer buffer, Object object) throws IOException{
+        ProjectileData d = (ProjectileData) object;
+        writeVarInt(buffer, d.getOwner());
+        writeVector(buffer, d.getStart());
+        writeVector(buffer, d.getTarget());
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T readObject(ByteBuffer data, Class<T> c) throws IOException{
+        int owner = readVarInt(data);
+        Vector2f start = readVector(data);
+        Vector2f target = readVector(data);
+        return (T) new ProjectileData(owner, start, target);
+    }
+}
@@ -0,0 +1,29 @@
+package polarity.server.network.snapshot;
+
+/**
+ * Priority classes for outbound messages, highest priority first.
+ * @author Sindusk
+ */
+public enum Lane {
+    // State that is resent as it changes, such as movement. Sent over UDP; a lost update is replaced by the next one.
+    // One-shot events must not use it, since nothing replaces them if they are lost.
+    Realtime("realtime", false),
+    // One-shot events, such as projectiles spawning and players entering and leaving view. Reliable and in order
+    // among themselves, but not ordered against the realtime lane, which travels on another channel.
+    Gameplay("gameplay", true),
+    // Large payloads such as chunks and inventories. Sent reliably with whatever bandwidth is left.
+    Bulk("bulk", true);
+
+    protected final String name;
+    protected final boolean reliable;
+    Lane(String name, boolean reliable){
+        this.name = name;
+        this.reliable = reliable;
+    }
+    public String getName(){
+        return name;
+    }
+    public boolean isReliable(){
+        return reliable;
+    }
+}
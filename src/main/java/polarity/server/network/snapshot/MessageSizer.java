@@ -0,0 +1,45 @@
+package polarity.server.network.snapshot;
+
+import com.jme3.network.Message;
+import com.jme3.network.serializing.Serializer;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+/**
+ * Estimates the encoded size of outbound messages for bandwidth accounting.
+ * <p>
+ * The first message of each class is encoded to measure it, and every later message of the class is
+ * charged the same size, so sending never encodes a message just to count it. Messages of one class
+ * rarely differ much in size; the estimate only steers the bulk lane's budget.
+ * Must only be used from the tick thread.
+ * @author Sindusk
+ */
+public class MessageSizer {
+    private static final int MAX_ENCODED_SIZE = 262144;
+
+    private final ByteBuffer scratch = ByteBuffer.allocate(MAX_ENCODED_SIZE);
+    protected final HashMap<Class<?>, Integer> sizes = new HashMap<>();
+
+    /**
+     * @param m Message to measure.
+     * @return Estimated size of the message as written by the Serializer, including its class ID.
+     */
+    public int sizeOf(Message m){
+        Integer size = sizes.get(m.getClass());
+        if(size != null){
+            return size;
+        }
+        scratch.clear();
+        try{
+            Serializer.writeClassAndObject(scratch, m);
+            size = scratch.position();
+        }catch(IOException | BufferOverflowException e){
+            size = MAX_ENCODED_SIZE;
+        }
+        sizes.put(m.getClass(), size);
+        return size;
+    }
+}
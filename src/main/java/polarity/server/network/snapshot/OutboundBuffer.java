@@ -0,0 +1,252 @@
+package polarity.server.network.snapshot;
+
+import com.jme3.network.HostedConnection;
+import com.jme3.network.Message;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+/**
+ * Collects everything sent to a single connection during a tick.
+ * <p>
+ * Messages are split into priority lanes. Gameplay events are sent first as reliable snapshots, in
+ * order. Realtime events and states follow as unreliable snapshots kept under a datagram size. The two
+ * travel on different channels, so a client can receive a state before a gameplay event sent ahead of it. State
+ * messages are keyed, so repeated updates to the same key within a tick are coalesced into the latest
+ * one. When flushed, any state identical to the last one the client acknowledged for that key is
+ * dropped entirely, as long as no different state for the key is still in flight.
+ * <p>
+ * Bulk messages are sent one at a time, reliably, and only while the connection's bandwidth budget
+ * allows. Realtime and gameplay traffic is always sent but counts against the budget, so bulk data
+ * only uses what they leave over. Bulk messages that do not fit wait for the next tick.
+ * <p>
+ * Snapshots are only used when batching is enabled, since clients must know SnapshotData to read them.
+ * Otherwise every message is sent on its own, in the same lane order, and no state is ever acknowledged,
+ * so coalesced states are always sent. Queued messages may be shared with other connections, so they
+ * are never changed: each is sent with its own reliability, except that an unreliable message in a
+ * reliable lane is sent as a reliable copy.
+ * @author Sindusk
+ */
+public class OutboundBuffer {
+    // Number of unacknowledged snapshots remembered for delta compression.
+    private static final int ACK_WINDOW = 64;
+    // Maximum number of messages bundled into a single snapshot.
+    private static final int MAX_MESSAGES = 64;
+    // Maximum payload of an unreliable snapshot, kept under a typical MTU to avoid fragmentation.
+    private static final int MAX_DATAGRAM = 1200;
+    // Estimated bytes a snapshot adds on top of the messages it holds.
+    private static final int SNAPSHOT_OVERHEAD = 12;
+
+    protected final HostedConnection conn;
+    protected final MessageSizer sizer;
+    protected final ReliableCopies copies;
+    protected final boolean batching;
+    protected final ArrayList<Message> realtime = new ArrayList<>();
+    protected final ArrayList<Message> gameplay = new ArrayList<>();
+    protected final ArrayDeque<Message> bulk = new ArrayDeque<>();
+    protected final LinkedHashMap<Integer, StateUpdate> states = new LinkedHashMap<>();
+
+    // Delta compression state.
+    protected final HashMap<Integer, byte[]> acked = new HashMap<>();
+    protected final HashMap<Integer, byte[]> lastSent = new HashMap<>();
+    protected final int[] sentSequence = new int[ACK_WINDOW];
+    @SuppressWarnings("unchecked")
+    protected final ArrayList<StateUpdate>[] sentStates = new ArrayList[ACK_WINDOW];
+    protected int sequence = 0;
+    protected int lastAcked = -1;
+
+    // Bandwidth budget, in bytes. Refilled continuously at the connection's rate.
+    protected final double rate;
+    protected final double burst;
+    protected double allowance;
+    protected long lastRefill;
+    protected final long[] bytesSent = new long[Lane.values().length];
+
+    // Snapshot being built during a flush.
+    private ArrayList<Message> messages;
+    private ArrayList<StateUpdate> sent;
+    private int snapshotBytes;
+
+    /**
+     * @param conn Connection to send to.
+     * @param sizer Sizer used for byte accounting.
+     * @param copies Reliable copies of unreliable messages, shared by every buffer.
+     * @param rate Bandwidth budget in bytes per second.
+     * @param batching True to bundle messages into SnapshotData, false to send each message on its own.
+     */
+    public OutboundBuffer(HostedConnection conn, MessageSizer sizer, ReliableCopies copies, double rate, boolean batching){
+        this.conn = conn;
+        this.sizer = sizer;
+        this.copies = copies;
+        this.batching = batching;
+        this.rate = rate;
+        this.burst = rate / 4; // A quarter second of bandwidth.
+        this.allowance = burst;
+        this.lastRefill = System.nanoTime();
+        for(int i = 0; i < ACK_WINDOW; i++){
+            sentSequence[i] = -1;
+            sentStates[i] = new ArrayList<>();
+        }
+    }
+
+    public HostedConnection getConnection(){
+        return conn;
+    }
+    public boolean isEmpty(){
+        return realtime.isEmpty() && gameplay.isEmpty() && bulk.isEmpty() && states.isEmpty();
+    }
+    public int getBulkCount(){
+        return bulk.size();
+    }
+    public long getBytesSent(Lane lane){
+        return bytesSent[lane.ordinal()];
+    }
+
+    public void queue(Message m, Lane lane){
+        switch(lane){
+            case Realtime:
+                realtime.add(m);
+                break;
+            case Gameplay:
+                gameplay.add(m);
+                break;
+            default:
+                bulk.add(m);
+                break;
+        }
+    }
+    public void queueState(StateUpdate state){
+        states.put(state.getKey(), state);
+    }
+
+    /**
+     * Forgets the acknowledged baseline for a key, so the next state for it is always sent.
+     * @param key Key to forget.
+     */
+    public void forget(int key){
+        acked.remove(key);
+        lastSent.remove(key);
+        states.remove(key);
+    }
+
+    /**
+     * Marks a snapshot as received by the client, making its states the new baseline.
+     * @param seq Sequence number of the acknowledged snapshot.
+     */
+    public void ack(int seq){
+        if(seq <= lastAcked || seq >= sequence || sequence - seq > ACK_WINDOW){
+            return; // Stale, duplicate, or too old to remember.
+        }
+        int slot = seq % ACK_WINDOW;
+        if(sentSequence[slot] != seq){
+            return;
+        }
+        ArrayList<StateUpdate> states = sentStates[slot];
+        for(int i = 0; i < states.size(); i++){
+            StateUpdate state = states.get(i);
+            acked.put(state.getKey(), state.getEncoded());
+        }
+        lastAcked = seq;
+    }
+
+    /**
+     * Sends everything queued this tick, lane by lane, then clears the buffer.
+     * Bulk messages beyond the bandwidth budget are kept for the next flush.
+     */
+    public void flush(){
+        if(isEmpty()){
+            return;
+        }
+        long now = System.nanoTime();
+        allowance = Math.min(burst, allowance + (now - lastRefill) * rate / 1e9);
+        lastRefill = now;
+
+        // Gameplay events first, so they are charged to the budget ahead of realtime traffic. This does not order
+        // them before the realtime snapshot on the client, which arrives over another channel.
+        if(!gameplay.isEmpty()){
+            beginSnapshot();
+            for(int i = 0; i < gameplay.size(); i++){
+                add(gameplay.get(i), sizer.sizeOf(gameplay.get(i)), Lane.Gameplay, Integer.MAX_VALUE);
+            }
+            endSnapshot(Lane.Gameplay);
+            gameplay.clear();
+        }
+        if(!realtime.isEmpty() || !states.isEmpty()){
+            beginSnapshot();
+            for(int i = 0; i < realtime.size(); i++){
+                add(realtime.get(i), sizer.sizeOf(realtime.get(i)), Lane.Realtime, MAX_DATAGRAM);
+            }
+            for(StateUpdate state : states.values()){
+                byte[] encoded = state.getEncoded();
+                if(encoded != null && Arrays.equals(acked.get(state.getKey()), encoded)
+                        && Arrays.equals(lastSent.get(state.getKey()), encoded)){
+                    continue; // Client already has this exact state.
+                }
+                int size = encoded != null ? encoded.length : sizer.sizeOf(state.getMessage());
+                add(state.getMessage(), size, Lane.Realtime, MAX_DATAGRAM);
+                if(batching){
+                    sent.add(state); // Acknowledged along with its snapshot.
+                }
+                lastSent.put(state.getKey(), encoded);
+            }
+            endSnapshot(Lane.Realtime);
+            realtime.clear();
+            states.clear();
+        }
+        // Bulk data only goes out while there is budget left. At least one message is allowed
+        // whenever the budget is positive, so a message larger than the burst still gets through.
+        while(allowance > 0 && !bulk.isEmpty()){
+            Message m = bulk.poll();
+            int size = sizer.sizeOf(m);
+            conn.send(m.isReliable() ? m : copies.copyOf(m));
+            charge(Lane.Bulk, size);
+        }
+        // Do not let realtime traffic run up a debt that starves bulk data for long.
+        allowance = Math.max(allowance, -burst);
+    }
+
+    protected void beginSnapshot(){
+        if(!batching){
+            return;
+        }
+        int slot = sequence % ACK_WINDOW;
+        sentSequence[slot] = sequence;
+        sentStates[slot].clear();
+        sent = sentStates[slot];
+        messages = new ArrayList<>();
+        snapshotBytes = SNAPSHOT_OVERHEAD;
+    }
+    /**
+     * Adds a message to the snapshot being built, sending it first if the message would not fit.
+     */
+    protected void add(Message m, int size, Lane lane, int maxBytes){
+        if(!batching){
+            conn.send(lane.isReliable() && !m.isReliable() ? copies.copyOf(m) : m);
+            charge(lane, size);
+            return;
+        }
+        if(!messages.isEmpty() && (messages.size() == MAX_MESSAGES || snapshotBytes + size > maxBytes)){
+            endSnapshot(lane);
+            beginSnapshot();
+        }
+        messages.add(m);
+        snapshotBytes += size;
+    }
+    protected void endSnapshot(Lane lane){
+        if(!batching || messages.isEmpty()){
+            return; // Sequence is not used, so the next snapshot reuses it.
+        }
+        SnapshotData snapshot = new SnapshotData(sequence, messages);
+        snapshot.setReliable(lane.isReliable());
+        conn.send(snapshot);
+        charge(lane, snapshotBytes);
+        sequence++;
+    }
+    protected void charge(Lane lane, int bytes){
+        allowance -= bytes;
+        bytesSent[lane.ordinal()] += bytes;
+    }
+}
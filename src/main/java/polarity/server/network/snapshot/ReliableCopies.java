@@ -0,0 +1,54 @@
+package polarity.server.network.snapshot;
+
+import com.jme3.network.Message;
+import com.jme3.network.serializing.Serializer;
+import polarity.shared.tools.Util;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+
+/**
+ * Reliable copies of messages that are unreliable themselves but are sent in a reliable lane without batching.
+ * <p>
+ * jME takes the reliability of a send from the message, and messages are shared between every connection
+ * they are queued to, so the lane cannot set it on the message. Messages forwarded from clients keep the
+ * reliability they arrived with, so this only happens for ones a client sent unreliably.
+ * Each message is copied once, however many connections it is sent to, until clear() is called.
+ * Must only be used from the tick thread.
+ * @author Sindusk
+ */
+public class ReliableCopies {
+    private static final int MAX_ENCODED_SIZE = 262144;
+
+    private final ByteBuffer scratch = ByteBuffer.allocate(MAX_ENCODED_SIZE);
+    protected final IdentityHashMap<Message, Message> copies = new IdentityHashMap<>();
+
+    /**
+     * @param m An unreliable message.
+     * @return A reliable copy of the message, or the message itself if it could not be copied.
+     */
+    public Message copyOf(Message m){
+        Message copy = copies.get(m);
+        if(copy != null){
+            return copy;
+        }
+        scratch.clear();
+        try{
+            Serializer.writeClassAndObject(scratch, m);
+            scratch.flip();
+            copy = (Message) Serializer.readClassAndObject(scratch);
+            copy.setReliable(true); // Only this copy, which nothing else holds.
+        }catch(IOException | BufferOverflowException | RuntimeException e){
+            Util.log("[ReliableCopies] Failed to copy "+m.getClass().getSimpleName()+": "+e);
+            copy = m;
+        }
+        copies.put(m, copy);
+        return copy;
+    }
+
+    public void clear(){
+        copies.clear();
+    }
+}
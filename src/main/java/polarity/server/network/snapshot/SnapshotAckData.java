@@ -0,0 +1,21 @@
+package polarity.server.network.snapshot;
+
+import com.jme3.network.AbstractMessage;
+import com.jme3.network.serializing.Serializable;
+
+/**
+ * Sent by the client to acknowledge that a snapshot was received and applied.
+ * @author Sindusk
+ */
+@Serializable
+public class SnapshotAckData extends AbstractMessage {
+    private int sequence;
+
+    public SnapshotAckData(){}  // Empty constructor for serialization.
+    public SnapshotAckData(int sequence){
+        this.sequence = sequence;
+    }
+    public int getSequence(){
+        return sequence;
+    }
+}
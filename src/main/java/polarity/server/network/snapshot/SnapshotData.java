@@ -0,0 +1,30 @@
+package polarity.server.network.snapshot;
+
+import com.jme3.network.AbstractMessage;
+import com.jme3.network.Message;
+import com.jme3.network.serializing.Serializable;
+
+import java.util.ArrayList;
+
+/**
+ * All state changes for a single client from one server tick, sent as one message.
+ * The client acknowledges the sequence number with a SnapshotAckData.
+ * @author Sindusk
+ */
+@Serializable
+public class SnapshotData extends AbstractMessage {
+    private int sequence;
+    private ArrayList<Message> messages;
+
+    public SnapshotData(){}     // Empty constructor for serialization.
+    public SnapshotData(int sequence, ArrayList<Message> messages){
+        this.sequence = sequence;
+        this.messages = messages;
+    }
+    public int getSequence(){
+        return sequence;
+    }
+    public ArrayList<Message> getMessages(){
+        return messages;
+    }
+}
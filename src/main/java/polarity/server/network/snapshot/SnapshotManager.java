@@ -0,0 +1,197 @@
+package polarity.server.network.snapshot;
+
+import com.jme3.network.HostedConnection;
+import com.jme3.network.Message;
+import com.jme3.network.serializing.Serializer;
+import polarity.server.metrics.TypeCounter;
+import polarity.shared.netdata.MoveData;
+import polarity.shared.tools.Util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+/**
+ * Owns the outbound buffer of every connection and flushes them once per tick.
+ * Must only be used from the tick thread.
+ * @author Sindusk
+ */
+public class SnapshotManager {
+    protected final HashMap<Integer, OutboundBuffer> buffers = new HashMap<>();
+    protected final HashMap<Class<?>, Lane> lanes = new HashMap<>();
+    protected final MessageSizer sizer = new MessageSizer();
+    protected final ReliableCopies copies = new ReliableCopies();
+    protected final double bandwidth;
+    protected final boolean batching;
+    private final ByteBuffer scratch = ByteBuffer.allocate(32767);
+
+    // Bytes sent to connections that have since been removed, per lane.
+    protected final long[] removedBytes = new long[Lane.values().length];
+    // Messages queued for sending, per class. Read by the metrics threads.
+    protected final TypeCounter outbound = new TypeCounter();
+
+    /**
+     * @param bandwidth Bandwidth budget of each connection, in bytes per second.
+     */
+    public SnapshotManager(double bandwidth){
+        this(bandwidth, false);
+    }
+
+    /**
+     * @param bandwidth Bandwidth budget of each connection, in bytes per second.
+     * @param batching True to bundle each tick's messages into SnapshotData. Only for clients that register it.
+     */
+    public SnapshotManager(double bandwidth, boolean batching){
+        this.bandwidth = bandwidth;
+        this.batching = batching;
+        setLane(MoveData.class, Lane.Realtime); // ProjectileData spawns a projectile once, so it stays reliable.
+    }
+
+    public boolean isBatching(){
+        return batching;
+    }
+
+    /**
+     * Sets the lane used for messages of a class queued without an explicit lane.
+     * Classes without a lane are sent as gameplay messages.
+     * @param c Message class.
+     * @param lane Lane to send it in.
+     */
+    public void setLane(Class<?> c, Lane lane){
+        lanes.put(c, lane);
+    }
+    public Lane getLane(Message m){
+        Lane lane = lanes.get(m.getClass());
+        return lane != null ? lane : Lane.Gameplay;
+    }
+
+    /**
+     * Gets the buffer for a connection, creating it if needed.
+     * @param conn Connection to get the buffer for.
+     * @return The outbound buffer for the connection.
+     */
+    public OutboundBuffer getBuffer(HostedConnection conn){
+        OutboundBuffer buffer = buffers.get(conn.getId());
+        if(buffer == null){
+            buffer = new OutboundBuffer(conn, sizer, copies, bandwidth, batching);
+            buffers.put(conn.getId(), buffer);
+        }
+        return buffer;
+    }
+
+    /**
+     * Queues an event message to be sent to a connection at the end of the tick, in the lane set for its class.
+     * @param conn Connection to send to.
+     * @param m Message to send.
+     */
+    public void queue(HostedConnection conn, Message m){
+        outbound.increment(m.getClass());
+        getBuffer(conn).queue(m, getLane(m));
+    }
+
+    /**
+     * Queues a message in a specific lane.
+     * @param conn Connection to send to.
+     * @param m Message to send.
+     * @param lane Lane to send it in.
+     */
+    public void queue(HostedConnection conn, Message m, Lane lane){
+        outbound.increment(m.getClass());
+        getBuffer(conn).queue(m, lane);
+    }
+
+    /**
+     * Queues a state message to be sent to a connection at the end of the tick.
+     * @param conn Connection to send to.
+     * @param state Encoded state from encodeState().
+     */
+    public void queueState(HostedConnection conn, StateUpdate state){
+        outbound.increment(state.getMessage().getClass());
+        getBuffer(conn).queueState(state);
+    }
+
+    /**
+     * Forgets the delta baseline of a key for a connection.
+     * @param conn Connection to forget the key for.
+     * @param key Key to forget.
+     */
+    public void forget(HostedConnection conn, int key){
+        OutboundBuffer buffer = buffers.get(conn.getId());
+        if(buffer != null){
+            buffer.forget(key);
+        }
+    }
+
+    /**
+     * Encodes a state message once, so it can be queued to many connections and delta compared.
+     * @param key Key identifying the entity the state belongs to.
+     * @param m State message.
+     * @return The encoded state.
+     */
+    public StateUpdate encodeState(int key, Message m){
+        byte[] encoded = null;
+        scratch.clear();
+        try{
+            Serializer.writeClassAndObject(scratch, m);
+            scratch.flip();
+            encoded = new byte[scratch.remaining()];
+            scratch.get(encoded);
+        }catch(IOException e){
+            Util.log("[SnapshotManager] Failed to encode state: "+e.getMessage());
+        }
+        return new StateUpdate(key, m, encoded);
+    }
+
+    public void ack(HostedConnection conn, int sequence){
+        OutboundBuffer buffer = buffers.get(conn.getId());
+        if(buffer != null){
+            buffer.ack(sequence);
+        }
+    }
+
+    public void remove(HostedConnection conn){
+        OutboundBuffer buffer = buffers.remove(conn.getId());
+        if(buffer != null){
+            for(Lane lane : Lane.values()){
+                removedBytes[lane.ordinal()] += buffer.getBytesSent(lane);
+            }
+        }
+    }
+
+    /**
+     * @return Number of messages queued for sending so far, per class.
+     */
+    public TypeCounter getOutbound(){
+        return outbound;
+    }
+
+    /**
+     * @param lane Lane to count.
+     * @return Total bytes sent in the lane to every connection so far.
+     */
+    public long getBytesSent(Lane lane){
+        long bytes = removedBytes[lane.ordinal()];
+        for(OutboundBuffer buffer : buffers.values()){
+            bytes += buffer.getBytesSent(lane);
+        }
+        return bytes;
+    }
+
+    /**
+     * Logs the bytes sent in each lane.
+     */
+    public void logStats(){
+        Util.log(String.format("[SnapshotManager] sent %d KB realtime, %d KB gameplay, %d KB bulk.",
+                getBytesSent(Lane.Realtime)/1024, getBytesSent(Lane.Gameplay)/1024, getBytesSent(Lane.Bulk)/1024));
+    }
+
+    /**
+     * Sends the snapshot for every connection with queued messages.
+     */
+    public void flush(){
+        for(OutboundBuffer buffer : buffers.values()){
+            buffer.flush();
+        }
+        copies.clear();
+    }
+}
@@ -0,0 +1,30 @@
+package polarity.server.network.snapshot;
+
+import com.jme3.network.Message;
+
+/**
+ * A keyed state message along with its encoded form.
+ * The encoding is computed once and shared by every connection the state is queued to,
+ * and is what delta compression compares against the acknowledged baseline.
+ * @author Sindusk
+ */
+public class StateUpdate {
+    protected final int key;
+    protected final Message message;
+    protected final byte[] encoded;
+
+    public StateUpdate(int key, Message message, byte[] encoded){
+        this.key = key;
+        this.message = message;
+        this.encoded = encoded;
+    }
+    public int getKey(){
+        return key;
+    }
+    public Message getMessage(){
+        return message;
+    }
+    public byte[] getEncoded(){
+        return encoded;
+    }
+}
@@ -2,73 +2,176 @@ package polarity.server.players;
 
 import com.jme3.network.HostedConnection;
 import polarity.server.database.DatabaseManager;
+import polarity.server.database.PersistenceManager;
+import polarity.server.files.vars.ServerVar;
+import polarity.server.tools.IdAllocator;
 import polarity.server.world.ServerWorld;
 import polarity.shared.character.Monster;
 import polarity.shared.character.Player;
+import polarity.shared.netdata.updates.MatrixUpdate;
 import polarity.shared.players.PlayerMediator;
 import polarity.shared.tools.Util;
 
 import java.sql.*;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 
 public class PlayerManager extends PlayerMediator {
     // SQL Statements
-    public static final String SQL_LOAD_PLAYER = "SELECT * FROM " + DatabaseManager.TABLE_PLAYERS + " WHERE name = ?";
-    protected static final String SQL_ADD_PLAYER = "INSERT INTO " + DatabaseManager.TABLE_PLAYERS +
-            "(name)" +
-            " values " +
-            "(?)";
+    // Creates the player if the name is new, then loads them. Sent as one batch, so it costs a single round trip.
+    // Relies on the unique index on players.name, and on the pool allowing multiple statements per query
+    // and reporting affected rows.
+    protected static final String SQL_LOAD_OR_CREATE_PLAYER = "INSERT INTO " + DatabaseManager.TABLE_PLAYERS +
+            "(name) values (?) ON DUPLICATE KEY UPDATE id = id; " +
+            "SELECT name, x, y, inventory FROM " + DatabaseManager.TABLE_PLAYERS + " WHERE name = ?";
+
+    // Longest name that fits in the players.name column.
+    public static final int MAX_NAME_LENGTH = 64;
+
+    protected IdAllocator ids = new IdAllocator(Integer.parseInt(ServerVar.MaxPlayers.getValue()));
+    // Latest matrix update applied to each cell of each player's matrices, keyed by matrixCell() and kept
+    // in the order the cells were last changed, so their matrices can be rebuilt when they move to another
+    // node. Grows with the cells a player has filled, not the updates they have made.
+    // Only touched on the tick thread.
+    protected final HashMap<Integer, LinkedHashMap<Long, MatrixUpdate>> matrixHistory = new HashMap<>();
 
     public PlayerManager(){
         super(); // Call PlayerMediator constructor.
     }
 
-    // TODO: Prevent copy with MonsterManager.
-    // Finds an empty ID slot for the given idList.
-    public int findEmptyID(HashMap<Integer,Integer> idList, int limit){
-        int i = 0;
-        while(i < limit || limit == -1){
-            if(!idList.containsKey(i)){
-                return i;
-            }
-            i++;
-        }
-        return -1;
+    /**
+     * Sets the maximum number of players, resetting the pool of free player IDs.
+     * Must be called before any player connects.
+     * @param maxPlayers Maximum number of players connected at once.
+     */
+    public void setMaxPlayers(int maxPlayers){
+        ids = new IdAllocator(maxPlayers);
     }
-    // TODO: Should be limited by server max players
+
+    /**
+     * Reserves an empty player ID. The ID stays reserved until releasePlayerID is called.
+     * @return The reserved ID, or -1 if the server is full.
+     */
     public int findEmptyPlayerID(){
-        return findEmptyID(playerID, 9999);
+        int id = ids.acquire();
+        while(id != -1 && playerID.containsKey(id)){
+            id = ids.acquire(); // Taken without going through the allocator. Leave it marked as used.
+        }
+        return id;
+    }
+
+    /**
+     * Reserves a specific player ID, such as the ID a player had on the node they moved from.
+     * @param id ID to reserve.
+     * @return The ID, or -1 if it is already in use.
+     */
+    public int reservePlayerID(int id){
+        return ids.acquire(id) ? id : -1;
     }
 
     /**
-     * Creates a database entry for the given player name. Returns the generated key.
-     * @param name
-     * @return
+     * Returns a player ID to the pool of free IDs, forgetting the matrix history kept for it.
+     * @param id ID to release.
      */
-    public static int createPlayerDatabaseEntry(String name){
-        Connection conn = DatabaseManager.createConnection();
-        PreparedStatement ps = null;
-        int id = -1;
-        try {
-            ps = conn.prepareStatement(SQL_ADD_PLAYER, Statement.RETURN_GENERATED_KEYS);
-            ps.setString(1, name); // Set the player name.
-            ps.executeUpdate();
-            ResultSet rs = ps.getGeneratedKeys();
-            rs.next();
-            id = Integer.parseInt(rs.getString(1));
-        } catch (SQLException e) {
-            Util.log(String.format("Failed to insert player with name %s into database: %s", name, e.getMessage()));
-        } finally {
-            // Try closing the prepared statement.
-            try {
-                if (ps != null) ps.close();
-            } catch (SQLException ignored) { }
-            // Try closing the connection.
-            try {
-                if (conn != null) conn.close();
-            } catch (SQLException ignored) { }
+    public void releasePlayerID(int id){
+        ids.release(id);
+        matrixHistory.remove(id);
+    }
+
+    /**
+     * @param d A matrix update.
+     * @return Key of the matrix cell the update applies to, unique per matrix slot and cell.
+     */
+    protected static long matrixCell(MatrixUpdate d){
+        return ((long) d.getSlot() << 32) | ((d.getX() & 0xffffL) << 16) | (d.getY() & 0xffffL);
+    }
+
+    /**
+     * Remembers a matrix update applied to a player, replacing any earlier update to the same cell.
+     * Must be called from the tick thread.
+     * @param id ID of the player.
+     * @param d The update.
+     */
+    public void recordMatrixUpdate(int id, MatrixUpdate d){
+        LinkedHashMap<Long, MatrixUpdate> history = matrixHistory.get(id);
+        if(history == null){
+            history = new LinkedHashMap<>();
+            matrixHistory.put(id, history);
         }
-        return id;
+        long cell = matrixCell(d);
+        history.remove(cell); // Moves the cell to the end, so updates are replayed in the order they last happened.
+        history.put(cell, d);
+    }
+
+    /**
+     * Removes and returns the matrix updates applied to a player. Must be called from the tick thread.
+     * @param id ID of the player.
+     * @return The latest update to each cell they have changed, oldest first. Empty if they have none.
+     */
+    public ArrayList<MatrixUpdate> takeMatrixHistory(int id){
+        LinkedHashMap<Long, MatrixUpdate> history = matrixHistory.remove(id);
+        return history != null ? new ArrayList<>(history.values()) : new ArrayList<MatrixUpdate>();
+    }
+
+    /**
+     * Sets the matrix updates of a player who has not joined yet, to be replayed once they do.
+     * Must be called from the tick thread.
+     * @param id ID of the player.
+     * @param history Their updates, oldest first.
+     */
+    public void setMatrixHistory(int id, List<MatrixUpdate> history){
+        matrixHistory.remove(id);
+        for(MatrixUpdate d : history){
+            recordMatrixUpdate(id, d);
+        }
+    }
+
+    /**
+     * Applies the recorded matrix updates of a player who has just joined, and sends them to their client.
+     * Must be called from the tick thread.
+     * @param id ID of the player.
+     * @param conn Connection of the player.
+     */
+    public void replayMatrixHistory(int id, HostedConnection conn){
+        LinkedHashMap<Long, MatrixUpdate> history = matrixHistory.get(id);
+        if(history == null){
+            return;
+        }
+        for(MatrixUpdate d : history.values()){
+            updateMatrix(d);
+            conn.send(d);
+        }
+    }
+
+    /**
+     * Loads the stored state of a player, creating a database entry for them if none exists.
+     * Intended to be run on the database executor.
+     * @param conn Connection to run the queries on.
+     * @param name Name the player logged in with.
+     * @return Stored state of the player. New players have no inventory.
+     * @throws SQLException If the lookup fails.
+     */
+    public static PlayerRecord loadOrCreatePlayer(Connection conn, String name) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(SQL_LOAD_OR_CREATE_PLAYER)) {
+            stmt.setString(1, name);
+            stmt.setString(2, name);
+            stmt.execute();
+            int created = stmt.getUpdateCount(); // 1 when the insert added a row, 0 for a duplicate name.
+            if (stmt.getMoreResults()){
+                ResultSet rs = stmt.getResultSet();
+                if (rs.next()){
+                    if (created == 1){
+                        Util.log(String.format("Added player %s to the table %s.", name, DatabaseManager.TABLE_PLAYERS));
+                    }else{
+                        Util.log(String.format("Found database entry for player %s.", name));
+                    }
+                    return new PlayerRecord(rs.getString("name"), rs.getFloat("x"), rs.getFloat("y"), rs.getBytes("inventory"));
+                }
+            }
+        }
+        throw new SQLException("Player "+name+" was neither found nor created.");
     }
 
     /**
@@ -83,14 +186,41 @@ public class PlayerManager extends PlayerMediator {
         }
     }
 
+    /**
+     * Marks every connected player dirty so they are included in the next save.
+     * @param persistence Persistence manager to mark the players in.
+     */
+    public void markAllDirty(PersistenceManager persistence){
+        for(Player player : players){
+            if(player.isConnected()){
+                persistence.markDirty(player.getData());
+            }
+        }
+    }
+
     /**
      * Update loop for players on the server.
      * @param world
      * @param tpf
      */
     public void serverUpdate(ServerWorld world, float tpf){
-        for(Player player : players){
-            player.serverUpdate(tpf);
+        serverUpdate(world, 0, players.size(), tpf);
+    }
+
+    /**
+     * Update loop for a range of players on the server. Used to split the update across threads.
+     * @param world
+     * @param from First player index to update, inclusive.
+     * @param to Last player index to update, exclusive.
+     * @param tpf
+     */
+    public void serverUpdate(ServerWorld world, int from, int to, float tpf){
+        for(int i = from; i < to; i++){
+            players.get(i).serverUpdate(tpf);
         }
     }
+
+    public int getPlayerCount(){
+        return players.size();
+    }
 }
@@ -0,0 +1,34 @@
+package polarity.server.players;
+
+/**
+ * Persisted state of a player as loaded from the database.
+ * @author Sindusk
+ */
+public class PlayerRecord {
+    protected final String name;
+    protected final float x;
+    protected final float y;
+    protected final byte[] inventory;
+
+    public PlayerRecord(String name, float x, float y, byte[] inventory){
+        this.name = name;
+        this.x = x;
+        this.y = y;
+        this.inventory = inventory;
+    }
+    public String getName(){
+        return name;
+    }
+    public float getX(){
+        return x;
+    }
+    public float getY(){
+        return y;
+    }
+    /**
+     * @return The serialized inventory, or null if the player has never been saved.
+     */
+    public byte[] getInventory(){
+        return inventory;
+    }
+}
@@ -0,0 +1,188 @@
+package polarity.server.recorder;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+
+/**
+ * Offline reader for the dumps written by the FlightRecorder.
+ * <p>
+ * Usage: {@code java -cp <server jar> polarity.server.recorder.FlightRecordReader [--slow] <file>...}
+ * <br>
+ * Prints a summary of every phase followed by one line per tick, with durations in milliseconds.
+ * Ticks over budget are marked with a '*'. With --slow, only those ticks are listed.
+ * @author Sindusk
+ */
+public class FlightRecordReader {
+    protected long dumpTime;
+    protected long stepNanos;
+    protected long budgetNanos;
+    protected long triggerTick;
+    protected String[] phaseNames;
+    protected String[] countNames;
+    protected String[] typeNames;
+    protected final ArrayList<Record> records = new ArrayList<>();
+
+    /**
+     * A single recorded tick.
+     */
+    public static class Record {
+        public long tick;
+        public long nanos;
+        public long[] phaseNanos;
+        public long[] counts;
+        public int[] handlerTypes;
+        public long[] handlerNanos;
+    }
+
+    /**
+     * Reads a dump.
+     * @param file Dump to read.
+     * @throws IOException If the file could not be read or is not a flight recorder dump.
+     */
+    public FlightRecordReader(File file) throws IOException{
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))){
+            if(in.readInt() != RecordFormat.MAGIC){
+                throw new IOException(file.getPath()+" is not a flight recorder dump.");
+            }
+            short version = in.readShort();
+            if(version != RecordFormat.VERSION){
+                throw new IOException(file.getPath()+" has unsupported version "+version+".");
+            }
+            dumpTime = in.readLong();
+            stepNanos = in.readLong();
+            budgetNanos = in.readLong();
+            triggerTick = in.readLong();
+            phaseNames = readNames(in, in.readUnsignedByte());
+            countNames = readNames(in, in.readUnsignedByte());
+            typeNames = readNames(in, in.readUnsignedShort());
+            int n = in.readInt();
+            for(int r = 0; r < n; r++){
+                Record record = new Record();
+                record.tick = RecordFormat.readVar(in);
+                record.nanos = RecordFormat.readVar(in);
+                record.phaseNanos = new long[phaseNames.length];
+                for(int i = 0; i < phaseNames.length; i++){
+                    record.phaseNanos[i] = RecordFormat.readVar(in);
+                }
+                record.counts = new long[countNames.length];
+                for(int i = 0; i < countNames.length; i++){
+                    record.counts[i] = RecordFormat.readVar(in);
+                }
+                int handlers = in.readUnsignedByte();
+                record.handlerTypes = new int[handlers];
+                record.handlerNanos = new long[handlers];
+                for(int i = 0; i < handlers; i++){
+                    record.handlerTypes[i] = (int) RecordFormat.readVar(in);
+                    record.handlerNanos[i] = RecordFormat.readVar(in);
+                }
+                records.add(record);
+            }
+        }
+    }
+
+    protected static String[] readNames(DataInputStream in, int n) throws IOException{
+        String[] names = new String[n];
+        for(int i = 0; i < n; i++){
+            names[i] = in.readUTF();
+        }
+        return names;
+    }
+
+    public ArrayList<Record> getRecords(){
+        return records;
+    }
+    public String[] getPhaseNames(){
+        return phaseNames;
+    }
+    public String[] getCountNames(){
+        return countNames;
+    }
+    public String getTypeName(int id){
+        return id < typeNames.length ? typeNames[id] : "#"+id;
+    }
+
+    /**
+     * Prints the dump in a human readable form.
+     * @param out Stream to print to.
+     * @param slowOnly If true, only ticks over budget are listed.
+     */
+    public void print(PrintStream out, boolean slowOnly){
+        out.printf("Dumped %s after tick %d. Step %.2f ms, budget %.2f ms, %d ticks recorded.%n",
+                new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(dumpTime)),
+                triggerTick, stepNanos / 1e6, budgetNanos / 1e6, records.size());
+
+        // Phase summary
+        out.printf("%n%-10s %9s %9s%n", "phase", "avg ms", "max ms");
+        for(int i = 0; i < phaseNames.length; i++){
+            long total = 0;
+            long max = 0;
+            for(Record r : records){
+                total += r.phaseNanos[i];
+                max = Math.max(max, r.phaseNanos[i]);
+            }
+            out.printf("%-10s %9.3f %9.3f%n", phaseNames[i], records.isEmpty() ? 0 : total / 1e6 / records.size(), max / 1e6);
+        }
+
+        // Per tick
+        StringBuilder header = new StringBuilder(String.format("%n  %10s %8s", "tick", "total"));
+        for(String name : phaseNames){
+            header.append(String.format(" %8s", name));
+        }
+        for(String name : countNames){
+            header.append(String.format(" %8s", name));
+        }
+        header.append("  slowest handlers");
+        out.println(header);
+        for(Record r : records){
+            boolean slow = budgetNanos > 0 && r.nanos > budgetNanos;
+            if(slowOnly && !slow){
+                continue;
+            }
+            StringBuilder line = new StringBuilder(String.format("%s %10d %8.3f", slow ? "*" : " ", r.tick, r.nanos / 1e6));
+            for(long nanos : r.phaseNanos){
+                line.append(String.format(" %8.3f", nanos / 1e6));
+            }
+            for(long count : r.counts){
+                line.append(String.format(" %8d", count));
+            }
+            line.append(' ');
+            for(int i = 0; i < r.handlerTypes.length; i++){
+                line.append(String.format(" %s:%.3f", getTypeName(r.handlerTypes[i]), r.handlerNanos[i] / 1e6));
+            }
+            out.println(line);
+        }
+    }
+
+    public static void main(String[] args){
+        boolean slowOnly = false;
+        int files = 0;
+        for(String arg : args){
+            if(arg.equals("--slow")){
+                slowOnly = true;
+            }
+        }
+        for(String arg : args){
+            if(arg.equals("--slow")){
+                continue;
+            }
+            files++;
+            try{
+                new FlightRecordReader(new File(arg)).print(System.out, slowOnly);
+            }catch(IOException e){
+                System.err.println("Failed to read "+arg+": "+e.getMessage());
+            }
+            System.out.println();
+        }
+        if(files == 0){
+            System.err.println("Usage: FlightRecordReader [--slow] <file>...");
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package polarity.server.recorder;
+
+import polarity.server.metrics.Gauge;
+import polarity.server.network.dispatch.HandlerListener;
+import polarity.server.tick.TickListener;
+import polarity.server.tick.TickPhase;
+import polarity.shared.tools.Util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Always-on recorder of the last few hundred ticks, dumped to disk when a tick runs over budget.
+ * <p>
+ * Each tick records the time taken by every phase, a set of entity counts and the slowest message
+ * handlers it ran. Records are kept in preallocated ring buffers, so recording does not allocate.
+ * When a tick goes over budget, the whole ring is written out once the current frame is done,
+ * giving the history leading up to the slow tick. Encoding happens on the tick thread between frames;
+ * the file itself is written on a background thread. After a dump, no other dump is made until the
+ * ring has been entirely refilled. Files can be read with FlightRecordReader.
+ * Counts must be added before the first tick. Must only be used from the tick thread.
+ * @author Sindusk
+ */
+public class FlightRecorder implements TickListener, HandlerListener {
+    protected final int capacity;
+    protected final int slots; // One more than the capacity, for the tick in progress.
+    protected final int topHandlers;
+    protected final long stepNanos;
+    protected final long budgetNanos;
+    protected final File directory;
+    protected final TickPhase[] phases = TickPhase.values();
+
+    // Entity counts sampled at the end of every tick.
+    protected String[] countNames = new String[0];
+    protected Gauge[] counts = new Gauge[0];
+
+    // Message classes seen by handlers, indexed in order of first appearance.
+    protected final HashMap<Class<?>, Integer> typeIds = new HashMap<>();
+    protected final ArrayList<String> typeNames = new ArrayList<>();
+
+    // Ring buffers, indexed by slot. Per-phase, per-count and per-handler values are stored inline.
+    protected final long[] tickNumbers;
+    protected final long[] tickNanos;
+    protected final long[] phaseNanos;
+    protected long[] countValues;
+    protected final int[] handlerCounts;
+    protected final int[] handlerTypes;
+    protected final long[] handlerNanos;
+    protected int slot = 0;
+    protected int recorded = 0;
+
+    // Dump state
+    protected boolean dumpPending = false;
+    protected long triggerTick = 0;
+    protected long nextDumpTick = 0;
+    protected final ExecutorService writer;
+
+    // Metrics
+    protected int dumps = 0;
+
+    /**
+     * @param capacity Number of ticks kept.
+     * @param topHandlers Number of the slowest handlers kept per tick.
+     * @param stepNanos Length of a tick, in nanoseconds. Written to dumps for reference.
+     * @param budgetNanos Tick duration above which the recorder is dumped. Zero or less never dumps.
+     * @param directory Directory to write dumps to. Created when the first dump is written.
+     */
+    public FlightRecorder(int capacity, int topHandlers, long stepNanos, long budgetNanos, File directory){
+        this.capacity = Math.max(1, capacity);
+        this.slots = this.capacity + 1;
+        this.topHandlers = Math.max(0, Math.min(topHandlers, 255));
+        this.stepNanos = stepNanos;
+        this.budgetNanos = budgetNanos;
+        this.directory = directory;
+        tickNumbers = new long[slots];
+        tickNanos = new long[slots];
+        phaseNanos = new long[slots * phases.length];
+        countValues = new long[0];
+        handlerCounts = new int[slots];
+        handlerTypes = new int[slots * this.topHandlers];
+        handlerNanos = new long[slots * this.topHandlers];
+        writer = Executors.newSingleThreadExecutor(new ThreadFactory(){
+            public Thread newThread(Runnable r){
+                Thread t = new Thread(r, "FlightRecorder-Writer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public int getDumps(){
+        return dumps;
+    }
+
+    /**
+     * Adds a count sampled at the end of every tick, such as the number of monsters.
+     * @param name Name of the count, shown by the reader.
+     * @param source Source of the count.
+     */
+    public void addCount(String name, Gauge source){
+        int n = counts.length;
+        String[] names = new String[n + 1];
+        Gauge[] sources = new Gauge[n + 1];
+        System.arraycopy(countNames, 0, names, 0, n);
+        System.arraycopy(counts, 0, sources, 0, n);
+        names[n] = name;
+        sources[n] = source;
+        countNames = names;
+        counts = sources;
+        countValues = new long[slots * (n + 1)]; // Anything recorded so far is dropped.
+    }
+
+    public void phaseCompleted(TickPhase phase, long nanos){
+        phaseNanos[slot * phases.length + phase.ordinal()] = nanos;
+    }
+
+    /**
+     * Keeps the handler if it is one of the slowest of the current tick.
+     */
+    public void handlerCompleted(Class<?> type, long nanos){
+        if(topHandlers == 0){
+            return;
+        }
+        int base = slot * topHandlers;
+        int n = handlerCounts[slot];
+        if(n == topHandlers && nanos <= handlerNanos[base + n - 1]){
+            return;
+        }
+        // Insertion into a list sorted slowest first, dropping the fastest if it is full.
+        int pos = n < topHandlers ? n : n - 1;
+        while(pos > 0 && handlerNanos[base + pos - 1] < nanos){
+            handlerNanos[base + pos] = handlerNanos[base + pos - 1];
+            handlerTypes[base + pos] = handlerTypes[base + pos - 1];
+            pos--;
+        }
+        handlerNanos[base + pos] = nanos;
+        handlerTypes[base + pos] = typeId(type);
+        if(n < topHandlers){
+            handlerCounts[slot] = n + 1;
+        }
+    }
+
+    public void tickCompleted(long tick, long nanos){
+        tickNumbers[slot] = tick;
+        tickNanos[slot] = nanos;
+        int base = slot * counts.length;
+        for(int i = 0; i < counts.length; i++){
+            countValues[base + i] = (long) counts[i].get();
+        }
+        if(budgetNanos > 0 && nanos > budgetNanos && tick >= nextDumpTick && !dumpPending){
+            dumpPending = true;
+            triggerTick = tick;
+        }
+        slot = (slot + 1) % slots;
+        if(recorded < capacity){
+            recorded++;
+        }
+        // Clear the next slot, since phases without a task do not report.
+        for(int i = 0; i < phases.length; i++){
+            phaseNanos[slot * phases.length + i] = 0;
+        }
+        handlerCounts[slot] = 0;
+    }
+
+    /**
+     * Writes a dump if a tick went over budget during this frame. Called once per frame, after ticking.
+     */
+    public void frameCompleted(){
+        if(!dumpPending){
+            return;
+        }
+        dumpPending = false;
+        nextDumpTick = triggerTick + capacity;
+        final File file = new File(directory, "tick-"+triggerTick+"-"+System.currentTimeMillis()+RecordFormat.EXTENSION);
+        final int ticks = recorded;
+        final byte[] data;
+        try{
+            data = encode();
+        }catch(IOException e){
+            Util.log("[FlightRecorder] Failed to encode dump: "+e.getMessage());
+            return;
+        }
+        dumps++;
+        writer.execute(new Runnable(){
+            public void run(){
+                if(!directory.isDirectory() && !directory.mkdirs()){
+                    Util.log("[FlightRecorder] Could not create directory "+directory.getPath());
+                    return;
+                }
+                try(FileOutputStream out = new FileOutputStream(file)){
+                    out.write(data);
+                    Util.log("[FlightRecorder] Tick over budget. Wrote the last "+ticks+" ticks to "+file.getPath());
+                }catch(IOException e){
+                    Util.log("[FlightRecorder] Failed to write "+file.getPath()+": "+e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Encodes every recorded tick, oldest first.
+     * @return The dump, in the layout described by RecordFormat.
+     * @throws IOException Never, as it writes to memory.
+     */
+    protected byte[] encode() throws IOException{
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + recorded * (16 + phases.length * 3 + counts.length * 2 + topHandlers * 4));
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(RecordFormat.MAGIC);
+        out.writeShort(RecordFormat.VERSION);
+        out.writeLong(System.currentTimeMillis());
+        out.writeLong(stepNanos);
+        out.writeLong(budgetNanos);
+        out.writeLong(triggerTick);
+        out.writeByte(phases.length);
+        for(TickPhase phase : phases){
+            out.writeUTF(phase.getName());
+        }
+        out.writeByte(counts.length);
+        for(String name : countNames){
+            out.writeUTF(name);
+        }
+        out.writeShort(typeNames.size());
+        for(String name : typeNames){
+            out.writeUTF(name);
+        }
+        out.writeInt(recorded);
+        int first = (slot - recorded + slots) % slots;
+        for(int r = 0; r < recorded; r++){
+            int s = (first + r) % slots;
+            RecordFormat.writeVar(out, tickNumbers[s]);
+            RecordFormat.writeVar(out, tickNanos[s]);
+            for(int i = 0; i < phases.length; i++){
+                RecordFormat.writeVar(out, phaseNanos[s * phases.length + i]);
+            }
+            for(int i = 0; i < counts.length; i++){
+                RecordFormat.writeVar(out, Math.max(0, countValues[s * counts.length + i]));
+            }
+            out.writeByte(handlerCounts[s]);
+            for(int i = 0; i < handlerCounts[s]; i++){
+                RecordFormat.writeVar(out, handlerTypes[s * topHandlers + i]);
+                RecordFormat.writeVar(out, handlerNanos[s * topHandlers + i]);
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    protected int typeId(Class<?> type){
+        Integer id = typeIds.get(type);
+        if(id == null){
+            id = typeNames.size();
+            typeIds.put(type, id);
+            typeNames.add(type.getSimpleName());
+        }
+        return id;
+    }
+
+    /**
+     * Waits briefly for any dump still being written.
+     */
+    public void close(){
+        writer.shutdown();
+        try{
+            writer.awaitTermination(5, TimeUnit.SECONDS);
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void logStats(){
+        if(dumps > 0){
+            Util.log("[FlightRecorder] "+dumps+" slow tick dumps written to "+directory.getPath());
+        }
+    }
+}
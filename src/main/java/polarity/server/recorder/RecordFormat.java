@@ -0,0 +1,59 @@
+package polarity.server.recorder;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Layout of the files written by the FlightRecorder.
+ * <p>
+ * All fixed-size values are big-endian. Durations and counts are written as unsigned
+ * variable-length integers, 7 bits per byte, so a typical tick takes a few dozen bytes.
+ * <pre>
+ * int     MAGIC
+ * short   VERSION
+ * long    time of the dump, in milliseconds since the epoch
+ * long    tick step, in nanoseconds
+ * long    tick budget, in nanoseconds
+ * long    number of the tick that triggered the dump
+ * byte    phase count, then the name of each phase (UTF)
+ * byte    entity count count, then the name of each count (UTF)
+ * short   handler type count, then the name of each type (UTF)
+ * int     record count, then each record, oldest first:
+ *   var   tick number
+ *   var   tick duration
+ *   var   duration of each phase, in phase order (0 if it did not run)
+ *   var   each entity count, in count order
+ *   byte  handler count, then for each, slowest first:
+ *     var handler type index
+ *     var handler duration
+ * </pre>
+ * @author Sindusk
+ */
+public final class RecordFormat {
+    public static final int MAGIC = 0x50465231; // "PFR1"
+    public static final short VERSION = 1;
+    public static final String EXTENSION = ".pfr";
+
+    private RecordFormat(){ }
+
+    public static void writeVar(DataOutput out, long value) throws IOException{
+        while((value & ~0x7FL) != 0){
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    public static long readVar(DataInput in) throws IOException{
+        long value = 0;
+        for(int shift = 0; shift < 64; shift += 7){
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if((b & 0x80) == 0){
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable-length integer.");
+    }
+}
@@ -0,0 +1,232 @@
+package polarity.server.shard;
+
+import com.jme3.network.HostedConnection;
+import com.jme3.scene.Node;
+import polarity.server.database.PersistenceManager;
+import polarity.server.events.EventManager;
+import polarity.server.files.ServerProperties;
+import polarity.server.files.vars.ServerVar;
+import polarity.server.monsters.MonsterManager;
+import polarity.server.network.dispatch.MessageDispatcher;
+import polarity.server.network.ingress.IngressManager;
+import polarity.server.network.interest.InterestManager;
+import polarity.server.network.login.LoginQueue;
+import polarity.server.network.snapshot.SnapshotManager;
+import polarity.server.players.PlayerManager;
+import polarity.server.tick.TickScheduler;
+import polarity.server.world.ServerWorld;
+import polarity.server.world.chunks.ChunkCache;
+import polarity.server.world.chunks.ChunkService;
+import polarity.server.world.chunks.ChunkStore;
+import polarity.shared.ai.AIManager;
+import polarity.shared.character.Player;
+import polarity.shared.character.data.PlayerData;
+import polarity.shared.tools.DevCheats;
+import polarity.shared.tools.Util;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * The world simulation hosted by the server.
+ * <p>
+ * A shard owns its world, the players and monsters in it, their events and AI, and the network
+ * state of every connection: inbound queues, logins, interest and outbound buffers.
+ * All of it is only touched from the tick thread. Other threads hand work to the shard through
+ * execute(), which runs tasks at the start of the next tick, in the order they were queued.
+ * <p>
+ * The server hosts a single shard. Shared code finds the world and network through Sys, which can
+ * only point at one of each, so several shards in one process would not keep their state apart.
+ * @author Sindusk
+ */
+public class WorldShard implements Executor {
+    // Constants:
+    private static final int WORLD_SEED = 50;
+
+    protected final ServerProperties properties;
+    protected final PlayerManager players = new PlayerManager();
+    protected final MonsterManager monsters = new MonsterManager();
+    protected final SnapshotManager snapshots;
+    protected final InterestManager interest;
+    protected final IngressManager ingress;
+    protected final LoginQueue logins;
+    protected final MessageDispatcher dispatcher = new MessageDispatcher();
+    protected final PersistenceManager persistence;
+    protected final TickScheduler scheduler;
+    // Work handed over by other threads. Run in order at the start of each tick.
+    protected final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    // Created by initializeWorld().
+    protected ServerWorld world;
+    protected ChunkService chunks;
+    protected AIManager ai;
+    protected EventManager events;
+
+    /**
+     * Creates the managers of the shard. The world itself is created by initializeWorld().
+     * @param properties Server properties to read settings from.
+     * @param maxPlayers Maximum number of players connected at once.
+     * @param tickRate Number of ticks per second.
+     */
+    public WorldShard(ServerProperties properties, int maxPlayers, int tickRate){
+        this.properties = properties;
+        players.setMaxPlayers(maxPlayers);
+        float radius = Float.parseFloat(properties.getVar(ServerVar.InterestRadius.getVar()));
+        snapshots = new SnapshotManager(Double.parseDouble(properties.getVar(ServerVar.ClientBandwidth.getVar())) * 1024,
+                Boolean.parseBoolean(properties.getVar(ServerVar.SnapshotBatching.getVar())));
+        interest = new InterestManager(players, snapshots, radius);
+        ingress = new IngressManager(
+                Integer.parseInt(properties.getVar(ServerVar.IngressQueueSize.getVar())),
+                Double.parseDouble(properties.getVar(ServerVar.IngressRate.getVar())),
+                Double.parseDouble(properties.getVar(ServerVar.IngressBurst.getVar())),
+                Integer.parseInt(properties.getVar(ServerVar.IngressPerTick.getVar())));
+        logins = new LoginQueue(snapshots, this,
+                Integer.parseInt(properties.getVar(ServerVar.LoginConcurrency.getVar())),
+                Integer.parseInt(properties.getVar(ServerVar.LoginQueueSize.getVar())));
+        persistence = new PersistenceManager(Float.parseFloat(properties.getVar(ServerVar.PersistInterval.getVar())));
+        scheduler = new TickScheduler(tickRate, Integer.parseInt(properties.getVar(ServerVar.MaxCatchUpTicks.getVar())));
+    }
+
+    public ServerWorld getWorld(){
+        return world;
+    }
+    public PlayerManager getPlayers(){
+        return players;
+    }
+    public MonsterManager getMonsters(){
+        return monsters;
+    }
+    public EventManager getEvents(){
+        return events;
+    }
+    public AIManager getAI(){
+        return ai;
+    }
+    public SnapshotManager getSnapshots(){
+        return snapshots;
+    }
+    public InterestManager getInterest(){
+        return interest;
+    }
+    public IngressManager getIngress(){
+        return ingress;
+    }
+    public LoginQueue getLogins(){
+        return logins;
+    }
+    public MessageDispatcher getDispatcher(){
+        return dispatcher;
+    }
+    public PersistenceManager getPersistence(){
+        return persistence;
+    }
+    public ChunkService getChunkService(){
+        return chunks;
+    }
+    public TickScheduler getScheduler(){
+        return scheduler;
+    }
+
+    /**
+     * Creates the world of the shard, along with its chunk service, AI and events.
+     * When spawn was stored by an earlier run, the start area is loaded from the store as it is requested, not generated.
+     */
+    public void initializeWorld(){
+        world = new ServerWorld(WORLD_SEED);
+        long chunkCacheBytes = Long.parseLong(properties.getVar(ServerVar.ChunkCacheSize.getVar())) * 1024 * 1024;
+        int chunkBudget = Integer.parseInt(properties.getVar(ServerVar.ChunkGenerationBudget.getVar()));
+        ChunkStore chunkStore = new ChunkStore(new File(properties.getVar(ServerVar.ChunkStorePath.getVar())));
+        chunks = new ChunkService(world, snapshots, new ChunkCache(chunkCacheBytes), chunkStore, chunkBudget);
+        world.setChunkService(chunks);
+        if(!chunks.isStored(0, 0)){
+            world.generateStart();
+        }
+        chunks.pregenerate(0, 0, Integer.parseInt(properties.getVar(ServerVar.PregenRadius.getVar())));
+        ai = new AIManager();
+        events = new EventManager();
+    }
+
+    /**
+     * Queues a task to run on the tick thread at the start of its next tick.
+     * Tasks run in the order they were queued. Safe to call from any thread.
+     * @param task Task to run.
+     */
+    public void execute(Runnable task){
+        tasks.add(task);
+    }
+
+    /**
+     * Runs queued tasks, then handles every message that has arrived since the last tick, up to the
+     * per-tick limit, then starts any logins waiting for the database. Must be called from the tick thread.
+     */
+    public void drainInbound(){
+        Runnable task;
+        while((task = tasks.poll()) != null){
+            task.run();
+        }
+        ingress.drain(dispatcher);
+        logins.update();
+    }
+
+    /**
+     * Adds a player to the world and sends them its current state. Any matrix history set for them,
+     * such as when they moved from another node, is replayed. Must be called from the tick thread.
+     * @param conn Connection of the player.
+     * @param d Data of the player.
+     * @return The added player.
+     */
+    public Player addPlayer(HostedConnection conn, PlayerData d){
+        Player player = players.addPlayer(world, d);
+        player.setConnection(conn);
+        player.initializeMatrixArray(new Node());
+        DevCheats.initPlayerMatrix(conn, d.getID(), player.getMatrix(0));
+        players.replayMatrixHistory(d.getID(), conn);
+        world.sendData(conn);
+        monsters.sendMonsterData(conn);
+        interest.addViewer(d.getID(), conn, d.getLocation()); // Exchanges PlayerData with nearby players.
+        return player;
+    }
+
+    /**
+     * Removes the player on a connection from the world, along with everything the shard holds for the
+     * connection. Does not release their ID or save them. Must be called from the tick thread.
+     * @param conn Connection of the player.
+     * @return ID of the removed player, or -1 if the connection had no player.
+     */
+    public int removePlayer(HostedConnection conn){
+        int id = players.removePlayer(conn);
+        chunks.remove(conn);
+        snapshots.remove(conn); // Also covers connections that never joined. Safe to repeat.
+        if(id != -1){
+            interest.removeViewer(id); // Notifies every player that could see them.
+        }
+        return id;
+    }
+
+    /**
+     * Logs the metrics of every part of the shard.
+     */
+    public void logStats(){
+        Util.log("[WorldShard] "+players.getPlayerCount()+" players, "+monsters.getMonsterCount()+" monsters.");
+        ingress.logStats();
+        logins.logStats();
+        dispatcher.logStats();
+        snapshots.logStats();
+        if(chunks != null){
+            chunks.logStats();
+        }
+    }
+
+    /**
+     * Saves every connected player and closes the chunk store. The tick thread must have stopped.
+     */
+    public void close(){
+        if(chunks != null){
+            chunks.close();
+        }
+        // Final save of everyone still connected, written before the pool shuts down.
+        players.markAllDirty(persistence);
+        persistence.flushNow();
+    }
+}
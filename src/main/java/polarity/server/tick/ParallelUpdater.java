@@ -0,0 +1,131 @@
+package polarity.server.tick;
+
+import polarity.shared.tools.Util;
+
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+
+/**
+ * Splits a phase across a fixed pool of worker threads.
+ * <p>
+ * The calling (tick) thread acts as worker 0, so a pool of N threads uses N-1 extra threads.
+ * Each call to run() partitions the index range into one chunk per worker and does not
+ * return until every chunk has finished, which acts as the barrier between phases.
+ * Workers are reused across ticks and no allocation is done per call.
+ * <p>
+ * A task may only write state owned by the indices it was given. Anything shared, such as the entity
+ * list or the scene graph above each entity's own node, must be left alone or queued for the calling
+ * thread to apply once run() returns.
+ * @author Sindusk
+ */
+public class ParallelUpdater {
+    protected final int workers;
+    protected final CyclicBarrier start;
+    protected final CyclicBarrier end;
+    protected final Thread[] threads;
+
+    // Current job. Written by the tick thread before the start barrier, read by workers after it.
+    protected RangeTask task;
+    protected int count;
+    protected float tpf;
+    protected volatile boolean running = true;
+
+    /**
+     * Creates a new updater and starts its worker threads.
+     * @param workers Total number of workers, including the calling thread. Values below 1 use one per core.
+     */
+    public ParallelUpdater(int workers){
+        if(workers < 1){
+            workers = Runtime.getRuntime().availableProcessors();
+        }
+        this.workers = workers;
+        start = new CyclicBarrier(workers);
+        end = new CyclicBarrier(workers);
+        threads = new Thread[workers-1];
+        for(int i = 0; i < threads.length; i++){
+            final int index = i+1;
+            threads[i] = new Thread(new Runnable(){
+                public void run(){
+                    workerLoop(index);
+                }
+            }, "ParallelUpdater-"+index);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+    }
+
+    public int getWorkers(){
+        return workers;
+    }
+
+    /**
+     * Runs the task over indices [0, count), split across all workers.
+     * Blocks until every worker has finished its chunk.
+     * @param task Task to run on each chunk.
+     * @param count Number of entities to update.
+     * @param tpf Fixed time step of the tick, in seconds.
+     */
+    public void run(RangeTask task, int count, float tpf){
+        if(workers == 1 || count < workers){
+            // Not worth waking the pool.
+            task.run(0, count, tpf);
+            return;
+        }
+        this.task = task;
+        this.count = count;
+        this.tpf = tpf;
+        await(start);
+        runChunk(0);
+        await(end);
+        this.task = null;
+    }
+
+    /**
+     * Stops all worker threads.
+     */
+    public void stop(){
+        running = false;
+        for(Thread t : threads){
+            t.interrupt();
+        }
+    }
+
+    protected void workerLoop(int index){
+        while(running){
+            if(!await(start)){
+                return;
+            }
+            runChunk(index);
+            if(!await(end)){
+                return;
+            }
+        }
+    }
+
+    protected void runChunk(int index){
+        int from = (int) ((long) count * index / workers);
+        int to = (int) ((long) count * (index+1) / workers);
+        if(from < to){
+            try{
+                task.run(from, to, tpf);
+            }catch(Throwable t){
+                Util.log("[ParallelUpdater] Worker "+index+" failed: "+t);
+                t.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Waits on the given barrier.
+     * @param barrier Barrier to wait on.
+     * @return False if the updater was stopped while waiting.
+     */
+    protected boolean await(CyclicBarrier barrier){
+        try{
+            barrier.await();
+            return true;
+        }catch(InterruptedException | BrokenBarrierException e){
+            return false;
+        }
+    }
+}
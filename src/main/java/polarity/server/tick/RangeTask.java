@@ -0,0 +1,16 @@
+package polarity.server.tick;
+
+/**
+ * Work over a contiguous index range of an entity list.
+ * Used by the ParallelUpdater to split a single phase across worker threads.
+ * @author Sindusk
+ */
+public interface RangeTask {
+    /**
+     * Updates every entity in the given range.
+     * @param from First index to update, inclusive.
+     * @param to Last index to update, exclusive.
+     * @param tpf Fixed time step of the tick, in seconds.
+     */
+    void run(int from, int to, float tpf);
+}
@@ -0,0 +1,22 @@
+package polarity.server.tick;
+
+/**
+ * Receives the timings of every tick run by the TickScheduler.
+ * Called on the tick thread, once per phase and once per tick, so it must be cheap and must not allocate.
+ * @author Sindusk
+ */
+public interface TickListener {
+    /**
+     * Called after a phase has run. Phases without a task are not reported.
+     * @param phase The phase that ran.
+     * @param nanos Time the phase took, in nanoseconds.
+     */
+    void phaseCompleted(TickPhase phase, long nanos);
+
+    /**
+     * Called after every phase of a tick has run.
+     * @param tick Number of the tick, counting from zero.
+     * @param nanos Time the whole tick took, in nanoseconds.
+     */
+    void tickCompleted(long tick, long nanos);
+}
@@ -0,0 +1,24 @@
+package polarity.server.tick;
+
+/**
+ * The ordered phases of a single server tick.
+ * Phases are always executed in declaration order by the TickScheduler.
+ * @author Sindusk
+ */
+public enum TickPhase {
+    Input("input"),
+    AI("ai"),
+    Players("players"),
+    Monsters("monsters"),
+    Events("events"),
+    World("world"),
+    Snapshot("snapshot");
+
+    protected String name;
+    TickPhase(String name){
+        this.name = name;
+    }
+    public String getName(){
+        return name;
+    }
+}
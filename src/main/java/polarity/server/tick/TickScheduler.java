@@ -0,0 +1,192 @@
+package polarity.server.tick;
+
+import polarity.shared.tools.Util;
+
+/**
+ * Fixed-timestep scheduler for the server simulation.
+ * <p>
+ * Frame time is added to an accumulator and consumed in whole ticks of a fixed step.
+ * Each tick runs every TickPhase in order. If the server falls behind, at most
+ * maxCatchUpTicks are run in a single frame and the remaining time is dropped.
+ * Timings are recorded per phase, and any phase exceeding its budget is counted as an overrun.
+ * Timings are also passed to any TickListeners. No allocation is done while ticking.
+ * @author Sindusk
+ */
+public class TickScheduler {
+    // Constants:
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    private static final float REPORT_INTERVAL = 10f; // Seconds between overrun reports.
+
+    // Phase tasks and accounting, indexed by TickPhase ordinal.
+    protected final TickPhase[] phases = TickPhase.values();
+    protected final TickTask[] tasks = new TickTask[phases.length];
+    protected final long[] phaseBudget = new long[phases.length];
+    protected final long[] phaseLast = new long[phases.length];
+    protected final long[] phaseMax = new long[phases.length];
+    protected final long[] phaseTotal = new long[phases.length];
+    protected final int[] phaseOverruns = new int[phases.length];
+    protected TickListener[] listeners = new TickListener[0];
+
+    // Timing variables:
+    protected final float step;
+    protected final long stepNanos;
+    protected final int maxCatchUpTicks;
+    protected float accumulator = 0;
+    protected float reportTimer = 0;
+
+    // Tick accounting:
+    protected long tickCount = 0;
+    protected int ticksInWindow = 0;
+    protected int tickOverruns = 0;
+    protected int droppedTicks = 0;
+
+    /**
+     * Creates a new scheduler.
+     * @param tickRate Number of ticks per second.
+     * @param maxCatchUpTicks Maximum number of ticks run in a single frame when catching up.
+     */
+    public TickScheduler(int tickRate, int maxCatchUpTicks){
+        this.step = 1f / tickRate;
+        this.stepNanos = NANOS_PER_SECOND / tickRate;
+        this.maxCatchUpTicks = Math.max(1, maxCatchUpTicks);
+        for(int i = 0; i < phases.length; i++){
+            phaseBudget[i] = stepNanos; // By default, a phase overruns when it alone takes a whole tick.
+        }
+    }
+
+    public float getStep(){
+        return step;
+    }
+    public long getStepNanos(){
+        return stepNanos;
+    }
+    public long getTickCount(){
+        return tickCount;
+    }
+    public long getLastPhaseNanos(TickPhase phase){
+        return phaseLast[phase.ordinal()];
+    }
+
+    /**
+     * Binds a task to the given phase, replacing any existing task.
+     * Phases without a task are skipped.
+     * @param phase Phase to run the task in.
+     * @param task Task to run.
+     */
+    public void setTask(TickPhase phase, TickTask task){
+        tasks[phase.ordinal()] = task;
+    }
+
+    /**
+     * Adds a listener to be given the timings of every tick.
+     * @param listener Listener to add.
+     */
+    public void addListener(TickListener listener){
+        TickListener[] next = new TickListener[listeners.length + 1];
+        System.arraycopy(listeners, 0, next, 0, listeners.length);
+        next[listeners.length] = listener;
+        listeners = next;
+    }
+
+    /**
+     * Sets the time budget for the given phase.
+     * @param phase Phase to set the budget for.
+     * @param nanos Budget in nanoseconds.
+     */
+    public void setPhaseBudget(TickPhase phase, long nanos){
+        phaseBudget[phase.ordinal()] = nanos;
+    }
+
+    /**
+     * Advances the simulation by the given frame time, running as many fixed ticks as are due.
+     * @param frameTime Real time elapsed since the last frame, in seconds.
+     * @return The number of ticks that were run.
+     */
+    public int advance(float frameTime){
+        accumulator += frameTime;
+        int ticks = 0;
+        while(accumulator >= step){
+            if(ticks == maxCatchUpTicks){
+                // Too far behind. Drop the remaining time rather than spiral further behind.
+                droppedTicks += (int) (accumulator / step);
+                accumulator = 0;
+                break;
+            }
+            runTick();
+            accumulator -= step;
+            ticks++;
+        }
+        reportTimer += frameTime;
+        if(reportTimer >= REPORT_INTERVAL){
+            report();
+            reportTimer = 0;
+        }
+        return ticks;
+    }
+
+    /**
+     * Runs a single tick, executing every phase in order.
+     */
+    protected void runTick(){
+        long tickStart = System.nanoTime();
+        long phaseStart = tickStart;
+        for(int i = 0; i < phases.length; i++){
+            if(tasks[i] == null){
+                phaseLast[i] = 0;
+                continue;
+            }
+            tasks[i].tick(step);
+            long now = System.nanoTime();
+            long elapsed = now - phaseStart;
+            phaseStart = now;
+            phaseLast[i] = elapsed;
+            phaseTotal[i] += elapsed;
+            if(elapsed > phaseMax[i]){
+                phaseMax[i] = elapsed;
+            }
+            if(elapsed > phaseBudget[i]){
+                phaseOverruns[i]++;
+            }
+            if(listeners.length > 0){
+                for(TickListener listener : listeners){
+                    listener.phaseCompleted(phases[i], elapsed);
+                }
+                phaseStart = System.nanoTime(); // Listener time is not charged to the next phase.
+            }
+        }
+        long tickNanos = System.nanoTime() - tickStart; // Includes the time taken by listeners.
+        if(tickNanos > stepNanos){
+            tickOverruns++;
+        }
+        for(TickListener listener : listeners){
+            listener.tickCompleted(tickCount, tickNanos);
+        }
+        tickCount++;
+        ticksInWindow++;
+    }
+
+    /**
+     * Logs overrun accounting for the current window if anything went over budget, then resets the window.
+     */
+    protected void report(){
+        if(tickOverruns > 0 || droppedTicks > 0){
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("[TickScheduler] %d/%d ticks over budget, %d dropped.", tickOverruns, ticksInWindow, droppedTicks));
+            for(int i = 0; i < phases.length; i++){
+                if(phaseOverruns[i] > 0){
+                    sb.append(String.format(" [%s: %d over, avg %.2fms, max %.2fms]", phases[i].getName(), phaseOverruns[i],
+                            phaseTotal[i] / (ticksInWindow * 1000000.0), phaseMax[i] / 1000000.0));
+                }
+            }
+            Util.log(sb.toString());
+        }
+        for(int i = 0; i < phases.length; i++){
+            phaseMax[i] = 0;
+            phaseTotal[i] = 0;
+            phaseOverruns[i] = 0;
+        }
+        ticksInWindow = 0;
+        tickOverruns = 0;
+        droppedTicks = 0;
+    }
+}
@@ -0,0 +1,14 @@
+package polarity.server.tick;
+
+/**
+ * Work bound to a single TickPhase.
+ * Tasks are created once when the server initializes and reused every tick.
+ * @author Sindusk
+ */
+public interface TickTask {
+    /**
+     * Runs the work for this phase.
+     * @param tpf Fixed time step of the tick, in seconds.
+     */
+    void tick(float tpf);
+}
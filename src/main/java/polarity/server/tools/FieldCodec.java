@@ -0,0 +1,423 @@
+package polarity.server.tools;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Self-describing binary format for objects kept on disk or in the database.
+ * <p>
+ * The network Serializer writes registration IDs, which change with the order classes are registered in
+ * and with the server's settings, so anything it writes can only be read back by the same build.
+ * This format names every class and field instead. Fields are read back by name, so fields added since
+ * a value was written keep their defaults, and fields since removed are skipped.
+ * <pre>
+ * int     MAGIC
+ * short   VERSION
+ * value   the root object, where each value is a type byte followed by:
+ *   NULL                  nothing
+ *   BOOLEAN .. DOUBLE     the primitive
+ *   STRING                the string (UTF)
+ *   ENUM                  class name (UTF), constant name (UTF)
+ *   ARRAY                 component class name (UTF), var length, each element
+ *   COLLECTION            class name (UTF), var size, each element
+ *   MAP                   class name (UTF), var size, each key then value
+ *   OBJECT                class name (UTF), var field count, then each field's name (UTF) and value
+ *   REFERENCE             var index of an array, collection, map or object written earlier
+ * </pre>
+ * Objects are read back through their no-argument constructor, which every class sent over the network has.
+ * Static and transient fields are skipped.
+ * @author Sindusk
+ */
+public final class FieldCodec {
+    public static final int MAGIC = 0x50464331; // "PFC1"
+    public static final short VERSION = 1;
+
+    private static final byte NULL = 0;
+    private static final byte BOOLEAN = 1;
+    private static final byte BYTE = 2;
+    private static final byte SHORT = 3;
+    private static final byte CHAR = 4;
+    private static final byte INT = 5;
+    private static final byte LONG = 6;
+    private static final byte FLOAT = 7;
+    private static final byte DOUBLE = 8;
+    private static final byte STRING = 9;
+    private static final byte ENUM = 10;
+    private static final byte ARRAY = 11;
+    private static final byte COLLECTION = 12;
+    private static final byte MAP = 13;
+    private static final byte OBJECT = 14;
+    private static final byte REFERENCE = 15;
+
+    // Persisted fields of each class, most derived first. Shadowed fields are left out.
+    private static final Map<Class<?>, Field[]> fields = new HashMap<>();
+
+    private FieldCodec(){ }
+
+    /**
+     * Encodes an object and everything it references.
+     * @param value Object to encode. May be null.
+     * @return The encoded object.
+     * @throws IOException If it holds something this format cannot describe, such as a Class.
+     */
+    public static byte[] encode(Object value) throws IOException{
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        write(out, value, new IdentityHashMap<Object, Integer>());
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param bytes Bytes to check.
+     * @return True if the bytes start like something encode() wrote.
+     */
+    public static boolean isEncoded(byte[] bytes){
+        return bytes != null && bytes.length >= 6
+                && ((bytes[0] & 0xFF) << 24 | (bytes[1] & 0xFF) << 16 | (bytes[2] & 0xFF) << 8 | (bytes[3] & 0xFF)) == MAGIC;
+    }
+
+    /**
+     * Decodes an object written by encode().
+     * @param bytes The encoded object.
+     * @return The object.
+     * @throws IOException If the bytes are not in this format, are from a newer version, or name a class
+     * that no longer exists.
+     */
+    public static Object decode(byte[] bytes) throws IOException{
+        return decode(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Decodes an object written by encode() from part of an array.
+     * @param bytes Array holding the encoded object.
+     * @param offset Index of its first byte.
+     * @param length Number of bytes it takes.
+     * @return The object.
+     * @throws IOException As decode(byte[]).
+     */
+    public static Object decode(byte[] bytes, int offset, int length) throws IOException{
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, offset, length));
+        if(in.readInt() != MAGIC){
+            throw new IOException("Not in the field codec format.");
+        }
+        short version = in.readShort();
+        if(version > VERSION){
+            throw new IOException("Written by a newer version ("+version+").");
+        }
+        return read(in, new ArrayList<Object>());
+    }
+
+    private static void write(DataOutputStream out, Object value, IdentityHashMap<Object, Integer> written) throws IOException{
+        if(value == null){
+            out.writeByte(NULL);
+            return;
+        }
+        Class<?> c = value.getClass();
+        if(c == Boolean.class){
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        }else if(c == Byte.class){
+            out.writeByte(BYTE);
+            out.writeByte((Byte) value);
+        }else if(c == Short.class){
+            out.writeByte(SHORT);
+            out.writeShort((Short) value);
+        }else if(c == Character.class){
+            out.writeByte(CHAR);
+            out.writeChar((Character) value);
+        }else if(c == Integer.class){
+            out.writeByte(INT);
+            out.writeInt((Integer) value);
+        }else if(c == Long.class){
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        }else if(c == Float.class){
+            out.writeByte(FLOAT);
+            out.writeFloat((Float) value);
+        }else if(c == Double.class){
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        }else if(c == String.class){
+            out.writeByte(STRING);
+            out.writeUTF((String) value);
+        }else if(value instanceof Enum){
+            out.writeByte(ENUM);
+            out.writeUTF(((Enum<?>) value).getDeclaringClass().getName());
+            out.writeUTF(((Enum<?>) value).name());
+        }else if(written.containsKey(value)){
+            out.writeByte(REFERENCE);
+            writeVar(out, written.get(value));
+        }else{
+            written.put(value, written.size());
+            if(c.isArray()){
+                out.writeByte(ARRAY);
+                out.writeUTF(c.getComponentType().getName());
+                int length = Array.getLength(value);
+                writeVar(out, length);
+                for(int i = 0; i < length; i++){
+                    write(out, Array.get(value, i), written);
+                }
+            }else if(value instanceof Collection){
+                out.writeByte(COLLECTION);
+                out.writeUTF(c.getName());
+                writeVar(out, ((Collection<?>) value).size());
+                for(Object o : (Collection<?>) value){
+                    write(out, o, written);
+                }
+            }else if(value instanceof Map){
+                out.writeByte(MAP);
+                out.writeUTF(c.getName());
+                writeVar(out, ((Map<?, ?>) value).size());
+                for(Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()){
+                    write(out, e.getKey(), written);
+                    write(out, e.getValue(), written);
+                }
+            }else if(c == Class.class || c.getName().startsWith("java.")){
+                throw new IOException("Cannot encode "+c.getName()+".");
+            }else{
+                out.writeByte(OBJECT);
+                out.writeUTF(c.getName());
+                Field[] f = fieldsOf(c);
+                writeVar(out, f.length);
+                for(Field field : f){
+                    out.writeUTF(field.getName());
+                    try{
+                        write(out, field.get(value), written);
+                    }catch(IllegalAccessException e){
+                        throw new IOException("Cannot read "+c.getName()+"."+field.getName()+".", e);
+                    }
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object read(DataInputStream in, ArrayList<Object> read) throws IOException{
+        byte type = in.readByte();
+        switch(type){
+            case NULL:
+                return null;
+            case BOOLEAN:
+                return in.readBoolean();
+            case BYTE:
+                return in.readByte();
+            case SHORT:
+                return in.readShort();
+            case CHAR:
+                return in.readChar();
+            case INT:
+                return in.readInt();
+            case LONG:
+                return in.readLong();
+            case FLOAT:
+                return in.readFloat();
+            case DOUBLE:
+                return in.readDouble();
+            case STRING:
+                return in.readUTF();
+            case ENUM:{
+                Class<?> c = classFor(in.readUTF());
+                String name = in.readUTF();
+                for(Object constant : c.getEnumConstants()){
+                    if(((Enum<?>) constant).name().equals(name)){
+                        return constant;
+                    }
+                }
+                return null; // Removed since it was written.
+            }
+            case REFERENCE:{
+                int index = (int) readVar(in);
+                if(index >= read.size()){
+                    throw new IOException("Reference to an object not read yet.");
+                }
+                return read.get(index);
+            }
+            case ARRAY:{
+                Class<?> component = classFor(in.readUTF());
+                int length = (int) readVar(in);
+                Object array = Array.newInstance(component, length);
+                read.add(array);
+                for(int i = 0; i < length; i++){
+                    Object element = read(in, read);
+                    if(fits(component, element)){
+                        Array.set(array, i, element);
+                    }
+                }
+                return array;
+            }
+            case COLLECTION:{
+                Collection<Object> collection = (Collection<Object>) instantiate(classFor(in.readUTF()));
+                read.add(collection);
+                int size = (int) readVar(in);
+                for(int i = 0; i < size; i++){
+                    collection.add(read(in, read));
+                }
+                return collection;
+            }
+            case MAP:{
+                Map<Object, Object> map = (Map<Object, Object>) instantiate(classFor(in.readUTF()));
+                read.add(map);
+                int size = (int) readVar(in);
+                for(int i = 0; i < size; i++){
+                    Object key = read(in, read);
+                    map.put(key, read(in, read));
+                }
+                return map;
+            }
+            case OBJECT:{
+                Class<?> c = classFor(in.readUTF());
+                Object value = instantiate(c);
+                read.add(value);
+                int count = (int) readVar(in);
+                for(int i = 0; i < count; i++){
+                    Field field = fieldOf(c, in.readUTF());
+                    Object v = read(in, read);
+                    if(field != null){
+                        set(value, field, v);
+                    }
+                }
+                return value;
+            }
+            default:
+                throw new IOException("Unknown value type "+type+".");
+        }
+    }
+
+    /**
+     * Sets a field, leaving its default if the value no longer fits it.
+     */
+    private static void set(Object target, Field field, Object value) throws IOException{
+        if(!fits(field.getType(), value)){
+            return;
+        }
+        try{
+            field.set(target, value);
+        }catch(IllegalAccessException e){
+            throw new IOException("Cannot set "+field.getDeclaringClass().getName()+"."+field.getName()+".", e);
+        }
+    }
+
+    /**
+     * @return True if the value can be stored in a field or array element of the given type.
+     */
+    private static boolean fits(Class<?> type, Object value){
+        if(type.isPrimitive()){
+            return value != null && wrap(type).isInstance(value);
+        }
+        return value == null || type.isInstance(value);
+    }
+
+    private static Class<?> wrap(Class<?> primitive){
+        if(primitive == boolean.class) return Boolean.class;
+        if(primitive == byte.class) return Byte.class;
+        if(primitive == short.class) return Short.class;
+        if(primitive == char.class) return Character.class;
+        if(primitive == int.class) return Integer.class;
+        if(primitive == long.class) return Long.class;
+        if(primitive == float.class) return Float.class;
+        return Double.class;
+    }
+
+    private static Class<?> classFor(String name) throws IOException{
+        switch(name){
+            case "boolean": return boolean.class;
+            case "byte": return byte.class;
+            case "short": return short.class;
+            case "char": return char.class;
+            case "int": return int.class;
+            case "long": return long.class;
+            case "float": return float.class;
+            case "double": return double.class;
+        }
+        try{
+            return Class.forName(name, false, FieldCodec.class.getClassLoader());
+        }catch(ClassNotFoundException e){
+            throw new IOException("Unknown class "+name+".", e);
+        }
+    }
+
+    private static Object instantiate(Class<?> c) throws IOException{
+        try{
+            Constructor<?> constructor = c.getDeclaredConstructor();
+            constructor.setAccessible(true);
+            return constructor.newInstance();
+        }catch(ReflectiveOperationException e){
+            throw new IOException("Cannot create "+c.getName()+".", e);
+        }
+    }
+
+    private static Field fieldOf(Class<?> c, String name){
+        for(Field field : fieldsOf(c)){
+            if(field.getName().equals(name)){
+                return field;
+            }
+        }
+        return null;
+    }
+
+    private static Field[] fieldsOf(Class<?> c){
+        synchronized(fields){
+            Field[] f = fields.get(c);
+            if(f == null){
+                ArrayList<Field> list = new ArrayList<>();
+                for(Class<?> k = c; k != null && k != Object.class; k = k.getSuperclass()){
+                    for(Field field : k.getDeclaredFields()){
+                        int mod = field.getModifiers();
+                        if(Modifier.isStatic(mod) || Modifier.isTransient(mod) || contains(list, field.getName())){
+                            continue;
+                        }
+                        field.setAccessible(true);
+                        list.add(field);
+                    }
+                }
+                f = list.toArray(new Field[list.size()]);
+                fields.put(c, f);
+            }
+            return f;
+        }
+    }
+
+    private static boolean contains(ArrayList<Field> list, String name){
+        for(Field field : list){
+            if(field.getName().equals(name)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void writeVar(DataOutputStream out, long value) throws IOException{
+        while((value & ~0x7FL) != 0){
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVar(DataInputStream in) throws IOException{
+        long value = 0;
+        for(int shift = 0; shift < 64; shift += 7){
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if((b & 0x80) == 0){
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable-length integer.");
+    }
+}
@@ -0,0 +1,95 @@
+package polarity.server.tools;
+
+import java.util.BitSet;
+
+/**
+ * Hands out integer IDs in the range [0, limit) in constant time.
+ * <p>
+ * Free IDs are kept on an int stack, lowest on top, so acquire and release are a single
+ * array access each and never allocate. A BitSet of IDs in use guards against double releases.
+ * Not thread safe; must only be used from the tick thread.
+ * @author Sindusk
+ */
+public class IdAllocator {
+    protected final int limit;
+    protected final int[] free;
+    protected int top;
+    protected final BitSet used;
+
+    /**
+     * Creates an allocator with every ID free.
+     * @param limit Number of IDs available.
+     */
+    public IdAllocator(int limit){
+        this.limit = limit;
+        free = new int[limit];
+        used = new BitSet(limit);
+        reset();
+    }
+
+    public int getLimit(){
+        return limit;
+    }
+    public int getAvailable(){
+        return top;
+    }
+    public boolean isUsed(int id){
+        return id >= 0 && id < limit && used.get(id);
+    }
+
+    /**
+     * Takes a free ID.
+     * @return The ID, or -1 if every ID is in use.
+     */
+    public int acquire(){
+        if(top == 0){
+            return -1;
+        }
+        int id = free[--top];
+        used.set(id);
+        return id;
+    }
+
+    /**
+     * Takes a specific free ID. Linear in the number of free IDs, so only for occasional use.
+     * @param id ID to take.
+     * @return False if the ID is in use or out of range.
+     */
+    public boolean acquire(int id){
+        if(id < 0 || id >= limit || used.get(id)){
+            return false;
+        }
+        for(int i = top-1; i >= 0; i--){
+            if(free[i] == id){
+                System.arraycopy(free, i+1, free, i, top-i-1); // Keeps the lowest IDs on top.
+                top--;
+                used.set(id);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns an ID so it can be handed out again. Releasing a free or out of range ID does nothing.
+     * @param id ID to release.
+     */
+    public void release(int id){
+        if(!isUsed(id)){
+            return;
+        }
+        used.clear(id);
+        free[top++] = id;
+    }
+
+    /**
+     * Marks every ID free.
+     */
+    public void reset(){
+        used.clear();
+        top = limit;
+        for(int i = 0; i < limit; i++){
+            free[i] = limit-1-i; // Lowest IDs on top of the stack.
+        }
+    }
+}
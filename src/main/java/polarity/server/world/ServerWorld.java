@@ -1,30 +1,220 @@
 package polarity.server.world;
 
+import com.jme3.math.Vector2f;
+import com.jme3.scene.Node;
+import com.jme3.util.IntMap;
+import polarity.server.world.chunks.ChunkService;
 import polarity.shared.entity.Entity;
 import polarity.shared.entity.Projectile;
 import polarity.shared.events.ProjectileEvent;
 import polarity.shared.world.GameWorld;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Predicate;
+
 public class ServerWorld extends GameWorld {
+    // Read-only mode, used while entities are updated in parallel.
+    protected volatile boolean readOnly = false;
+    // Size of the entity list and children of the scene node when read-only mode began.
+    protected int readOnlyEntities;
+    protected int readOnlyChildren;
+    protected final ConcurrentLinkedQueue<ProjectileEvent> pendingAdds = new ConcurrentLinkedQueue<>();
+    protected final ConcurrentLinkedQueue<Integer> pendingDestroys = new ConcurrentLinkedQueue<>();
+
+    // Live projectiles by event hash code. Entries are dropped as the entity list loses them.
+    protected final IntMap<Projectile> projectiles = new IntMap<>();
+
+    // Serves chunk requests from its cache and store, invalidated when a chunk changes. May be null.
+    protected ChunkService chunkService;
+
     public ServerWorld(int seed) {
         super(seed);
+        EntityList list = new EntityList();
+        list.addAll(entities);
+        entities = list;
+    }
+
+    /**
+     * Entity list that tells the world about every entity removed from it.
+     * <p>
+     * GameWorld removes projectiles that expire or hit something from its list without calling back
+     * into the server, so the list itself is the one place every removal goes through. Iterator and
+     * list iterator removals go through remove(int), and sublist clears through removeRange().
+     */
+    protected class EntityList extends ArrayList<Entity> {
+        @Override
+        public Entity remove(int index){
+            Entity e = super.remove(index);
+            entityRemoved(e);
+            return e;
+        }
+        @Override
+        public boolean remove(Object o){
+            int index = indexOf(o);
+            if(index < 0){
+                return false;
+            }
+            remove(index);
+            return true;
+        }
+        @Override
+        public boolean removeIf(final Predicate<? super Entity> filter){
+            return super.removeIf(new Predicate<Entity>(){
+                public boolean test(Entity e){
+                    if(filter.test(e)){
+                        entityRemoved(e);
+                        return true;
+                    }
+                    return false;
+                }
+            });
+        }
+        @Override
+        public boolean removeAll(final Collection<?> c){
+            return removeIf(new Predicate<Entity>(){
+                public boolean test(Entity e){
+                    return c.contains(e);
+                }
+            });
+        }
+        @Override
+        public boolean retainAll(final Collection<?> c){
+            return removeIf(new Predicate<Entity>(){
+                public boolean test(Entity e){
+                    return !c.contains(e);
+                }
+            });
+        }
+        @Override
+        public void clear(){
+            for(int i = 0; i < size(); i++){
+                entityRemoved(get(i));
+            }
+            super.clear();
+        }
+        @Override
+        protected void removeRange(int from, int to){
+            for(int i = from; i < to; i++){
+                entityRemoved(get(i));
+            }
+            super.removeRange(from, to);
+        }
+    }
+
+    /**
+     * Called for every entity removed from the entity list, by the server or by GameWorld itself.
+     * @param e The entity removed.
+     */
+    protected void entityRemoved(Entity e){
+        if(e instanceof Projectile){
+            int hashCode = ((Projectile) e).getEvent().getHashCode();
+            if(projectiles.get(hashCode) == e){
+                projectiles.remove(hashCode);
+            }
+        }
+    }
+
+    /**
+     * @return Scene node that projectiles are attached to. Only used for display, which the server never does.
+     */
+    public Node getSceneNode(){
+        return node;
+    }
+
+    public void setChunkService(ChunkService chunkService){
+        this.chunkService = chunkService;
+    }
+
+    /**
+     * Must be called whenever the contents of a chunk change, so its old response is not served or loaded again.
+     * @param key Key of the chunk that changed, as in a ChunkRequest.
+     */
+    public void invalidateChunk(Vector2f key){
+        if(chunkService != null){
+            chunkService.invalidate((int) key.x, (int) key.y);
+        }
+    }
+
+    public int getProjectileCount(){
+        return projectiles.size();
+    }
+
+    public boolean isReadOnly(){
+        return readOnly;
+    }
+
+    /**
+     * Puts the world into read-only mode. Until endReadOnly() is called, projectile
+     * additions and removals are queued instead of modifying the entity list.
+     * Must be called from the tick thread.
+     */
+    public void beginReadOnly(){
+        readOnlyEntities = entities.size();
+        readOnlyChildren = node.getQuantity();
+        readOnly = true;
     }
+
+    /**
+     * Leaves read-only mode and applies every change that was queued during it.
+     * Must be called from the tick thread.
+     * @return False if the entity list or the scene graph changed while the world was read-only,
+     * meaning something bypassed the queues and parallel updates are not safe.
+     */
+    public boolean endReadOnly(){
+        readOnly = false;
+        boolean unchanged = entities.size() == readOnlyEntities && node.getQuantity() == readOnlyChildren;
+        ProjectileEvent attack;
+        while((attack = pendingAdds.poll()) != null){
+            addProjectile(attack);
+        }
+        Integer hashCode;
+        while((hashCode = pendingDestroys.poll()) != null){
+            destroyProjectile(hashCode);
+        }
+        return unchanged;
+    }
+
+    /**
+     * Adds a projectile to the world.
+     * @param attack Event describing the projectile.
+     * @return The new projectile, or null if the world is read-only and the addition was queued.
+     */
     public Projectile addProjectile(ProjectileEvent attack) {
+        if(readOnly){
+            pendingAdds.add(attack);
+            return null;
+        }
         Projectile p = new Projectile(node, attack);        // Creates the projectile class data
         p.create(0.25f, attack.getStart(), attack.getTarget());    // Creates the projectile entity
         entities.add(p);    // Adds to the list of entities in the world
+        projectiles.put(attack.getHashCode(), p);
         return p;
     }
+    /**
+     * Destroys the projectile created by the event with the given hash code. Does nothing if it no longer exists.
+     * @param hashCode Hash code of the projectile's event.
+     */
     public void destroyProjectile(int hashCode) {
-        Projectile p;
-        for (Entity e : entities) {
-            if (e instanceof Projectile) {
-                p = (Projectile) e;
-                if (p.getEvent().getHashCode() == hashCode) {
-                    p.destroy();
-                    return;
-                }
-            }
+        if(readOnly){
+            pendingDestroys.add(hashCode);
+            return;
+        }
+        Projectile p = projectiles.remove(hashCode);
+        if(p != null){
+            p.destroy();
+        }
+    }
+
+    /**
+     * Destroys many projectiles at once.
+     * @param hashCodes Hash codes of the projectiles' events.
+     * @param count Number of hash codes to read from the array.
+     */
+    public void destroyProjectiles(int[] hashCodes, int count) {
+        for(int i = 0; i < count; i++){
+            destroyProjectile(hashCodes[i]);
         }
     }
 }
@@ -0,0 +1,128 @@
+package polarity.server.world.chunks;
+
+import com.jme3.math.Vector2f;
+import com.jme3.network.Message;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used cache of chunk responses, bounded by their total stored size.
+ * <p>
+ * Responses are kept as the messages sent to clients, so a hit is queued as it is, without being decoded.
+ * Each counts against the limit with the size of its compressed payload in the ChunkStore, which is
+ * known whenever a response is cached since every response is either loaded from or saved to the store.
+ * Must only be used from the tick thread.
+ * @author Sindusk
+ */
+public class ChunkCache {
+    protected final long maxBytes;
+    protected long bytes = 0;
+    protected final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+
+    // Metrics
+    protected long hits = 0;
+    protected long misses = 0;
+    protected long evictions = 0;
+    protected long invalidations = 0;
+
+    /**
+     * A cached chunk response along with its stored size.
+     */
+    protected static class Entry {
+        protected final Message response;
+        protected final int size;
+
+        protected Entry(Message response, int size){
+            this.response = response;
+            this.size = size;
+        }
+    }
+
+    /**
+     * @param maxBytes Maximum total stored size of all cached responses.
+     */
+    public ChunkCache(long maxBytes){
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Packs chunk coordinates into a single key.
+     * @param key Chunk key from a ChunkRequest.
+     * @return Packed key.
+     */
+    public static long key(Vector2f key){
+        return ((long) (int) key.x << 32) ^ ((int) key.y & 0xffffffffL);
+    }
+
+    /**
+     * Gets a cached response, counting a hit or a miss.
+     * @param key Packed chunk key.
+     * @return The response, ready to send, or null if the chunk is not cached.
+     */
+    public Message get(long key){
+        Entry e = entries.get(key);
+        if(e == null){
+            misses++;
+            return null;
+        }
+        hits++;
+        return e.response;
+    }
+
+    /**
+     * Caches a response, evicting the least recently used chunks if over the size limit.
+     * @param key Packed chunk key.
+     * @param response Response to cache. Must not be changed once cached, as it is sent as it is.
+     * @param size Size of the response's payload in the store.
+     */
+    public void put(long key, Message response, int size){
+        Entry old = entries.put(key, new Entry(response, size));
+        if(old != null){
+            bytes -= old.size;
+        }
+        bytes += size;
+        Iterator<Map.Entry<Long, Entry>> it = entries.entrySet().iterator();
+        while(bytes > maxBytes && it.hasNext()){
+            Map.Entry<Long, Entry> eldest = it.next();
+            if(eldest.getKey() == key){
+                continue; // Never evict what was just added.
+            }
+            bytes -= eldest.getValue().size;
+            it.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Removes a chunk from the cache. Called when the chunk is changed.
+     * @param key Packed chunk key.
+     */
+    public void invalidate(long key){
+        Entry e = entries.remove(key);
+        if(e != null){
+            bytes -= e.size;
+            invalidations++;
+        }
+    }
+
+    public int getEntryCount(){
+        return entries.size();
+    }
+    public long getBytes(){
+        return bytes;
+    }
+    public long getHits(){
+        return hits;
+    }
+    public long getMisses(){
+        return misses;
+    }
+    public long getEvictions(){
+        return evictions;
+    }
+    public long getInvalidations(){
+        return invalidations;
+    }
+}
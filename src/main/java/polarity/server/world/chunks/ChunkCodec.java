@@ -0,0 +1,73 @@
+package polarity.server.world.chunks;
+
+import com.jme3.network.Message;
+import polarity.server.tools.FieldCodec;
+import polarity.shared.tools.Util;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encodes chunk responses into the payloads kept in the ChunkStore, and back.
+ * <p>
+ * Responses are written with the FieldCodec, which names their classes and fields, so stored chunks stay
+ * readable when the network registrations change. Payloads are then deflated, as generated terrain is
+ * highly repetitive. The compressor, decompressor and buffers are reused between calls, so it must only
+ * be used from the tick thread.
+ * @author Sindusk
+ */
+public class ChunkCodec {
+    private static final int MAX_ENCODED_SIZE = 262144;
+
+    private final byte[] raw = new byte[MAX_ENCODED_SIZE];
+    private final byte[] packed = new byte[MAX_ENCODED_SIZE];
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater inflater = new Inflater();
+
+    /**
+     * Encodes a response for the store.
+     * @param response Response to encode.
+     * @return The compressed payload, or null if it could not be encoded.
+     */
+    public byte[] encode(Message response){
+        byte[] fields;
+        try{
+            fields = FieldCodec.encode(response);
+        }catch(IOException | RuntimeException e){
+            Util.log("[ChunkCodec] Failed to encode "+response.getClass().getSimpleName()+": "+e);
+            return null;
+        }
+        deflater.reset();
+        deflater.setInput(fields);
+        deflater.finish();
+        int length = deflater.deflate(packed);
+        if(!deflater.finished()){
+            Util.log("[ChunkCodec] Failed to encode "+response.getClass().getSimpleName()+": Too large.");
+            return null;
+        }
+        return Arrays.copyOf(packed, length);
+    }
+
+    /**
+     * Decodes a payload written by encode().
+     * @param payload The compressed payload.
+     * @return The response, or null if it could not be decoded.
+     */
+    public Message decode(byte[] payload){
+        inflater.reset();
+        inflater.setInput(payload);
+        try{
+            int length = inflater.inflate(raw);
+            if(!inflater.finished()){
+                throw new IOException("Too large.");
+            }
+            return (Message) FieldCodec.decode(raw, 0, length);
+        }catch(IOException | DataFormatException | RuntimeException e){
+            Util.log("[ChunkCodec] Failed to decode a chunk response: "+e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package polarity.server.world.chunks;
+
+import com.jme3.math.Vector2f;
+import com.jme3.network.HostedConnection;
+import com.jme3.network.Message;
+import polarity.server.network.snapshot.Lane;
+import polarity.server.network.snapshot.SnapshotManager;
+import polarity.server.world.ServerWorld;
+import polarity.shared.netdata.requests.ChunkRequest;
+import polarity.shared.tools.Util;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves chunk requests from the cache, then the on-disk store, queueing misses for generation.
+ * <p>
+ * Requests for the same chunk made while it is waiting to be generated are coalesced, so the chunk
+ * is generated and encoded once no matter how many players asked for it. Generation is spread across
+ * ticks, with at most a fixed number of chunks generated per tick. Generated chunks are written to the
+ * store on a background thread, so they are loaded instead of regenerated after a restart.
+ * Responses are sent in the bulk lane, so they never hold up movement. The cache holds them as they are
+ * sent, so a hit costs no decoding. A chunk is encoded once, when it is generated, and decoded once per
+ * load from the store. Anything that changes a chunk must call invalidate(), through ServerWorld.invalidateChunk().
+ * Ticks that do not use their whole budget on requests pre-generate the area around spawn.
+ * <p>
+ * Stored chunks are loaded, never generated again. GameWorld cannot take in a saved chunk, but no server
+ * code reads terrain back out of the world; its only use of a chunk is the response, which the store holds.
+ * Must only be used from the tick thread.
+ * @author Sindusk
+ */
+public class ChunkService {
+    protected final ServerWorld world;
+    protected final SnapshotManager snapshots;
+    protected final ChunkCache cache;
+    protected final int budget;
+    protected final LinkedHashMap<Long, PendingChunk> pending = new LinkedHashMap<>();
+
+    // On-disk store and the thread that writes to it. Null if chunks are not stored.
+    protected final ChunkStore store;
+    protected final ExecutorService writer;
+    protected final ChunkCodec codec = new ChunkCodec();
+
+    // Chunks the world has generated since startup. Their saves may still be queued.
+    protected final HashSet<Long> generatedKeys = new HashSet<>();
+
+    // Chunks left to pre-generate, nearest to spawn first.
+    protected long[] pregenQueue = new long[0];
+    protected int pregenIndex = 0;
+    private static final int PREGEN_CHECKS = 64; // Maximum already-stored chunks skipped per tick.
+
+    // Metrics
+    protected long coalesced = 0;
+    protected long generated = 0;
+    protected long loaded = 0;
+    protected long pregenerated = 0;
+
+    /**
+     * A chunk waiting to be generated and the connections waiting for it.
+     */
+    protected static class PendingChunk {
+        protected final ChunkRequest request;
+        protected final ArrayList<HostedConnection> waiters = new ArrayList<>(2);
+
+        protected PendingChunk(ChunkRequest request){
+            this.request = request;
+        }
+    }
+
+    /**
+     * @param world World to generate chunks from.
+     * @param snapshots Outbound buffers to send responses through.
+     * @param cache Cache of chunk responses.
+     * @param store Store to load and save chunks. May be null.
+     * @param budget Maximum number of chunks generated per tick.
+     */
+    public ChunkService(ServerWorld world, SnapshotManager snapshots, ChunkCache cache, ChunkStore store, int budget){
+        this.world = world;
+        this.snapshots = snapshots;
+        this.cache = cache;
+        this.store = store;
+        this.budget = Math.max(1, budget);
+        if(store != null){
+            writer = Executors.newSingleThreadExecutor(new ThreadFactory(){
+                public Thread newThread(Runnable r){
+                    Thread t = new Thread(r, "ChunkStore-Writer");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }else{
+            writer = null;
+        }
+    }
+
+    public ChunkCache getCache(){
+        return cache;
+    }
+    public int getPendingCount(){
+        return pending.size();
+    }
+    public long getCoalesced(){
+        return coalesced;
+    }
+    public long getGenerated(){
+        return generated;
+    }
+    public long getLoaded(){
+        return loaded;
+    }
+    public int getPregenRemaining(){
+        return pregenQueue.length - pregenIndex;
+    }
+
+    /**
+     * @param cx Chunk x coordinate.
+     * @param cy Chunk y coordinate.
+     * @return True if the chunk was saved by this or an earlier run.
+     */
+    public boolean isStored(int cx, int cy){
+        return store != null && store.contains(cx, cy);
+    }
+
+    /**
+     * Queues every chunk within a square radius of a center chunk for pre-generation, nearest first.
+     * Chunks already in the store are skipped when their turn comes. Does nothing without a store.
+     * @param cx Center chunk x coordinate.
+     * @param cy Center chunk y coordinate.
+     * @param radius Radius in chunks.
+     */
+    public void pregenerate(int cx, int cy, int radius){
+        if(store == null || radius < 0){
+            return;
+        }
+        int side = radius*2+1;
+        pregenQueue = new long[side*side];
+        pregenIndex = 0;
+        int n = 0;
+        pregenQueue[n++] = key(cx, cy);
+        for(int ring = 1; ring <= radius; ring++){
+            // Walk the square ring's four sides, each covering 2*ring cells.
+            for(int i = -ring; i < ring; i++){
+                pregenQueue[n++] = key(cx+i, cy-ring);
+                pregenQueue[n++] = key(cx+ring, cy+i);
+                pregenQueue[n++] = key(cx-i, cy+ring);
+                pregenQueue[n++] = key(cx-ring, cy-i);
+            }
+        }
+        Util.log("[ChunkService] Pre-generating up to "+n+" chunks around ("+cx+", "+cy+").", 1);
+    }
+
+    /**
+     * Answers a chunk request, either immediately from the cache or once the chunk has been generated.
+     * @param source Connection requesting the chunk.
+     * @param request The request.
+     */
+    public void request(HostedConnection source, ChunkRequest request){
+        long key = ChunkCache.key(request.getKey());
+        Message response = cache.get(key);
+        if(response == null && store != null){
+            byte[] payload = store.load(x(key), y(key));
+            response = payload != null ? codec.decode(payload) : null; // Unreadable payloads are generated again.
+            if(response != null){
+                cache.put(key, response, payload.length);
+                loaded++;
+            }
+        }
+        if(response != null){
+            snapshots.queue(source, response, Lane.Bulk);
+            return;
+        }
+        PendingChunk p = pending.get(key);
+        if(p == null){
+            p = new PendingChunk(request);
+            pending.put(key, p);
+        }else{
+            coalesced++;
+        }
+        if(!p.waiters.contains(source)){
+            p.waiters.add(source);
+        }
+    }
+
+    /**
+     * Forgets a connection, so nothing is sent to it once its chunks are generated.
+     * @param conn Connection to forget.
+     */
+    public void remove(HostedConnection conn){
+        for(PendingChunk p : pending.values()){
+            p.waiters.remove(conn);
+        }
+    }
+
+    /**
+     * Generates up to the per-tick budget of pending chunks and sends them to everyone waiting.
+     * Whatever budget is left over goes to pre-generation.
+     */
+    public void update(){
+        Iterator<PendingChunk> it = pending.values().iterator();
+        int count = 0;
+        while(count < budget && it.hasNext()){
+            PendingChunk p = it.next();
+            it.remove();
+            if(p.waiters.isEmpty()){
+                continue; // Everyone waiting has disconnected.
+            }
+            Message response = world.requestChunk(p.request);
+            long key = ChunkCache.key(p.request.getKey());
+            generatedKeys.add(key);
+            byte[] payload = codec.encode(response);
+            if(payload != null){
+                cache.put(key, response, payload.length);
+                save(key, payload);
+            }
+            generated++;
+            count++;
+            for(HostedConnection conn : p.waiters){
+                snapshots.queue(conn, response, Lane.Bulk);
+            }
+        }
+        int checks = 0;
+        while(count < budget && checks < PREGEN_CHECKS && pregenIndex < pregenQueue.length){
+            long key = pregenQueue[pregenIndex++];
+            checks++;
+            if(generatedKeys.contains(key) || store.contains(x(key), y(key))){
+                continue;
+            }
+            save(key, codec.encode(world.requestChunk(new ChunkRequest(new Vector2f(x(key), y(key))))));
+            generatedKeys.add(key);
+            pregenerated++;
+            count++;
+        }
+        if(pregenQueue.length > 0 && pregenIndex == pregenQueue.length){
+            Util.log("[ChunkService] Pre-generation finished, "+pregenerated+" chunks generated.", 1);
+            pregenQueue = new long[0];
+            pregenIndex = 0;
+        }
+    }
+
+    /**
+     * Drops the cached and stored response of a chunk that has changed, so the next request
+     * is answered from the world's current state.
+     * @param cx Chunk x coordinate.
+     * @param cy Chunk y coordinate.
+     */
+    public void invalidate(final int cx, final int cy){
+        cache.invalidate(key(cx, cy));
+        if(store != null){
+            writer.execute(new Runnable(){
+                public void run(){
+                    store.remove(cx, cy); // Queued behind any save of the old response.
+                }
+            });
+        }
+    }
+
+    /**
+     * Waits for queued writes to finish and closes the store.
+     */
+    public void close(){
+        if(store == null){
+            return;
+        }
+        writer.shutdown();
+        try{
+            writer.awaitTermination(10, TimeUnit.SECONDS);
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        store.close();
+    }
+
+    protected void save(final long key, final byte[] payload){
+        if(store == null || payload == null){
+            return;
+        }
+        writer.execute(new Runnable(){
+            public void run(){
+                store.save(x(key), y(key), payload);
+            }
+        });
+    }
+
+    protected static long key(int x, int y){
+        return ((long) x << 32) ^ (y & 0xffffffffL);
+    }
+    protected static int x(long key){
+        return (int) (key >> 32);
+    }
+    protected static int y(long key){
+        return (int) key;
+    }
+
+    /**
+     * Logs cache and generation metrics.
+     */
+    public void logStats(){
+        Util.log(String.format("[ChunkService] cache %d chunks (%d KB stored), %d hits, %d misses, %d evictions, %d invalidations, %d loaded, %d generated, %d pre-generated, %d coalesced, %d pending.",
+                cache.getEntryCount(), cache.getBytes()/1024, cache.getHits(), cache.getMisses(), cache.getEvictions(), cache.getInvalidations(),
+                loaded, generated, pregenerated, coalesced, pending.size()));
+    }
+}
@@ -0,0 +1,191 @@
+package polarity.server.world.chunks;
+
+import polarity.shared.tools.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+
+/**
+ * On-disk storage for chunk payloads encoded by the ChunkCodec, grouped into region files.
+ * <p>
+ * Each region file holds a square of REGION_SIZE x REGION_SIZE chunks. It starts with a header of
+ * one (offset, length) pair per chunk, followed by chunk payloads appended as they are saved.
+ * Reads go through a read-only memory map of the file, which is remapped when the file grows.
+ * Rewriting a chunk appends a new payload and repoints its header entry; the old payload is left in place.
+ * All methods are synchronized, so the store can be shared by the tick thread and a writer thread.
+ * @author Sindusk
+ */
+public class ChunkStore {
+    private static final int REGION_SIZE = 32;
+    private static final int HEADER_ENTRIES = REGION_SIZE*REGION_SIZE;
+    private static final int HEADER_SIZE = HEADER_ENTRIES*8;
+
+    protected final File directory;
+    protected final HashMap<Long, Region> regions = new HashMap<>();
+    private final ByteBuffer entry = ByteBuffer.allocate(8);
+
+    /**
+     * An open region file.
+     */
+    protected static class Region {
+        protected final FileChannel channel;
+        protected MappedByteBuffer map;
+
+        protected Region(FileChannel channel){
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * @param directory Directory to keep region files in. Created if it does not exist.
+     */
+    public ChunkStore(File directory){
+        this.directory = directory;
+        if(!directory.isDirectory() && !directory.mkdirs()){
+            Util.log("[ChunkStore] Could not create chunk directory "+directory.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Checks if a chunk has been saved.
+     * @param cx Chunk x coordinate.
+     * @param cy Chunk y coordinate.
+     * @return True if the chunk is in the store.
+     */
+    public synchronized boolean contains(int cx, int cy){
+        try{
+            Region r = region(cx, cy, false);
+            return r != null && length(r, index(cx, cy)) > 0;
+        }catch(IOException e){
+            return false;
+        }
+    }
+
+    /**
+     * Loads a saved chunk response.
+     * @param cx Chunk x coordinate.
+     * @param cy Chunk y coordinate.
+     * @return The encoded response, or null if the chunk has not been saved or could not be read.
+     */
+    public synchronized byte[] load(int cx, int cy){
+        try{
+            Region r = region(cx, cy, false);
+            if(r == null){
+                return null;
+            }
+            int index = index(cx, cy);
+            int length = length(r, index);
+            if(length <= 0){
+                return null;
+            }
+            int offset = r.map.getInt(index*8);
+            if(offset + length > r.map.capacity()){
+                r.map = r.channel.map(FileChannel.MapMode.READ_ONLY, 0, r.channel.size());
+            }
+            ByteBuffer data = r.map.duplicate();
+            data.position(offset);
+            byte[] payload = new byte[length];
+            data.get(payload);
+            return payload;
+        }catch(IOException | RuntimeException e){
+            Util.log("[ChunkStore] Failed to load chunk ("+cx+", "+cy+"): "+e);
+            return null;
+        }
+    }
+
+    /**
+     * Saves a chunk response, replacing any previous one.
+     * @param cx Chunk x coordinate.
+     * @param cy Chunk y coordinate.
+     * @param payload Encoded response.
+     */
+    public synchronized void save(int cx, int cy, byte[] payload){
+        try{
+            ByteBuffer data = ByteBuffer.wrap(payload);
+            int length = payload.length;
+            Region r = region(cx, cy, true);
+            long offset = r.channel.size();
+            while(data.hasRemaining()){
+                r.channel.write(data, offset + data.position());
+            }
+            writeEntry(r, index(cx, cy), (int) offset, length);
+        }catch(IOException | RuntimeException e){
+            Util.log("[ChunkStore] Failed to save chunk ("+cx+", "+cy+"): "+e);
+        }
+    }
+
+    /**
+     * Removes a saved chunk, so it is generated again the next time it is requested. Its payload is left in place.
+     * @param cx Chunk x coordinate.
+     * @param cy Chunk y coordinate.
+     */
+    public synchronized void remove(int cx, int cy){
+        try{
+            Region r = region(cx, cy, false);
+            if(r != null){
+                writeEntry(r, index(cx, cy), 0, 0);
+            }
+        }catch(IOException | RuntimeException e){
+            Util.log("[ChunkStore] Failed to remove chunk ("+cx+", "+cy+"): "+e);
+        }
+    }
+
+    /**
+     * Forces every region to disk and closes them.
+     */
+    public synchronized void close(){
+        for(Region r : regions.values()){
+            try{
+                r.channel.force(true);
+                r.channel.close();
+            }catch(IOException ignored){ }
+        }
+        regions.clear();
+    }
+
+    protected int index(int cx, int cy){
+        return Math.floorMod(cx, REGION_SIZE) + Math.floorMod(cy, REGION_SIZE)*REGION_SIZE;
+    }
+    protected int length(Region r, int index){
+        return r.map.getInt(index*8 + 4);
+    }
+    protected void writeEntry(Region r, int index, int offset, int length) throws IOException{
+        entry.clear();
+        entry.putInt(offset).putInt(length);
+        entry.flip();
+        r.channel.write(entry, index*8);
+        // The mapped header shares the page cache with the channel, so the new entry is visible immediately.
+    }
+
+    /**
+     * Gets the region containing a chunk, opening its file if needed.
+     * @param create Whether to create the region file if it does not exist.
+     * @return The region, or null if it does not exist and create is false.
+     */
+    protected Region region(int cx, int cy, boolean create) throws IOException{
+        int rx = Math.floorDiv(cx, REGION_SIZE);
+        int ry = Math.floorDiv(cy, REGION_SIZE);
+        long key = ((long) rx << 32) ^ (ry & 0xffffffffL);
+        Region r = regions.get(key);
+        if(r != null){
+            return r;
+        }
+        File file = new File(directory, "r."+rx+"."+ry+".dat");
+        if(!file.exists() && !create){
+            return null;
+        }
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if(channel.size() < HEADER_SIZE){
+            channel.write(ByteBuffer.allocate(HEADER_SIZE), 0); // Empty header.
+        }
+        r = new Region(channel);
+        r.map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        regions.put(key, r);
+        return r;
+    }
+}
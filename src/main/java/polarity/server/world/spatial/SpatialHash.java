@@ -0,0 +1,211 @@
+package polarity.server.world.spatial;
+
+import com.jme3.util.IntMap;
+
+import java.util.ArrayList;
+
+/**
+ * Broad-phase spatial index over a uniform grid of square cells.
+ * <p>
+ * Objects are identified by an int ID and stored with their location. Moving an object only
+ * touches the grid when it crosses into another cell, and removal from a cell is a swap with
+ * its last entry, so keeping the index up to date is constant time per object. Range queries
+ * visit only the cells overlapping the range and filter candidates by exact distance.
+ * <p>
+ * Cells are hashed by their coordinates wrapped to 16 bits each. Cells that far apart share a
+ * bucket, which only adds candidates that the distance check then rejects.
+ * Neither updates nor queries allocate once the cells in use exist. Queries may run on several
+ * threads at once, but not while the index is being changed.
+ * @author Sindusk
+ * @param <T> Type of the indexed objects.
+ */
+public class SpatialHash<T> {
+    protected final float cellSize;
+    protected final IntMap<ArrayList<Entry<T>>> cells = new IntMap<>();
+    protected final IntMap<Entry<T>> entries = new IntMap<>();
+
+    // Metrics
+    protected long cellChanges = 0;
+
+    /**
+     * An indexed object and where it is stored.
+     */
+    protected static class Entry<T> {
+        protected final int id;
+        protected T value;
+        protected float x, y;
+        protected int cell;
+        protected int slot;     // Index in the cell's list.
+
+        protected Entry(int id){
+            this.id = id;
+        }
+    }
+
+    /**
+     * @param cellSize Width of a cell. Works best at about the range of the most common query.
+     */
+    public SpatialHash(float cellSize){
+        this.cellSize = cellSize;
+    }
+
+    public float getCellSize(){
+        return cellSize;
+    }
+    public int size(){
+        return entries.size();
+    }
+    public int getCellCount(){
+        return cells.size();
+    }
+    public long getCellChanges(){
+        return cellChanges;
+    }
+    public T get(int id){
+        Entry<T> e = entries.get(id);
+        return e != null ? e.value : null;
+    }
+
+    protected int cellCoord(float v){
+        return (int) Math.floor(v / cellSize);
+    }
+    protected static int cellKey(int cx, int cy){
+        return (cx << 16) | (cy & 0xffff);
+    }
+
+    /**
+     * Adds an object, or moves it if its ID is already indexed.
+     * @param id ID of the object.
+     * @param value The object.
+     * @param x Current x location.
+     * @param y Current y location.
+     */
+    public void put(int id, T value, float x, float y){
+        int cell = cellKey(cellCoord(x), cellCoord(y));
+        Entry<T> e = entries.get(id);
+        if(e == null){
+            e = new Entry<>(id);
+            e.cell = cell;
+            entries.put(id, e);
+            addToCell(e);
+        }else if(e.cell != cell){
+            removeFromCell(e);
+            e.cell = cell;
+            addToCell(e);
+            cellChanges++;
+        }
+        e.value = value;
+        e.x = x;
+        e.y = y;
+    }
+
+    /**
+     * Removes an object.
+     * @param id ID of the object.
+     * @return True if it was indexed.
+     */
+    public boolean remove(int id){
+        Entry<T> e = entries.remove(id);
+        if(e == null){
+            return false;
+        }
+        removeFromCell(e);
+        return true;
+    }
+
+    public void clear(){
+        entries.clear();
+        cells.clear();
+    }
+
+    /**
+     * Finds every object within range of a point.
+     * @param x X of the point.
+     * @param y Y of the point.
+     * @param range Maximum distance from the point.
+     * @param out List the objects found are added to. Not cleared first.
+     * @return Number of objects added.
+     */
+    public int query(float x, float y, float range, ArrayList<? super T> out){
+        float rangeSq = range*range;
+        int minX = cellCoord(x - range);
+        int maxX = cellCoord(x + range);
+        int minY = cellCoord(y - range);
+        int maxY = cellCoord(y + range);
+        int found = 0;
+        for(int cx = minX; cx <= maxX; cx++){
+            for(int cy = minY; cy <= maxY; cy++){
+                ArrayList<Entry<T>> cell = cells.get(cellKey(cx, cy));
+                if(cell == null){
+                    continue;
+                }
+                for(int i = 0; i < cell.size(); i++){
+                    Entry<T> e = cell.get(i);
+                    float dx = e.x - x;
+                    float dy = e.y - y;
+                    if(dx*dx + dy*dy <= rangeSq){
+                        out.add(e.value);
+                        found++;
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Checks if any object is within range of a point, stopping at the first one found.
+     * @param x X of the point.
+     * @param y Y of the point.
+     * @param range Maximum distance from the point.
+     * @return True if at least one object is in range.
+     */
+    public boolean any(float x, float y, float range){
+        float rangeSq = range*range;
+        int minX = cellCoord(x - range);
+        int maxX = cellCoord(x + range);
+        int minY = cellCoord(y - range);
+        int maxY = cellCoord(y + range);
+        for(int cx = minX; cx <= maxX; cx++){
+            for(int cy = minY; cy <= maxY; cy++){
+                ArrayList<Entry<T>> cell = cells.get(cellKey(cx, cy));
+                if(cell == null){
+                    continue;
+                }
+                for(int i = 0; i < cell.size(); i++){
+                    Entry<T> e = cell.get(i);
+                    float dx = e.x - x;
+                    float dy = e.y - y;
+                    if(dx*dx + dy*dy <= rangeSq){
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    protected void addToCell(Entry<T> e){
+        ArrayList<Entry<T>> cell = cells.get(e.cell);
+        if(cell == null){
+            cell = new ArrayList<>(4);
+            cells.put(e.cell, cell);
+        }
+        e.slot = cell.size();
+        cell.add(e);
+    }
+    protected void removeFromCell(Entry<T> e){
+        ArrayList<Entry<T>> cell = cells.get(e.cell);
+        if(cell == null){
+            return;
+        }
+        int last = cell.size() - 1;
+        Entry<T> moved = cell.get(last);
+        cell.set(e.slot, moved);
+        moved.slot = e.slot;
+        cell.remove(last);
+        if(cell.isEmpty()){
+            cells.remove(e.cell);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package polarity.server.cluster;
+
+import com.jme3.math.Vector2f;
+import com.jme3.network.serializing.Serializer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import polarity.shared.character.data.PlayerData;
+import polarity.shared.equipment.Equipment;
+import polarity.shared.netdata.updates.MatrixUpdate;
+import polarity.shared.network.NetData;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives two NodeLinks over a LoopbackHub of their own, through a handoff and forwarded chat.
+ * @author Sindusk
+ */
+public class NodeLinkTest {
+    private static final long TIMEOUT = 2000; // Milliseconds to wait for a payload to be delivered.
+
+    private LoopbackHub hub;
+    private NodeLink a;
+    private NodeLink b;
+    private final LinkedBlockingQueue<String> chatA = new LinkedBlockingQueue<>();
+    private final LinkedBlockingQueue<String> chatB = new LinkedBlockingQueue<>();
+
+    /**
+     * Records relayed chat as "node/sender/message".
+     */
+    private static class Recorder implements ChatRelay {
+        private final LinkedBlockingQueue<String> received;
+
+        private Recorder(LinkedBlockingQueue<String> received){
+            this.received = received;
+        }
+        public void relay(String node, String sender, String message){
+            received.add(node+"/"+sender+"/"+message);
+        }
+    }
+
+    @BeforeClass
+    public static void registerClasses(){
+        // The Serializer registry is global to the JVM. ServerNetwork registers these at startup.
+        for(NetData d : NetData.values()){
+            Serializer.registerClass(d.c);
+        }
+    }
+
+    @Before
+    public void startLinks() throws IOException{
+        hub = new LoopbackHub();
+        a = new NodeLink(new LoopbackTransport(hub, "a"), new Recorder(chatA));
+        b = new NodeLink(new LoopbackTransport(hub, "b"), new Recorder(chatB));
+        a.start();
+        b.start();
+    }
+
+    @After
+    public void closeLinks(){
+        a.close();
+        b.close();
+    }
+
+    @Test
+    public void handoffBecomesArrivalOnTarget() throws InterruptedException{
+        PlayerData player = new PlayerData(7, "Tester", new Vector2f(3, 4), new Equipment());
+        assertTrue(a.sendHandoff("b", player, new ArrayList<MatrixUpdate>()));
+        assertEquals(1, a.getHandoffsSent());
+
+        NodeLink.Arrival arrival = awaitArrival(b, "Tester");
+        assertNotNull(arrival);
+        assertEquals("a", arrival.getNode());
+        assertEquals(7, arrival.getPlayer().getID());
+        assertEquals("Tester", arrival.getPlayer().getName());
+        assertEquals(new Vector2f(3, 4), arrival.getPlayer().getLocation());
+        assertEquals(0, arrival.getMatrix().length);
+        assertEquals(1, b.getHandoffsReceived());
+
+        assertNull(b.claimArrival("Tester")); // Only claimed once.
+        assertNull(a.claimArrival("Tester"));
+    }
+
+    @Test
+    public void handoffToUnknownOrOwnNodeFails(){
+        PlayerData player = new PlayerData(7, "Tester", new Vector2f(), new Equipment());
+        assertFalse(a.sendHandoff("c", player, new ArrayList<MatrixUpdate>()));
+        assertFalse(a.sendHandoff("a", player, new ArrayList<MatrixUpdate>()));
+        assertEquals(0, a.getHandoffsSent());
+    }
+
+    @Test
+    public void chatReachesOtherNodesWithSenderName() throws InterruptedException{
+        a.forwardChat("Tester", "hello");
+        assertEquals("a/Tester/hello", chatB.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(1, a.getChatSent());
+        assertEquals(1, b.getChatReceived());
+        assertNull(chatA.poll(100, TimeUnit.MILLISECONDS)); // Not sent back to the sender.
+    }
+
+    @Test
+    public void chatTooLongForAPayloadIsNotSent() throws InterruptedException{
+        char[] text = new char[70000];
+        Arrays.fill(text, 'a');
+        a.forwardChat("Tester", new String(text));
+        assertEquals(0, a.getChatSent());
+        assertNull(chatB.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Waits for a handoff to be delivered, then claims it.
+     * @param link Link of the target node.
+     * @param name Name of the player handed off.
+     * @return The arrival, or null if it was not delivered in time.
+     */
+    private static NodeLink.Arrival awaitArrival(NodeLink link, String name) throws InterruptedException{
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while(System.currentTimeMillis() < deadline){
+            NodeLink.Arrival arrival = link.claimArrival(name);
+            if(arrival != null){
+                return arrival;
+            }
+            Thread.sleep(10);
+        }
+        return null;
+    }
+}